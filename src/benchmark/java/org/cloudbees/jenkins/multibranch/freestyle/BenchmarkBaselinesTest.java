@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class BenchmarkBaselinesTest {
+
+    /**
+     * The baselines are recorded on the reference build machine and may lag behind new benchmarks, which the runner
+     * reports, but whatever is recorded has to belong to a benchmark that still exists.
+     */
+    @Test
+    public void baselinesAreNotStale() throws Exception {
+        Set<String> benchmarks = new HashSet<String>();
+        for (Class<?> c : Arrays.<Class<?>>asList(ConfigBenchmark.class, CriteriaBenchmark.class,
+                FactoryBenchmark.class)) {
+            for (Method m : c.getMethods()) {
+                if (m.isAnnotationPresent(Benchmark.class)) {
+                    benchmarks.add(c.getName() + "." + m.getName());
+                }
+            }
+        }
+        Properties baselines = BenchmarkRunner.loadBaselines();
+        for (String name : baselines.stringPropertyNames()) {
+            assertThat(name, benchmarks.contains(name), is(true));
+            assertThat(name, Double.parseDouble(baselines.getProperty(name)) > 0, is(true));
+        }
+    }
+
+    @Test
+    public void onlyDropsBeyondTheToleranceAreRegressions() {
+        Properties baselines = new Properties();
+        baselines.setProperty("a", "1000.0");
+        baselines.setProperty("b", "1000.0");
+        Map<String, Double> scores = new HashMap<String, Double>();
+        scores.put("a", 760.0);
+        scores.put("b", 740.0);
+        assertThat(BenchmarkRunner.regressions(scores, baselines, 0.25),
+                contains("b: 740.0 ops/s is below baseline 1000.0 ops/s"));
+        assertThat(BenchmarkRunner.regressions(Collections.singletonMap("b", 2000.0), baselines, 0.25), empty());
+    }
+
+    @Test
+    public void missingBaselinesFail() {
+        assertThat(BenchmarkRunner.regressions(Collections.singletonMap("c", 1.0), new Properties(), 0.25),
+                contains("c: 1.0 ops/s has no baseline, " + BenchmarkRunner.RECORD_INSTRUCTIONS));
+    }
+}
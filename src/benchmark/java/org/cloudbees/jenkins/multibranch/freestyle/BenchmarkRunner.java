@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the benchmarks and fails if any of them is slower than its recorded baseline by more than the allowed
+ * tolerance, or has no baseline. The baselines are stored in {@code baselines.properties} as throughput in operations
+ * per second and are recorded on the reference build machine with {@code -Dbenchmark.record=true}.
+ */
+public class BenchmarkRunner {
+
+    /**
+     * The fraction by which a benchmark may drop below its baseline before it counts as a regression.
+     */
+    private static final double TOLERANCE = Double.parseDouble(System.getProperty("benchmark.tolerance", "0.25"));
+
+    /**
+     * How to record the baselines, for the failure messages.
+     */
+    /*package*/ static final String RECORD_INSTRUCTIONS =
+            "record the baselines on the reference build machine with mvn test -Pbenchmark -Dbenchmark.record=true";
+
+    /**
+     * Where the recorded baselines are kept in the source tree.
+     */
+    private static final String BASELINES_SOURCE =
+            "src/benchmark/resources/org/cloudbees/jenkins/multibranch/freestyle/baselines.properties";
+
+    @Test
+    public void runBenchmarks() throws Exception {
+        Options options = new OptionsBuilder()
+                .include(ConfigBenchmark.class.getName() + ".*")
+                .include(CriteriaBenchmark.class.getName() + ".*")
+                .include(FactoryBenchmark.class.getName() + ".*")
+                .mode(org.openjdk.jmh.annotations.Mode.Throughput)
+                .timeUnit(TimeUnit.SECONDS)
+                .warmupIterations(5)
+                .warmupTime(TimeValue.seconds(1))
+                .measurementIterations(5)
+                .measurementTime(TimeValue.seconds(1))
+                .forks(1)
+                .shouldFailOnError(true)
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+
+        Map<String, Double> scores = new TreeMap<String, Double>();
+        Properties recorded = new Properties();
+        for (RunResult result : results) {
+            String name = result.getParams().getBenchmark();
+            double score = result.getPrimaryResult().getScore();
+            scores.put(name, score);
+            recorded.setProperty(name, String.format(Locale.ROOT, "%.1f", score));
+        }
+        if (Boolean.getBoolean("benchmark.record")) {
+            // the recorded results are the new baselines, so there is nothing to compare them with
+            record(recorded);
+            return;
+        }
+        List<String> regressions = regressions(scores, loadBaselines(), TOLERANCE);
+        assertTrue("Performance regressions:\n" + regressions, regressions.isEmpty());
+    }
+
+    /**
+     * Loads the recorded baselines.
+     *
+     * @return the baselines in operations per second keyed by benchmark name.
+     * @throws IOException if the baselines could not be read.
+     */
+    /*package*/ static Properties loadBaselines() throws IOException {
+        Properties baselines = new Properties();
+        InputStream in = BenchmarkRunner.class.getResourceAsStream("baselines.properties");
+        if (in != null) {
+            try {
+                baselines.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return baselines;
+    }
+
+    /**
+     * Compares scores against their baselines.
+     *
+     * @param scores    the throughput in operations per second keyed by benchmark name.
+     * @param baselines the baselines, a benchmark without one counts as a regression.
+     * @param tolerance the fraction by which a score may drop below its baseline.
+     * @return a description of each regression.
+     */
+    /*package*/ static List<String> regressions(Map<String, Double> scores, Properties baselines, double tolerance) {
+        List<String> regressions = new ArrayList<String>();
+        for (Map.Entry<String, Double> entry : scores.entrySet()) {
+            String name = entry.getKey();
+            double score = entry.getValue();
+            String baseline = baselines.getProperty(name);
+            if (baseline == null) {
+                regressions.add(String.format(Locale.ROOT, "%s: %.1f ops/s has no baseline, %s",
+                        name, score, RECORD_INSTRUCTIONS));
+                continue;
+            }
+            double expected = Double.parseDouble(baseline);
+            System.out.printf(Locale.ROOT, "%s: %.1f ops/s (baseline %.1f ops/s)%n", name, score, expected);
+            if (score < expected * (1.0 - tolerance)) {
+                regressions.add(String.format(Locale.ROOT, "%s: %.1f ops/s is below baseline %.1f ops/s",
+                        name, score, expected));
+            }
+        }
+        return regressions;
+    }
+
+    private static void record(Properties recorded) throws IOException {
+        File file = new File(System.getProperty("benchmark.baselines.out", BASELINES_SOURCE));
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            recorded.store(out, "Baseline throughput (ops/s) of the benchmarks in src/benchmark/java, recorded by\n"
+                    + "mvn test -Pbenchmark -Dbenchmark.record=true on the reference build machine");
+        } finally {
+            out.close();
+        }
+        System.out.printf(Locale.ROOT, "Recorded %d baselines to %s%n", recorded.size(), file);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import hudson.model.Items;
+import hudson.scm.NullSCM;
+import hudson.tasks.ArtifactArchiver;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.Builder;
+import hudson.tasks.Publisher;
+import hudson.tasks.Shell;
+import hudson.util.XStream2;
+import java.util.Arrays;
+import java.util.Collections;
+import jenkins.branch.Branch;
+import jenkins.branch.BranchProperty;
+import jenkins.scm.api.SCMHead;
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Benchmarks writing and reading the configuration of a branch job with the compact converters registered by
+ * {@link FreeStyleMultiBranchProject}, against the reflective form core would otherwise use.
+ */
+public class ConfigBenchmark {
+
+    public static class ConfigState extends JenkinsState {
+        FreeStyleMultiBranchProject.ProjectImpl job;
+        String compact;
+        XStream2 reflective;
+        String reflectiveXml;
+
+        @Override
+        protected void setup() throws Exception {
+            FreeStyleMultiBranchProject owner =
+                    j.jenkins.createProject(FreeStyleMultiBranchProject.class, "benchmark");
+            FreeStyleProjectFactory factory = new FreeStyleProjectFactory(
+                    Arrays.<Builder>asList(new Shell("make -j4 all"), new Shell("make check")),
+                    Collections.<BuildWrapper>emptyList(),
+                    Collections.<Publisher>singletonList(new ArtifactArchiver("target/*.tar.gz")));
+            owner.setProjectFactory(factory);
+            job = factory.newInstance(new Branch("source", new SCMHead("feature/benchmark"), new NullSCM(),
+                    Collections.<BranchProperty>emptyList()));
+            compact = Items.XSTREAM2.toXML(job);
+            // a fresh instance has none of our converters
+            reflective = new XStream2();
+            reflectiveXml = reflective.toXML(job);
+        }
+    }
+
+    @Benchmark
+    public String writeCompact(ConfigState state) {
+        return Items.XSTREAM2.toXML(state.job);
+    }
+
+    @Benchmark
+    public Object readCompact(ConfigState state) {
+        return Items.XSTREAM2.fromXML(state.compact);
+    }
+
+    @Benchmark
+    public String writeReflective(ConfigState state) {
+        return state.reflective.toXML(state.job);
+    }
+
+    @Benchmark
+    public Object readReflective(ConfigState state) {
+        return state.reflective.fromXML(state.reflectiveXml);
+    }
+}
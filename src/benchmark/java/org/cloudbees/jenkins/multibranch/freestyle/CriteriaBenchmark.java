@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import hudson.model.TaskListener;
+import java.io.IOException;
+import jenkins.scm.api.SCMFile;
+import jenkins.scm.api.SCMProbeStat;
+import jenkins.scm.api.SCMSourceCriteria;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks {@link MarkerFreeStyleSCMSourceCriteria#isHead} against a probe that answers from memory, so that only
+ * the cost of the criteria itself is measured.
+ */
+public class CriteriaBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class CriteriaState {
+        final MarkerFreeStyleSCMSourceCriteria present = new MarkerFreeStyleSCMSourceCriteria("marker.txt");
+        final MarkerFreeStyleSCMSourceCriteria absent = new MarkerFreeStyleSCMSourceCriteria("missing.txt");
+        final SCMSourceCriteria.Probe probe = new StubProbe();
+    }
+
+    @Benchmark
+    public boolean markerPresent(CriteriaState state) throws IOException {
+        return state.present.isHead(state.probe, TaskListener.NULL);
+    }
+
+    @Benchmark
+    public boolean markerAbsent(CriteriaState state) throws IOException {
+        return state.absent.isHead(state.probe, TaskListener.NULL);
+    }
+
+    /**
+     * A probe of a branch that only contains {@code marker.txt}.
+     */
+    private static class StubProbe extends SCMSourceCriteria.Probe {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public String name() {
+            return "master";
+        }
+
+        @Override
+        public long lastModified() {
+            return 0L;
+        }
+
+        @Override
+        public SCMProbeStat stat(String path) throws IOException {
+            return "marker.txt".equals(path)
+                    ? SCMProbeStat.fromType(SCMFile.Type.REGULAR_FILE)
+                    : SCMProbeStat.fromType(SCMFile.Type.NONEXISTENT);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import hudson.model.Descriptor;
+import hudson.model.ItemGroup;
+import hudson.model.Items;
+import hudson.model.JobProperty;
+import hudson.scm.NullSCM;
+import hudson.tasks.ArtifactArchiver;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.Builder;
+import hudson.tasks.Fingerprinter;
+import hudson.tasks.Publisher;
+import hudson.tasks.Shell;
+import hudson.util.DescribableList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import jenkins.branch.Branch;
+import jenkins.branch.BranchProperty;
+import jenkins.branch.BranchProjectFactory;
+import jenkins.scm.api.SCMHead;
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Benchmarks of the branch job creation paths of {@link FreeStyleProjectFactory} and
+ * {@link FreeStyleMultiBranchProjectFactory}.
+ */
+public class FactoryBenchmark {
+
+    /**
+     * The number of branch jobs used by {@link #descriptorByNameUrlSuffix(FolderState)}.
+     */
+    private static final int CHILDREN = 10000;
+
+    public static class FactoryState extends JenkinsState {
+        FreeStyleMultiBranchProject owner;
+        FreeStyleProjectFactory factory;
+        Branch branch;
+        Map<Descriptor<BuildWrapper>, BuildWrapper> buildWrappers;
+        Map<Descriptor<Publisher>, Publisher> publishers;
+
+        @Override
+        protected void setup() throws Exception {
+            owner = j.jenkins.createProject(FreeStyleMultiBranchProject.class, "benchmark");
+            // a template along the lines of what users configure: a few shell steps and the usual publishers
+            factory = new FreeStyleProjectFactory(
+                    Arrays.<Builder>asList(
+                            new Shell("./configure --prefix=/usr"),
+                            new Shell("make -j4 all"),
+                            new Shell("make check")),
+                    Collections.<BuildWrapper>emptyList(),
+                    Arrays.<Publisher>asList(
+                            new ArtifactArchiver("target/*.tar.gz"),
+                            new Fingerprinter("target/*.tar.gz")));
+            owner.setProjectFactory(factory);
+            branch = new Branch("source", new SCMHead("feature/benchmark"), new NullSCM(),
+                    Collections.<BranchProperty>emptyList());
+            buildWrappers = Descriptor.toMap(factory.getBuildWrappers());
+            publishers = Descriptor.toMap(factory.getPublishers());
+        }
+    }
+
+    public static class FolderState extends JenkinsState {
+        FreeStyleMultiBranchProject folder;
+
+        @Override
+        protected void setup() throws Exception {
+            folder = new LargeFolder(j.jenkins, "large");
+            List<FreeStyleMultiBranchProject.ProjectImpl> children =
+                    new ArrayList<FreeStyleMultiBranchProject.ProjectImpl>(CHILDREN);
+            for (int i = 0; i < CHILDREN; i++) {
+                // none of these is the primary branch, so the full list is scanned
+                children.add(new FreeStyleMultiBranchProject.ProjectImpl(folder,
+                        new Branch("source", new SCMHead("PR-" + i), new NullSCM(),
+                                Collections.<BranchProperty>emptyList()),
+                        Collections.<JobProperty<? super FreeStyleMultiBranchProject.ProjectImpl>>emptyList(),
+                        Collections.<Descriptor<BuildWrapper>, BuildWrapper>emptyMap(),
+                        new DescribableList<Builder, Descriptor<Builder>>(folder),
+                        Collections.<Descriptor<Publisher>, Publisher>emptyMap()));
+            }
+            ((LargeFolder) folder).children = children;
+        }
+    }
+
+    /**
+     * A folder whose children are supplied directly rather than loaded from disk.
+     */
+    private static class LargeFolder extends FreeStyleMultiBranchProject {
+        Collection<ProjectImpl> children = Collections.emptyList();
+
+        LargeFolder(ItemGroup parent, String name) {
+            super(parent, name);
+        }
+
+        @Override
+        public Collection<ProjectImpl> getItems() {
+            return children;
+        }
+    }
+
+    @Benchmark
+    public FreeStyleMultiBranchProject.ProjectImpl newInstance(FactoryState state) {
+        return state.factory.newInstance(state.branch);
+    }
+
+    @Benchmark
+    public Object cloneFactory(FactoryState state) {
+        // the same round trip as FreeStyleMultiBranchProjectFactory.doCreateProject
+        return (BranchProjectFactory) Items.XSTREAM.fromXML(Items.XSTREAM.toXML(state.factory));
+    }
+
+    @Benchmark
+    public FreeStyleMultiBranchProject.ProjectImpl constructProject(FactoryState state) {
+        return new FreeStyleMultiBranchProject.ProjectImpl(state.owner, state.branch,
+                Collections.<JobProperty<? super FreeStyleMultiBranchProject.ProjectImpl>>emptyList(),
+                state.buildWrappers,
+                state.factory.getBuilders(),
+                state.publishers);
+    }
+
+    @Benchmark
+    public String descriptorByNameUrlSuffix(FolderState state) {
+        return state.folder.getDescriptorByNameUrlSuffix();
+    }
+}
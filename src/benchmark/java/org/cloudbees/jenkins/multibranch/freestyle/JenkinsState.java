@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import org.junit.runner.Description;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A JMH state that boots a {@link JenkinsRule} for the duration of a benchmark trial.
+ */
+@State(Scope.Benchmark)
+public class JenkinsState {
+
+    /**
+     * The running Jenkins.
+     */
+    protected JenkinsRule j;
+
+    @Setup(Level.Trial)
+    public final void startJenkins() throws Throwable {
+        j = new JenkinsRule() {
+            {
+                testDescription = Description.createTestDescription(JenkinsState.this.getClass(), "benchmark");
+            }
+        };
+        j.before();
+        setup();
+    }
+
+    @TearDown(Level.Trial)
+    public final void stopJenkins() throws Exception {
+        j.after();
+    }
+
+    /**
+     * Creates the fixtures of the benchmark once Jenkins is running.
+     *
+     * @throws Exception if things go wrong.
+     */
+    protected void setup() throws Exception {
+    }
+}
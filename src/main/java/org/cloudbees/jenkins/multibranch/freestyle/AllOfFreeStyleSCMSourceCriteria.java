@@ -0,0 +1,178 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Descriptor;
+import hudson.model.Items;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Matches heads that match all of several criteria. When {@link CriteriaStatistics} are available the criteria are
+ * evaluated cheapest-to-reject first for the source being probed, otherwise in the configured order.
+ */
+public class AllOfFreeStyleSCMSourceCriteria extends FreeStyleSCMSourceCriteria {
+
+    private final List<FreeStyleSCMSourceCriteria> criteria;
+
+    /**
+     * The key identifying each of {@link #criteria} in {@link CriteriaStatistics}, a digest of its configuration.
+     */
+    private transient String[] keys;
+
+    @DataBoundConstructor
+    public AllOfFreeStyleSCMSourceCriteria(List<FreeStyleSCMSourceCriteria> criteria) {
+        this.criteria = criteria == null
+                ? Collections.<FreeStyleSCMSourceCriteria>emptyList()
+                : new ArrayList<FreeStyleSCMSourceCriteria>(criteria);
+    }
+
+    public List<FreeStyleSCMSourceCriteria> getCriteria() {
+        return Collections.unmodifiableList(criteria);
+    }
+
+    @Override
+    public boolean isHead(@NonNull Probe probe, @NonNull TaskListener listener) throws IOException {
+        return isHead(probe, listener, null, null);
+    }
+
+    /**
+     * Evaluates the criteria, learning from and recording into the supplied statistics.
+     *
+     * @param probe      the probe.
+     * @param listener   the listener.
+     * @param statistics the statistics or {@code null} to evaluate in the configured order.
+     * @param sourceId   the id of the source being probed, required when {@code statistics} is supplied.
+     * @return {@code true} if all the criteria match.
+     * @throws IOException if a criteria could not be evaluated.
+     */
+    /*package*/ boolean isHead(@NonNull Probe probe, @NonNull TaskListener listener,
+                               @CheckForNull final CriteriaStatistics statistics, @CheckForNull final String sourceId)
+            throws IOException {
+        if (statistics == null || sourceId == null) {
+            for (FreeStyleSCMSourceCriteria c : criteria) {
+                if (!c.isHead(probe, listener)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        final String[] keys = getKeys();
+        Integer[] order = new Integer[criteria.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                // criteria without samples go first so that every criteria gets measured
+                return Double.compare(rank(statistics.get(sourceId, keys[a])),
+                        rank(statistics.get(sourceId, keys[b])));
+            }
+        });
+        for (int i : order) {
+            FreeStyleSCMSourceCriteria c = criteria.get(i);
+            long start = System.nanoTime();
+            boolean head = c.isHead(probe, listener);
+            statistics.record(sourceId, keys[i], c.getDescriptor().getDisplayName(), System.nanoTime() - start, !head);
+            if (!head) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double rank(@CheckForNull CriteriaStatistics.Stat stat) {
+        return stat == null ? -1.0 : stat.getRank();
+    }
+
+    private synchronized String[] getKeys() {
+        if (keys == null) {
+            String[] keys = new String[criteria.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = Util.getDigestOf(Items.XSTREAM.toXML(criteria.get(i)));
+            }
+            this.keys = keys;
+        }
+        return keys;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        AllOfFreeStyleSCMSourceCriteria that = (AllOfFreeStyleSCMSourceCriteria) o;
+
+        return criteria.equals(that.criteria);
+    }
+
+    @Override
+    public int hashCode() {
+        return criteria.hashCode();
+    }
+
+    @Extension
+    public static class DescriptorImpl extends FreeStyleSCMSourceCriteriaDescriptor {
+        @Nonnull
+        @Override
+        public String getDisplayName() {
+            return Messages.AllOfFreeStyleSCMSourceCriteria_DisplayName();
+        }
+
+        /**
+         * Accessor for stapler.
+         */
+        @SuppressWarnings("unused") // used by stapler
+        public List<Descriptor<FreeStyleSCMSourceCriteria>> getCriteriaDescriptors() {
+            List<Descriptor<FreeStyleSCMSourceCriteria>> result =
+                    new ArrayList<Descriptor<FreeStyleSCMSourceCriteria>>();
+            for (Descriptor<FreeStyleSCMSourceCriteria> d
+                    : Jenkins.getActiveInstance().getDescriptorList(FreeStyleSCMSourceCriteria.class)) {
+                if (d != this) {
+                    result.add(d);
+                }
+            }
+            return result;
+        }
+    }
+}
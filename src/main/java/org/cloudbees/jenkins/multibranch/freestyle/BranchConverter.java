@@ -0,0 +1,173 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.mapper.Mapper;
+import hudson.scm.SCM;
+import hudson.util.RobustReflectionConverter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import jenkins.branch.Branch;
+import jenkins.branch.BranchProperty;
+import jenkins.scm.api.SCMHead;
+
+/**
+ * Writes the {@link Branch} of a {@link FreeStyleMultiBranchProject.ProjectImpl} as
+ * <pre>
+ * &lt;branch sourceId="..."&gt;
+ *   &lt;head class="..."&gt;...&lt;/head&gt;
+ *   &lt;scm class="..."&gt;...&lt;/scm&gt;
+ *   &lt;properties&gt;...&lt;/properties&gt; &lt;!-- only when there are any --&gt;
+ * &lt;/branch&gt;
+ * </pre>
+ * and reads it back through the {@link Branch} constructor. The previous reflective form is still read, and is
+ * still written should {@link Branch} ever gain state that this converter does not know about. Subclasses such as
+ * {@link Branch.Dead} are always written and read by reflection.
+ */
+/*package*/ class BranchConverter implements Converter {
+
+    /**
+     * The persistent fields of {@link Branch} that the compact form covers.
+     */
+    private static final Set<String> KNOWN_FIELDS =
+            new HashSet<String>(Arrays.asList("sourceId", "head", "scm", "properties"));
+
+    /**
+     * Whether {@link Branch} has no persistent fields beyond {@link #KNOWN_FIELDS}.
+     */
+    private static final boolean COMPACT = isCompactable();
+
+    private final Mapper mapper;
+
+    /**
+     * Handles the reflective form.
+     */
+    private final RobustReflectionConverter reflective;
+
+    /*package*/ BranchConverter(Mapper mapper, RobustReflectionConverter reflective) {
+        this.mapper = mapper;
+        this.reflective = reflective;
+    }
+
+    private static boolean isCompactable() {
+        for (Field field : Branch.class.getDeclaredFields()) {
+            int modifiers = field.getModifiers();
+            if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)
+                    && !KNOWN_FIELDS.contains(field.getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean canConvert(Class type) {
+        // as a local converter we are handed every value of the field, dead branches included
+        return type != null && Branch.class.isAssignableFrom(type);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+        if (!COMPACT || source.getClass() != Branch.class) {
+            reflective.marshal(source, writer, context);
+            return;
+        }
+        Branch branch = (Branch) source;
+        writer.addAttribute("sourceId", branch.getSourceId());
+        writeChild(writer, context, "head", branch.getHead());
+        writeChild(writer, context, "scm", branch.getScm());
+        List<? extends BranchProperty> properties = branch.getProperties();
+        if (!properties.isEmpty()) {
+            writer.startNode("properties");
+            for (BranchProperty property : properties) {
+                writer.startNode(mapper.serializedClass(property.getClass()));
+                context.convertAnother(property);
+                writer.endNode();
+            }
+            writer.endNode();
+        }
+    }
+
+    private void writeChild(HierarchicalStreamWriter writer, MarshallingContext context, String name, Object value) {
+        writer.startNode(name);
+        writer.addAttribute("class", mapper.serializedClass(value.getClass()));
+        context.convertAnother(value);
+        writer.endNode();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+        String sourceId = reader.getAttribute("sourceId");
+        if (sourceId == null) {
+            // the reflective form, as written before this converter existed
+            return reflective.unmarshal(reader, context);
+        }
+        SCMHead head = null;
+        SCM scm = null;
+        List<BranchProperty> properties = new ArrayList<BranchProperty>();
+        while (reader.hasMoreChildren()) {
+            reader.moveDown();
+            String name = reader.getNodeName();
+            if ("head".equals(name)) {
+                head = (SCMHead) readChild(reader, context);
+            } else if ("scm".equals(name)) {
+                scm = (SCM) readChild(reader, context);
+            } else if ("properties".equals(name)) {
+                while (reader.hasMoreChildren()) {
+                    reader.moveDown();
+                    properties.add((BranchProperty) context.convertAnother(null,
+                            mapper.realClass(reader.getNodeName())));
+                    reader.moveUp();
+                }
+            }
+            reader.moveUp();
+        }
+        return new Branch(sourceId, head, scm, properties);
+    }
+
+    private Object readChild(HierarchicalStreamReader reader, UnmarshallingContext context) {
+        return context.convertAnother(null, mapper.realClass(reader.getAttribute("class")));
+    }
+}
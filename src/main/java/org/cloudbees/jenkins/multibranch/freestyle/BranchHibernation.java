@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+
+/**
+ * Hibernates the branch jobs that have been idle for longer than
+ * {@link FreeStyleMultiBranchProject#getHibernateAfterDays()}. A hibernated branch job keeps its name, branch and
+ * status but releases its build steps and cached builds; it is restored from its {@code config.xml} as soon as it is
+ * built, saved or accessed through the UI. The steps that declare dependencies between jobs are kept so that
+ * rebuilding the dependency graph does not restore every hibernated job.
+ */
+@Extension
+public class BranchHibernation extends AsyncPeriodicWork {
+
+    /**
+     * The hibernated branch jobs with the estimated heap that each released.
+     */
+    private static final Map<FreeStyleMultiBranchProject.ProjectImpl, Long> hibernated =
+            new WeakHashMap<FreeStyleMultiBranchProject.ProjectImpl, Long>();
+
+    public BranchHibernation() {
+        super("Freestyle multibranch hibernation");
+    }
+
+    /**
+     * Returns the number of hibernated branch jobs.
+     *
+     * @return the number of hibernated branch jobs.
+     */
+    public static int getHibernatedCount() {
+        synchronized (hibernated) {
+            return hibernated.size();
+        }
+    }
+
+    /**
+     * Returns an estimate of the heap released by hibernation.
+     *
+     * @return the estimate in bytes.
+     */
+    public static long getEstimatedBytesSaved() {
+        long total = 0;
+        synchronized (hibernated) {
+            for (Long bytes : hibernated.values()) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Records that a branch job has been restored.
+     *
+     * @param project the branch job.
+     */
+    /*package*/ static void onWoken(@NonNull FreeStyleMultiBranchProject.ProjectImpl project) {
+        synchronized (hibernated) {
+            hibernated.remove(project);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.HOURS.toMillis(1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (FreeStyleMultiBranchProject project : jenkins.getAllItems(FreeStyleMultiBranchProject.class)) {
+            if (project.getHibernateAfterDays() <= 0) {
+                continue;
+            }
+            long threshold = TimeUnit.DAYS.toMillis(project.getHibernateAfterDays());
+            BranchStatusIndex index = project.getStatusIndex();
+            int count = 0;
+            for (FreeStyleMultiBranchProject.ProjectImpl job : project.getItems()) {
+                if (job.isHibernated()) {
+                    continue;
+                }
+                // judge idleness from the index so that we do not load builds of jobs we leave alone
+                BranchStatusIndex.Entry entry = index.get(job.getName());
+                if (entry == null || entry.getNumber() == 0 || entry.isBuilding()
+                        || now - entry.getTimestamp() - entry.getDuration() < threshold) {
+                    continue;
+                }
+                long bytes = job.hibernate();
+                if (bytes > 0) {
+                    synchronized (hibernated) {
+                        hibernated.put(job, bytes);
+                    }
+                    count++;
+                }
+            }
+            if (count > 0) {
+                listener.getLogger().format("Hibernated %d branch jobs of %s%n", count, project.getFullName());
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Saveable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import jenkins.branch.Branch;
+import jenkins.branch.BranchProperty;
+
+/**
+ * Shares the immutable parts of the {@link Branch} of sibling branch jobs: the source id, which is the same string for
+ * every branch of a source, the {@link BranchProperty} instances that have no state, such as
+ * {@link jenkins.branch.NoTriggerBranchProperty}, of which each branch otherwise gets its own copy, and the strings
+ * held by the {@link hudson.scm.SCM} of the branch, such as the remote URL, the credentials id and the refspecs, which
+ * are the same for every branch of a source.
+ * <p>
+ * Anything that could be modified, such as the {@link hudson.scm.SCM} of the branch or a property with fields, is
+ * never shared. The supplied {@link Branch} is never modified either; an equivalent new instance is returned instead.
+ * The only exception is that the strings of its {@link hudson.scm.SCM}, which belongs to this branch alone, are
+ * replaced by equal shared instances, which is not a change anything can observe.
+ */
+/*package*/ class BranchInterner {
+
+    /**
+     * Whether the instances of a class have no state and so can be shared.
+     */
+    private static final ClassValue<Boolean> STATELESS = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    };
+
+    /**
+     * The persisted instance fields of a class and its superclasses, up to the platform classes, that hold references.
+     */
+    private static final ClassValue<Field[]> FIELDS = new ClassValue<Field[]>() {
+        @Override
+        protected Field[] computeValue(Class<?> type) {
+            List<Field> fields = new ArrayList<Field>();
+            for (Class<?> c = type; c != null && !isPlatform(c); c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)
+                            || field.getType().isPrimitive()) {
+                        continue;
+                    }
+                    try {
+                        field.setAccessible(true);
+                    } catch (SecurityException e) {
+                        continue;
+                    }
+                    fields.add(field);
+                }
+            }
+            return fields.toArray(new Field[fields.size()]);
+        }
+    };
+
+    /**
+     * The shared strings.
+     */
+    private final Interner<String> strings = Interners.newWeakInterner();
+
+    /**
+     * The shared stateless properties keyed by their class.
+     */
+    private final ConcurrentMap<Class<?>, BranchProperty> properties =
+            new ConcurrentHashMap<Class<?>, BranchProperty>();
+
+    /**
+     * Returns a {@link Branch} equivalent to the supplied one that shares its immutable parts with its siblings.
+     *
+     * @param branch the branch.
+     * @return the equivalent branch, which may be the supplied instance.
+     */
+    @NonNull
+    public Branch intern(@NonNull Branch branch) {
+        if (branch.getScm() != null) {
+            internStrings(branch.getScm());
+        }
+        String sourceId = branch.getSourceId() == null ? null : strings.intern(branch.getSourceId());
+        boolean changed = sourceId != branch.getSourceId();
+        List<BranchProperty> shared = new ArrayList<BranchProperty>(branch.getProperties().size());
+        for (BranchProperty property : branch.getProperties()) {
+            BranchProperty p = intern(property);
+            changed = changed || p != property;
+            shared.add(p);
+        }
+        return changed ? new Branch(sourceId, branch.getHead(), branch.getScm(), shared) : branch;
+    }
+
+    /**
+     * Returns the shared equivalent of the supplied property if it has no state.
+     *
+     * @param property the property.
+     * @return the shared equivalent or the supplied property if it cannot be shared.
+     */
+    @NonNull
+    /*package*/ BranchProperty intern(@NonNull BranchProperty property) {
+        if (!STATELESS.get(property.getClass())) {
+            return property;
+        }
+        BranchProperty shared = properties.putIfAbsent(property.getClass(), property);
+        return shared == null ? property : shared;
+    }
+
+    /**
+     * Replaces the strings reachable from an object by their shared equal instances. Collections are walked but their
+     * string elements are left alone, as the collection may not allow replacing them. Anything {@link Saveable}, such
+     * as an item or a descriptor, is not part of the configuration and is not walked.
+     *
+     * @param root the object, which must not be shared with other branches.
+     */
+    /*package*/ void internStrings(@NonNull Object root) {
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        Deque<Object> pending = new ArrayDeque<Object>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            Object o = pending.poll();
+            if (!seen.add(o) || o instanceof Saveable || o instanceof Enum) {
+                continue;
+            }
+            if (o instanceof Object[]) {
+                Object[] array = (Object[]) o;
+                for (int i = 0; i < array.length; i++) {
+                    if (array[i] instanceof String) {
+                        array[i] = strings.intern((String) array[i]);
+                    } else if (array[i] != null) {
+                        pending.add(array[i]);
+                    }
+                }
+            } else if (o instanceof Collection) {
+                addReferences(pending, (Collection<?>) o);
+            } else if (o instanceof Map) {
+                addReferences(pending, ((Map<?, ?>) o).keySet());
+                addReferences(pending, ((Map<?, ?>) o).values());
+            } else if (!isPlatform(o.getClass())) {
+                for (Field field : FIELDS.get(o.getClass())) {
+                    try {
+                        Object value = field.get(o);
+                        if (value instanceof String) {
+                            String shared = strings.intern((String) value);
+                            if (shared != value) {
+                                field.set(o, shared);
+                            }
+                        } else if (value != null) {
+                            pending.add(value);
+                        }
+                    } catch (IllegalAccessException e) {
+                        // leave it alone
+                    }
+                }
+            }
+        }
+    }
+
+    private static void addReferences(Deque<Object> pending, Collection<?> values) {
+        for (Object value : values) {
+            if (value != null && !(value instanceof String)) {
+                pending.add(value);
+            }
+        }
+    }
+
+    private static boolean isPlatform(Class<?> type) {
+        String name = type.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.");
+    }
+}
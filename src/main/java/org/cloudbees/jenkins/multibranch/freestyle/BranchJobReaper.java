@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Deletes the directories of removed branch jobs in the background. When a large number of branches disappear
+ * upstream the indexing thread only has to move each job directory aside, which is a cheap rename, rather than
+ * recursively delete the job and all its builds.
+ */
+/*package*/ final class BranchJobReaper {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(BranchJobReaper.class.getName());
+
+    /**
+     * The directory, relative to the {@link FreeStyleMultiBranchProject} root, that removed branch jobs are moved to.
+     */
+    /*package*/ static final String TRASH_DIR = "removed-branches";
+
+    /**
+     * A single low priority thread, so that deletions do not compete with builds for I/O.
+     */
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new NamingThreadFactory(new ThreadFactory() {
+                private final ThreadFactory delegate = new DaemonThreadFactory();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = delegate.newThread(r);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            }, "FreeStyleMultiBranchProject.reaper"));
+
+    private BranchJobReaper() {
+    }
+
+    /**
+     * Moves the root directory of a branch job aside and deletes it in the background.
+     *
+     * @param project the branch job.
+     * @return {@code true} if the directory was moved, {@code false} if it has to be deleted in place.
+     */
+    /*package*/ static boolean reap(@NonNull FreeStyleMultiBranchProject.ProjectImpl project) {
+        File rootDir = project.getRootDir();
+        if (!rootDir.isDirectory()) {
+            return false;
+        }
+        File trash = new File(project.getParent().getRootDir(), TRASH_DIR);
+        if (!trash.isDirectory() && !trash.mkdirs()) {
+            return false;
+        }
+        File target = new File(trash, rootDir.getName() + "." + System.currentTimeMillis());
+        if (!rootDir.renameTo(target)) {
+            return false;
+        }
+        delete(target);
+        return true;
+    }
+
+    /**
+     * Queues the deletion of a directory.
+     *
+     * @param dir the directory.
+     */
+    private static void delete(final File dir) {
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Util.deleteRecursive(dir);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not delete removed branch job directory " + dir, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Resumes the deletions that were still pending when Jenkins was last stopped.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    @SuppressWarnings("unused") // invoked by Jenkins
+    public static void resumePendingDeletions() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return;
+        }
+        for (FreeStyleMultiBranchProject project : jenkins.getAllItems(FreeStyleMultiBranchProject.class)) {
+            File[] pending = new File(project.getRootDir(), TRASH_DIR).listFiles();
+            if (pending != null) {
+                for (File dir : pending) {
+                    delete(dir);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.QueueListener;
+import hudson.slaves.WorkspaceList;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fetches the new revisions of a branch into its existing workspace while its build waits in the queue, so that the
+ * checkout only has to do a local update once an executor is free.
+ * <p>
+ * The target is the node that built the branch last, as that is where {@link FreeStyleMultiBranchProject} keeps the
+ * branch workspace. Pre-fetching is best effort: it is enabled per project, only applies to workspaces that are Git
+ * clones and any failure is left for the checkout to deal with. A pre-fetch holds the {@link WorkspaceList} lease of
+ * the workspace, so it is skipped while a build uses the workspace, and a starting build only waits briefly for it
+ * before cancelling it.
+ */
+public final class BranchPrefetcher {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(BranchPrefetcher.class.getName());
+
+    /**
+     * How long a fetch may take.
+     */
+    private static final long FETCH_TIMEOUT_MINUTES = 10;
+
+    /**
+     * How long a starting build waits for a pre-fetch into its workspace to complete before cancelling it, the
+     * checkout fetches whatever is still missing.
+     */
+    /*package*/ static /* not final so it can be tweaked from the script console */ long AWAIT_SECONDS =
+            Long.getLong(BranchPrefetcher.class.getName() + ".awaitSeconds", 10);
+
+    /**
+     * How long a starting build waits for a cancelled pre-fetch to release the workspace.
+     */
+    private static final long CANCEL_SECONDS = 10;
+
+    /**
+     * The command that fetches into a workspace.
+     */
+    /*package*/ static /* not final so that tests can replace it */ String[] FETCH_COMMAND =
+            {"git", "fetch", "--quiet", "--all"};
+
+    /**
+     * Pre-fetches in progress keyed by workspace.
+     */
+    private static final ConcurrentMap<String, Prefetch> inProgress = new ConcurrentHashMap<String, Prefetch>();
+
+    /**
+     * The full names of the branch jobs whose pre-fetch has been requested but not yet looked into.
+     */
+    private static final Set<String> requested = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * A small pool, pre-fetching is mostly waiting on the agents.
+     */
+    private static final ExecutorService executor = Executors.newFixedThreadPool(4,
+            new NamingThreadFactory(new DaemonThreadFactory(), "FreeStyleMultiBranchProject.prefetch"));
+
+    private BranchPrefetcher() {
+    }
+
+    /**
+     * Requests a pre-fetch for a queued build if it is enabled. Called with the queue lock held, so everything that
+     * may touch the disk, such as loading the last build to find its node, is left to {@link #executor}.
+     *
+     * @param project the branch job.
+     */
+    /*package*/ static void request(@NonNull final FreeStyleMultiBranchProject.ProjectImpl project) {
+        FreeStyleMultiBranchProject parent = project.getParent();
+        if (parent == null || !parent.isPrefetch()) {
+            return;
+        }
+        final String name = project.getFullName();
+        if (!requested.add(name)) {
+            return;
+        }
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                requested.remove(name);
+                prefetch(project);
+            }
+        });
+    }
+
+    /**
+     * Starts a pre-fetch for a queued build if a warm workspace exists.
+     *
+     * @param project the branch job.
+     */
+    /*package*/ static void prefetch(@NonNull final FreeStyleMultiBranchProject.ProjectImpl project) {
+        if (project.isBuilding()) {
+            return;
+        }
+        final Node node = project.getLastBuiltOn();
+        if (node == null) {
+            return;
+        }
+        final Computer computer = node.toComputer();
+        if (computer == null || computer.isOffline()) {
+            return;
+        }
+        final FilePath workspace = FreeStyleMultiBranchProject.getBranchWorkspace(node, project);
+        if (workspace == null) {
+            return;
+        }
+        final String key = workspace.getRemote() + "@" + node.getNodeName();
+        if (inProgress.containsKey(key)) {
+            return;
+        }
+        synchronized (inProgress) {
+            if (inProgress.containsKey(key)) {
+                return;
+            }
+            final Prefetch prefetch = new Prefetch();
+            inProgress.put(key, prefetch);
+            prefetch.future = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        WorkspaceList.Lease lease = computer.getWorkspaceList().tryAcquire(workspace);
+                        if (lease == null) {
+                            // a build is using the workspace
+                            return;
+                        }
+                        try {
+                            fetch(node, workspace, new LogTaskListener(LOGGER, Level.FINE));
+                        } finally {
+                            lease.release();
+                        }
+                    } catch (IOException e) {
+                        LOGGER.log(Level.FINE, "Could not pre-fetch " + project.getFullName(), e);
+                    } catch (InterruptedException e) {
+                        LOGGER.log(Level.FINE, "Interrupted pre-fetch of " + project.getFullName(), e);
+                    } finally {
+                        inProgress.remove(key, prefetch);
+                        prefetch.done.countDown();
+                    }
+                }
+            });
+        }
+    }
+
+    private static void fetch(Node node, FilePath workspace, TaskListener listener)
+            throws IOException, InterruptedException {
+        if (!workspace.child(".git").exists()) {
+            return;
+        }
+        long start = System.nanoTime();
+        int rc = node.createLauncher(listener).launch()
+                .cmds(FETCH_COMMAND)
+                .pwd(workspace)
+                .stdout(listener)
+                .start()
+                .joinWithTimeout(FETCH_TIMEOUT_MINUTES, TimeUnit.MINUTES, listener);
+        LOGGER.log(Level.FINE, "Pre-fetch into {0} on {1} exited with {2} after {3}ms",
+                new Object[]{workspace.getRemote(), node.getNodeName(), rc,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)});
+    }
+
+    /**
+     * Waits for a pre-fetch into the supplied workspace to release the workspace so that the build gets the warm
+     * workspace rather than a fresh {@code @2} one. A pre-fetch that takes longer than {@link #AWAIT_SECONDS} is
+     * cancelled.
+     *
+     * @param node      the node.
+     * @param workspace the workspace.
+     * @throws InterruptedException if interrupted.
+     */
+    /*package*/ static void await(@NonNull Node node, @CheckForNull FilePath workspace) throws InterruptedException {
+        if (workspace == null) {
+            return;
+        }
+        Prefetch prefetch = inProgress.get(workspace.getRemote() + "@" + node.getNodeName());
+        if (prefetch == null || prefetch.done.await(AWAIT_SECONDS, TimeUnit.SECONDS)) {
+            return;
+        }
+        LOGGER.log(Level.FINE, "Cancelling the pre-fetch into {0} on {1}",
+                new Object[]{workspace.getRemote(), node.getNodeName()});
+        Future<?> future = prefetch.future;
+        if (future != null) {
+            future.cancel(true);
+        }
+        if (!prefetch.done.await(CANCEL_SECONDS, TimeUnit.SECONDS)) {
+            LOGGER.log(Level.WARNING, "The pre-fetch into {0} on {1} did not stop, the build will use another "
+                    + "workspace", new Object[]{workspace.getRemote(), node.getNodeName()});
+        }
+    }
+
+    /**
+     * Returns whether a pre-fetch into the supplied workspace is in progress.
+     *
+     * @param node      the node.
+     * @param workspace the workspace.
+     * @return {@code true} if a pre-fetch is queued or running.
+     */
+    /*package*/ static boolean isInProgress(@NonNull Node node, @NonNull FilePath workspace) {
+        return inProgress.containsKey(workspace.getRemote() + "@" + node.getNodeName());
+    }
+
+    /**
+     * A pre-fetch in progress.
+     */
+    private static final class Prefetch {
+        /**
+         * Counted down once the pre-fetch has released the workspace.
+         */
+        private final CountDownLatch done = new CountDownLatch(1);
+        /**
+         * The pre-fetch.
+         */
+        private volatile Future<?> future;
+    }
+
+    /**
+     * Triggers pre-fetches for branch jobs entering the queue.
+     */
+    @Extension
+    public static class QueueListenerImpl extends QueueListener {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onEnterWaiting(Queue.WaitingItem wi) {
+            if (wi.task instanceof FreeStyleMultiBranchProject.ProjectImpl) {
+                request((FreeStyleMultiBranchProject.ProjectImpl) wi.task);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onEnterBlocked(Queue.BlockedItem bi) {
+            if (bi.task instanceof FreeStyleMultiBranchProject.ProjectImpl) {
+                request((FreeStyleMultiBranchProject.ProjectImpl) bi.task);
+            }
+        }
+    }
+}
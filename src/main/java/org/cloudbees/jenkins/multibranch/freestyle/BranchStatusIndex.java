@@ -0,0 +1,552 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.BulkChange;
+import hudson.Extension;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.BallColor;
+import hudson.model.Item;
+import hudson.model.Items;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.util.CaseInsensitiveComparator;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import jenkins.scm.api.SCMRevision;
+import jenkins.scm.api.SCMRevisionAction;
+import jenkins.util.Timer;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * A compact per-branch record of the last build of each {@link FreeStyleMultiBranchProject.ProjectImpl} so that the
+ * folder page and its REST API can be rendered without loading any build records.
+ * <p>
+ * The index is kept up to date by {@link RunListenerImpl} and {@link ItemListenerImpl} and is persisted in
+ * {@code branch-status.xml} alongside the folder's {@code config.xml}.
+ */
+public class BranchStatusIndex implements Saveable {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(BranchStatusIndex.class.getName());
+
+    /**
+     * The name of the file that the index is persisted in.
+     */
+    /*package*/ static final String FILE_NAME = "branch-status.xml";
+
+    /**
+     * How long changes are collected before they are written.
+     */
+    private static final long SAVE_DELAY_MILLIS = 1000L;
+
+    /**
+     * The entries keyed by {@link FreeStyleMultiBranchProject.ProjectImpl#getName()}, in the same case-insensitive
+     * order as the folder lists its items.
+     */
+    private TreeMap<String, Entry> entries = newEntries();
+
+    /**
+     * The folder that owns this index.
+     */
+    private transient FreeStyleMultiBranchProject owner;
+
+    /**
+     * Whether a save has been scheduled but not yet performed.
+     */
+    private transient boolean savePending;
+
+    /**
+     * Loads the index for the supplied folder, seeding it from the branch jobs the first time.
+     *
+     * @param owner the folder.
+     * @return the index.
+     */
+    @NonNull
+    /*package*/ static BranchStatusIndex load(@NonNull FreeStyleMultiBranchProject owner) {
+        XmlFile file = getDataFile(owner);
+        BranchStatusIndex index = null;
+        if (file.exists()) {
+            try {
+                index = (BranchStatusIndex) file.read();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not read " + file + ", rebuilding from branch jobs", e);
+            } catch (ClassCastException e) {
+                LOGGER.log(Level.WARNING, "Unexpected content in " + file + ", rebuilding from branch jobs", e);
+            }
+        }
+        if (index == null) {
+            index = new BranchStatusIndex();
+            index.owner = owner;
+            index.rebuild();
+        } else {
+            index.owner = owner;
+            if (index.entries == null || !(index.entries.comparator() instanceof CaseInsensitiveComparator)) {
+                // written before the index was ordered like the folder
+                TreeMap<String, Entry> entries = newEntries();
+                if (index.entries != null) {
+                    entries.putAll(index.entries);
+                }
+                index.entries = entries;
+            }
+            // any build that was in progress when we were last saved has long since been aborted
+            synchronized (index) {
+                for (Map.Entry<String, Entry> e : index.entries.entrySet()) {
+                    if (e.getValue().isBuilding()) {
+                        e.setValue(e.getValue().withBuilding(false));
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    @NonNull
+    private static TreeMap<String, Entry> newEntries() {
+        return new TreeMap<String, Entry>(CaseInsensitiveComparator.INSTANCE);
+    }
+
+    /**
+     * The file that the index of the supplied folder lives in.
+     *
+     * @param owner the folder.
+     * @return the file.
+     */
+    @NonNull
+    private static XmlFile getDataFile(@NonNull FreeStyleMultiBranchProject owner) {
+        return new XmlFile(Items.XSTREAM, new File(owner.getRootDir(), FILE_NAME));
+    }
+
+    /**
+     * Discards the current entries and re-creates them from the build records of the branch jobs. This is the
+     * expensive path that the index exists to avoid, so it is only used when there is no persisted index.
+     */
+    public void rebuild() {
+        TreeMap<String, Entry> fresh = newEntries();
+        for (FreeStyleMultiBranchProject.ProjectImpl project : owner.getItems()) {
+            FreeStyleMultiBranchProject.BuildImpl last = project.getLastBuild();
+            fresh.put(project.getName(), last == null ? new Entry(project.getName()) : Entry.of(last));
+        }
+        synchronized (this) {
+            entries.clear();
+            entries.putAll(fresh);
+        }
+        saveQuietly();
+    }
+
+    /**
+     * Returns the entry for the named branch job.
+     *
+     * @param name the {@link FreeStyleMultiBranchProject.ProjectImpl#getName()}.
+     * @return the entry or {@code null} if the branch job has never been seen.
+     */
+    @CheckForNull
+    public synchronized Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Returns a snapshot of all the entries ordered by branch job name.
+     *
+     * @return the entries.
+     */
+    @NonNull
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * Records that a build has started.
+     *
+     * @param run the build.
+     */
+    /*package*/ void onStarted(@NonNull FreeStyleMultiBranchProject.BuildImpl run) {
+        Entry entry = Entry.of(run).withBuilding(true);
+        synchronized (this) {
+            Entry current = entries.get(entry.getName());
+            if (current != null && current.getNumber() > run.getNumber()) {
+                return;
+            }
+            // keep reporting the last completed build, all of it, until the running build completes
+            entries.put(entry.getName(),
+                    current == null || current.getNumber() == 0 ? entry : current.withBuilding(true));
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Records that a build has completed.
+     *
+     * @param run the build.
+     */
+    /*package*/ void onCompleted(@NonNull FreeStyleMultiBranchProject.BuildImpl run) {
+        // the run is still in post production when the listeners are notified
+        Entry entry = Entry.of(run).withBuilding(false);
+        synchronized (this) {
+            Entry current = entries.get(entry.getName());
+            if (current != null && current.getNumber() > run.getNumber()) {
+                return;
+            }
+            entries.put(entry.getName(), entry);
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Records that a build is about to be deleted, falling back to the build before it if it is the one reported.
+     *
+     * @param run the build.
+     */
+    /*package*/ void onDeleted(@NonNull FreeStyleMultiBranchProject.BuildImpl run) {
+        String name = run.getParent().getName();
+        synchronized (this) {
+            Entry current = entries.get(name);
+            if (current == null || current.getNumber() != run.getNumber()) {
+                return;
+            }
+        }
+        // the run is still in the build list while the listeners are notified
+        FreeStyleMultiBranchProject.BuildImpl previous = run.getPreviousCompletedBuild();
+        Entry replacement = previous == null ? new Entry(name) : Entry.of(previous);
+        synchronized (this) {
+            Entry current = entries.get(name);
+            if (current == null || current.getNumber() != run.getNumber()) {
+                return;
+            }
+            entries.put(name, replacement.withBuilding(current.isBuilding()));
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Starts tracking a branch job that has not been built yet.
+     *
+     * @param name the {@link FreeStyleMultiBranchProject.ProjectImpl#getName()}.
+     */
+    /*package*/ void add(String name) {
+        synchronized (this) {
+            if (entries.containsKey(name)) {
+                return;
+            }
+            entries.put(name, new Entry(name));
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Collects at most {@code limit} entries that sort after {@code after} and match the supplied filters. Only the
+     * page itself is copied, so the cost of a request does not grow with the number of branch jobs.
+     *
+     * @param after  the name of the last entry of the previous page or {@code null} to start from the beginning.
+     * @param limit  the maximum number of entries to return.
+     * @param name   the pattern that {@link Entry#getName()} must match or {@code null} to match all.
+     * @param result the {@link Entry#getResult()} to match or {@code null} to match all.
+     * @return the matching entries in name order.
+     */
+    @NonNull
+    public synchronized List<Entry> page(@CheckForNull String after, int limit, @CheckForNull Pattern name,
+                                         @CheckForNull Result result) {
+        List<Entry> page = new ArrayList<Entry>(Math.min(limit, entries.size()));
+        for (Entry entry : (after == null ? entries : entries.tailMap(after, false)).values()) {
+            if (page.size() >= limit) {
+                break;
+            }
+            if (name != null && !name.matcher(entry.getName()).matches()) {
+                continue;
+            }
+            if (result != null && result != entry.getResult()) {
+                continue;
+            }
+            page.add(entry);
+        }
+        return page;
+    }
+
+    /**
+     * Forgets a branch job.
+     *
+     * @param name the {@link FreeStyleMultiBranchProject.ProjectImpl#getName()}.
+     */
+    /*package*/ void remove(String name) {
+        synchronized (this) {
+            if (entries.remove(name) == null) {
+                return;
+            }
+        }
+        scheduleSave();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void save() throws IOException {
+        if (owner == null || BulkChange.contains(this)) {
+            return;
+        }
+        XmlFile file = getDataFile(owner);
+        synchronized (this) {
+            file.write(this);
+        }
+        SaveableListener.fireOnChange(this, file);
+    }
+
+    /**
+     * Coalesces the saves of a burst of changes, such as a mass deletion of branch jobs, into a single write.
+     */
+    private void scheduleSave() {
+        synchronized (this) {
+            if (savePending) {
+                return;
+            }
+            savePending = true;
+        }
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BranchStatusIndex.this) {
+                    savePending = false;
+                }
+                saveQuietly();
+            }
+        }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not save branch status index of " + owner.getFullName(), e);
+        }
+    }
+
+    /**
+     * The status of a single branch job.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Entry {
+        /**
+         * The {@link FreeStyleMultiBranchProject.ProjectImpl#getName()}.
+         */
+        private final String name;
+        /**
+         * The number of the last completed build, of the running build if none has completed, or {@code 0} if never
+         * built.
+         */
+        private final int number;
+        /**
+         * The {@link SCMRevision} that the last build was started for or {@code null}.
+         */
+        private final String revision;
+        /**
+         * The result of the last completed build or {@code null}.
+         */
+        private final Result result;
+        /**
+         * The start time of the last build, the same build as {@link #number}.
+         */
+        private final long timestamp;
+        /**
+         * The duration of the last completed build.
+         */
+        private final long duration;
+        /**
+         * Whether a build is in progress.
+         */
+        private final boolean building;
+
+        /*package*/ Entry(String name) {
+            this(name, 0, null, null, 0L, 0L, false);
+        }
+
+        /*package*/ Entry(String name, int number, String revision, Result result, long timestamp, long duration,
+                          boolean building) {
+            this.name = name;
+            this.number = number;
+            this.revision = revision;
+            this.result = result;
+            this.timestamp = timestamp;
+            this.duration = duration;
+            this.building = building;
+        }
+
+        /*package*/ static Entry of(Run<?, ?> run) {
+            SCMRevisionAction action = run.getAction(SCMRevisionAction.class);
+            SCMRevision revision = action == null ? null : action.getRevision();
+            return new Entry(run.getParent().getName(), run.getNumber(), revision == null ? null : revision.toString(),
+                    run.getResult(), run.getStartTimeInMillis(), run.getDuration(), run.isBuilding());
+        }
+
+        /*package*/ Entry withBuilding(boolean building) {
+            return new Entry(name, number, revision, result, timestamp, duration, building);
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public int getNumber() {
+            return number;
+        }
+
+        @Exported
+        @CheckForNull
+        public String getRevision() {
+            return revision;
+        }
+
+        @Exported
+        @CheckForNull
+        public Result getResult() {
+            return result;
+        }
+
+        @Exported
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        @Exported
+        public long getDuration() {
+            return duration;
+        }
+
+        @Exported
+        public boolean isBuilding() {
+            return building;
+        }
+
+        /**
+         * Gets the string that says how long since the last build started.
+         *
+         * @return string like "3 minutes" "1 day" etc.
+         */
+        public String getTimestampString() {
+            return Util.getPastTimeString(System.currentTimeMillis() - timestamp);
+        }
+
+        /**
+         * Gets the string that says how long the last build took.
+         *
+         * @return string like "3 minutes" "1 day" etc.
+         */
+        public String getDurationString() {
+            return Util.getTimeSpanString(duration);
+        }
+
+        /**
+         * The ball color, computed without loading the build.
+         *
+         * @return the ball color.
+         */
+        @Exported
+        public BallColor getColor() {
+            BallColor color = result == null ? BallColor.NOTBUILT : result.color;
+            return building ? color.anime() : color;
+        }
+    }
+
+    /**
+     * Keeps the index in step with builds.
+     */
+    @Extension
+    public static class RunListenerImpl extends RunListener<FreeStyleMultiBranchProject.BuildImpl> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onStarted(FreeStyleMultiBranchProject.BuildImpl run, TaskListener listener) {
+            run.getParent().getParent().getStatusIndex().onStarted(run);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onCompleted(FreeStyleMultiBranchProject.BuildImpl run, @NonNull TaskListener listener) {
+            run.getParent().getParent().getStatusIndex().onCompleted(run);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onDeleted(FreeStyleMultiBranchProject.BuildImpl run) {
+            run.getParent().getParent().getStatusIndex().onDeleted(run);
+        }
+    }
+
+    /**
+     * Adds entries for new branch jobs and drops entries for deleted branch jobs.
+     */
+    @Extension
+    public static class ItemListenerImpl extends ItemListener {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onCreated(Item item) {
+            if (item instanceof FreeStyleMultiBranchProject.ProjectImpl) {
+                FreeStyleMultiBranchProject.ProjectImpl project = (FreeStyleMultiBranchProject.ProjectImpl) item;
+                project.getParent().getStatusIndex().add(project.getName());
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onDeleted(Item item) {
+            if (item instanceof FreeStyleMultiBranchProject.ProjectImpl) {
+                FreeStyleMultiBranchProject.ProjectImpl project = (FreeStyleMultiBranchProject.ProjectImpl) item;
+                project.getParent().getStatusIndex().remove(project.getName());
+            }
+        }
+    }
+}
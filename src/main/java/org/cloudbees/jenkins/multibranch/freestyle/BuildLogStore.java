@@ -0,0 +1,530 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.console.AnnotatedLargeText;
+import hudson.console.PlainTextConsoleOutputStream;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Stores the console log of a finished {@link FreeStyleMultiBranchProject.BuildImpl} as {@code log.gz}, a single
+ * gzip member whose deflate stream is fully flushed at the end of every block, with a small {@code log.idx} holding
+ * the offsets and first line of each block.
+ * <p>
+ * A full flush resets the compressor, so decompression can start at any block: {@link #writeRange},
+ * {@link #writeLines} and the plain progressive log (see {@link LogText}) only decompress the blocks they need. To
+ * everything else {@code log.gz} is an ordinary gzip file whose trailer holds the length of the whole log, which
+ * Jenkins relies on to truncate the console of large logs. Builds write their log uncompressed as usual, which keeps
+ * the overhead off the build; the log is compressed once the build is finalized, on a low priority background
+ * thread.
+ */
+/*package*/ final class BuildLogStore {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(BuildLogStore.class.getName());
+
+    /**
+     * The uncompressed size of a block.
+     */
+    /*package*/ static final int BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * The name of the compressed log file, as recognized by {@link Run#getLogFile()}.
+     */
+    /*package*/ static final String LOG_FILE = "log.gz";
+
+    /**
+     * The name of the index file.
+     */
+    /*package*/ static final String INDEX_FILE = "log.idx";
+
+    private static final int MAGIC = 0x464d424c; // FMBL
+
+    private static final int VERSION = 1;
+
+    /**
+     * A gzip member header for a deflate stream without file name, time stamp or flags.
+     */
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    /**
+     * A single low priority thread, so that compression does not compete with builds for CPU.
+     */
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new NamingThreadFactory(new ThreadFactory() {
+                private final ThreadFactory delegate = new DaemonThreadFactory();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = delegate.newThread(r);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            }, "FreeStyleMultiBranchProject.logCompressor"));
+
+    private BuildLogStore() {
+    }
+
+    /**
+     * Compresses the plain log of a build into {@link #LOG_FILE} and {@link #INDEX_FILE} and deletes the plain log.
+     *
+     * @param rootDir the build directory.
+     * @throws IOException if the log could not be compressed, in which case the plain log is left in place.
+     */
+    /*package*/ static void compress(@NonNull File rootDir) throws IOException {
+        File raw = new File(rootDir, "log");
+        if (!raw.isFile()) {
+            return;
+        }
+        File gz = new File(rootDir, LOG_FILE);
+        File idx = new File(rootDir, INDEX_FILE);
+        File gzTmp = new File(rootDir, LOG_FILE + ".tmp");
+        File idxTmp = new File(rootDir, INDEX_FILE + ".tmp");
+        Index index = new Index();
+        byte[] block = new byte[BLOCK_SIZE];
+        byte[] buf = new byte[BLOCK_SIZE];
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        CRC32 crc = new CRC32();
+        InputStream in = new BufferedInputStream(new FileInputStream(raw));
+        try {
+            CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(gzTmp)));
+            try {
+                out.write(GZIP_HEADER);
+                long lines = 0;
+                long offset = 0;
+                int n;
+                while ((n = IOUtils.read(in, block)) > 0) {
+                    index.add(offset, out.getByteCount(), lines);
+                    crc.update(block, 0, n);
+                    deflater.setInput(block, 0, n);
+                    int c;
+                    do {
+                        // the full flush is what lets decompression start at the next block
+                        c = deflater.deflate(buf, 0, buf.length, Deflater.FULL_FLUSH);
+                        out.write(buf, 0, c);
+                    } while (c == buf.length);
+                    for (int i = 0; i < n; i++) {
+                        if (block[i] == '\n') {
+                            lines++;
+                        }
+                    }
+                    offset += n;
+                }
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.write(buf, 0, deflater.deflate(buf));
+                }
+                writeIntLE(out, crc.getValue());
+                writeIntLE(out, offset);
+                index.totalBytes = offset;
+                index.totalLines = lines;
+            } finally {
+                out.close();
+            }
+        } finally {
+            deflater.end();
+            in.close();
+        }
+        index.write(idxTmp);
+        // readers only trust the log once the index is there, so the index goes last
+        if (!gzTmp.renameTo(gz) || !idxTmp.renameTo(idx)) {
+            gz.delete();
+            idxTmp.delete();
+            gzTmp.delete();
+            throw new IOException("Could not move the compressed log into place in " + rootDir);
+        }
+        if (!raw.delete()) {
+            LOGGER.log(Level.WARNING, "Could not delete {0} after compressing it", raw);
+        }
+    }
+
+    private static void writeIntLE(OutputStream out, long value) throws IOException {
+        out.write((int) value & 0xff);
+        out.write((int) (value >> 8) & 0xff);
+        out.write((int) (value >> 16) & 0xff);
+        out.write((int) (value >> 24) & 0xff);
+    }
+
+    /**
+     * Returns whether the log of a build has been compressed.
+     *
+     * @param run the build.
+     * @return {@code true} if the log has been compressed.
+     */
+    /*package*/ static boolean isCompressed(@NonNull Run<?, ?> run) {
+        return new File(run.getRootDir(), INDEX_FILE).isFile();
+    }
+
+    /**
+     * Returns the length of the uncompressed log of a build.
+     *
+     * @param run the build.
+     * @return the length.
+     * @throws IOException if the log could not be read.
+     */
+    /*package*/ static long length(@NonNull Run<?, ?> run) throws IOException {
+        File idx = new File(run.getRootDir(), INDEX_FILE);
+        Index index = Index.read(idx);
+        if (index == null) {
+            File raw = new File(run.getRootDir(), "log");
+            long length = raw.length();
+            if (length > 0 || raw.isFile()) {
+                return length;
+            }
+            // compressed since we looked
+            index = Index.read(idx);
+        }
+        return index == null ? 0L : index.totalBytes;
+    }
+
+    /**
+     * Writes a byte range of the uncompressed log of a build.
+     *
+     * @param run    the build.
+     * @param start  the offset of the first byte.
+     * @param length the maximum number of bytes.
+     * @param out    where to write.
+     * @return the offset after the last byte written.
+     * @throws IOException if the log could not be read.
+     */
+    /*package*/ static long writeRange(@NonNull Run<?, ?> run, long start, long length, @NonNull OutputStream out)
+            throws IOException {
+        start = Math.max(0L, start);
+        File idx = new File(run.getRootDir(), INDEX_FILE);
+        Index index = Index.read(idx);
+        if (index == null) {
+            FileInputStream in = openRaw(run);
+            if (in != null) {
+                try {
+                    start = Math.min(start, in.getChannel().size());
+                    in.getChannel().position(start);
+                    return start + IOUtils.copyLarge(in, out, 0, length);
+                } finally {
+                    in.close();
+                }
+            }
+            // compressed since we looked
+            index = Index.read(idx);
+            if (index == null) {
+                return start;
+            }
+        }
+        if (start >= index.totalBytes) {
+            return index.totalBytes;
+        }
+        int b = index.blockForOffset(start);
+        InputStream in = index.open(new File(run.getRootDir(), LOG_FILE), b);
+        try {
+            IOUtils.skipFully(in, start - index.offsets[b]);
+            long n = IOUtils.copyLarge(in, out, 0, Math.min(length, index.totalBytes - start));
+            return start + n;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes a range of lines of the uncompressed log of a build.
+     *
+     * @param run   the build.
+     * @param from  the zero based number of the first line.
+     * @param count the maximum number of lines.
+     * @param out   where to write.
+     * @throws IOException if the log could not be read.
+     */
+    /*package*/ static void writeLines(@NonNull Run<?, ?> run, long from, int count, @NonNull OutputStream out)
+            throws IOException {
+        from = Math.max(0L, from);
+        File idx = new File(run.getRootDir(), INDEX_FILE);
+        Index index = Index.read(idx);
+        InputStream in = index == null ? openRaw(run) : null;
+        long line = 0;
+        if (in == null) {
+            if (index == null) {
+                // compressed since we looked
+                index = Index.read(idx);
+            }
+            if (index == null || index.size == 0) {
+                return;
+            }
+            int b = index.blockForLine(from);
+            in = index.open(new File(run.getRootDir(), LOG_FILE), b);
+            line = index.lines[b];
+        }
+        try {
+            in = new BufferedInputStream(in);
+            int c;
+            while (line < from && (c = in.read()) != -1) {
+                if (c == '\n') {
+                    line++;
+                }
+            }
+            OutputStream buffered = new BufferedOutputStream(out);
+            int written = 0;
+            while (written < count && (c = in.read()) != -1) {
+                buffered.write(c);
+                if (c == '\n') {
+                    written++;
+                }
+            }
+            buffered.flush();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Opens the plain log of a build, which {@link #compress} deletes once the compressed log and its index are in
+     * place.
+     *
+     * @param run the build.
+     * @return the plain log or {@code null} if there is none.
+     */
+    private static FileInputStream openRaw(Run<?, ?> run) {
+        try {
+            return new FileInputStream(new File(run.getRootDir(), "log"));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The offsets of the blocks of a compressed log.
+     */
+    /*package*/ static final class Index {
+        /*package*/ long[] offsets = new long[16];
+        private long[] compressedOffsets = new long[16];
+        /*package*/ long[] lines = new long[16];
+        /*package*/ int size;
+        /*package*/ long totalBytes;
+        /*package*/ long totalLines;
+
+        private void add(long offset, long compressedOffset, long line) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                compressedOffsets = Arrays.copyOf(compressedOffsets, size * 2);
+                lines = Arrays.copyOf(lines, size * 2);
+            }
+            offsets[size] = offset;
+            compressedOffsets[size] = compressedOffset;
+            lines[size] = line;
+            size++;
+        }
+
+        /*package*/ int blockForOffset(long offset) {
+            int b = Arrays.binarySearch(offsets, 0, size, offset);
+            return b >= 0 ? b : Math.max(0, -b - 2);
+        }
+
+        /*package*/ int blockForLine(long line) {
+            // the last block that starts before the newline ending the previous line
+            int result = 0;
+            int lo = 0;
+            int hi = size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (lines[mid] < line) {
+                    result = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Opens the uncompressed log at the start of a block, the following blocks are read transparently.
+         */
+        private InputStream open(File gz, int block) throws IOException {
+            FileInputStream in = new FileInputStream(gz);
+            try {
+                in.getChannel().position(compressedOffsets[block]);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            final Inflater inflater = new Inflater(true);
+            return new InflaterInputStream(new BufferedInputStream(in), inflater, 8192) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+
+        private void write(File file) throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(size);
+                out.writeLong(totalBytes);
+                out.writeLong(totalLines);
+                for (int i = 0; i < size; i++) {
+                    out.writeLong(offsets[i]);
+                    out.writeLong(compressedOffsets[i]);
+                    out.writeLong(lines[i]);
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        /*package*/ static Index read(File file) throws IOException {
+            if (!file.isFile()) {
+                return null;
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Unsupported log index " + file);
+                }
+                Index index = new Index();
+                int size = in.readInt();
+                index.totalBytes = in.readLong();
+                index.totalLines = in.readLong();
+                for (int i = 0; i < size; i++) {
+                    index.add(in.readLong(), in.readLong(), in.readLong());
+                }
+                return index;
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * The console log of a build whose log has been compressed. The plain progressive log is served from the blocks
+     * it needs instead of decompressing the log from its start.
+     */
+    /*package*/ static final class LogText extends AnnotatedLargeText<FreeStyleMultiBranchProject.BuildImpl> {
+
+        private final FreeStyleMultiBranchProject.BuildImpl run;
+
+        /*package*/ LogText(@NonNull FreeStyleMultiBranchProject.BuildImpl run) {
+            // only the logs of finished builds are compressed
+            super(new File(run.getRootDir(), LOG_FILE), run.getCharset(), true, run);
+            this.run = run;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void doProgressText(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            if (req.getAttribute("html") != null) {
+                // the annotated log carries console annotator state that only the superclass handles
+                super.doProgressText(req, rsp);
+                return;
+            }
+            long length = length(run);
+            long start = 0;
+            try {
+                String s = req.getParameter("start");
+                start = s == null ? 0L : Long.parseLong(s);
+            } catch (NumberFormatException e) {
+                // start from the beginning
+            }
+            if (start < 0 || start > length) {
+                start = 0;
+            }
+            rsp.setContentType("text/plain;charset=" + run.getCharset().name());
+            rsp.setStatus(HttpServletResponse.SC_OK);
+            rsp.addHeader("X-Text-Size", Long.toString(length));
+            PlainTextConsoleOutputStream out = new PlainTextConsoleOutputStream(rsp.getOutputStream());
+            writeRange(run, start, length - start, out);
+            out.close();
+        }
+    }
+
+    /**
+     * Compresses the logs of finalized builds of projects that opted in.
+     */
+    @Extension
+    public static class RunListenerImpl extends RunListener<FreeStyleMultiBranchProject.BuildImpl> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onFinalized(FreeStyleMultiBranchProject.BuildImpl run) {
+            if (!run.getParent().getParent().isCompressBuildLogs()) {
+                return;
+            }
+            final File rootDir = run.getRootDir();
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compress(rootDir);
+                        // the log shrank, so any size recorded for retention is stale
+                        BuildRetentionWorker.refreshSize(rootDir);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Could not compress the log in " + rootDir, e);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import jenkins.scm.api.SCMHead;
+import jenkins.scm.api.mixin.ChangeRequestSCMHead;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.DoNotUse;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * How much build history the branch jobs of a {@link FreeStyleMultiBranchProject} may keep. The disk budget of the
+ * project is shared between its branch jobs in proportion to their weight, so the history of each branch job shrinks
+ * as branches are added. Expired builds are deleted in the background by {@link BuildRetentionWorker}.
+ * <p>
+ * A {@link jenkins.model.BuildDiscarder} of a branch job, e.g. one set through a branch property, still runs after
+ * each build as usual; the budget is enforced on top of it, so whichever keeps fewer builds wins.
+ */
+public class BuildRetentionPolicy extends AbstractDescribableImpl<BuildRetentionPolicy> {
+
+    /**
+     * The total disk budget for the build records of all branch jobs.
+     */
+    private long diskBudgetMB;
+
+    /**
+     * The share of the primary branch relative to a regular branch.
+     */
+    private int primaryBranchWeight = 4;
+
+    /**
+     * The share of a change request relative to a regular branch, in percent.
+     */
+    private int changeRequestWeightPercent = 50;
+
+    /**
+     * The number of builds that each branch job keeps regardless of the budget.
+     */
+    private int minBuildsToKeep = 1;
+
+    /**
+     * The maximum number of builds deleted per minute.
+     */
+    private int maxDeletionsPerMinute = 120;
+
+    @DataBoundConstructor
+    public BuildRetentionPolicy(long diskBudgetMB) {
+        this.diskBudgetMB = Math.max(1, diskBudgetMB);
+    }
+
+    /**
+     * Clamps the values of hand edited or older configurations.
+     *
+     * @return this.
+     */
+    private Object readResolve() {
+        diskBudgetMB = Math.max(1, diskBudgetMB);
+        primaryBranchWeight = Math.max(1, primaryBranchWeight);
+        changeRequestWeightPercent = Math.max(1, changeRequestWeightPercent);
+        minBuildsToKeep = Math.max(1, minBuildsToKeep);
+        maxDeletionsPerMinute = Math.max(1, maxDeletionsPerMinute);
+        return this;
+    }
+
+    public long getDiskBudgetMB() {
+        return diskBudgetMB;
+    }
+
+    public int getPrimaryBranchWeight() {
+        return primaryBranchWeight;
+    }
+
+    @DataBoundSetter
+    public void setPrimaryBranchWeight(int primaryBranchWeight) {
+        this.primaryBranchWeight = Math.max(1, primaryBranchWeight);
+    }
+
+    public int getChangeRequestWeightPercent() {
+        return changeRequestWeightPercent;
+    }
+
+    @DataBoundSetter
+    public void setChangeRequestWeightPercent(int changeRequestWeightPercent) {
+        this.changeRequestWeightPercent = Math.max(1, changeRequestWeightPercent);
+    }
+
+    public int getMinBuildsToKeep() {
+        return minBuildsToKeep;
+    }
+
+    @DataBoundSetter
+    public void setMinBuildsToKeep(int minBuildsToKeep) {
+        this.minBuildsToKeep = Math.max(1, minBuildsToKeep);
+    }
+
+    public int getMaxDeletionsPerMinute() {
+        return maxDeletionsPerMinute;
+    }
+
+    @DataBoundSetter
+    public void setMaxDeletionsPerMinute(int maxDeletionsPerMinute) {
+        this.maxDeletionsPerMinute = Math.max(1, maxDeletionsPerMinute);
+    }
+
+    /**
+     * Returns the weight of a branch job in percent of a regular branch.
+     *
+     * @param project the branch job.
+     * @return the weight.
+     */
+    public int weightOf(@NonNull FreeStyleMultiBranchProject.ProjectImpl project) {
+        SCMHead head = project.getBranch().getHead();
+        if (head instanceof ChangeRequestSCMHead) {
+            return changeRequestWeightPercent;
+        }
+        if (FreeStyleMultiBranchProject.isPrimaryBranchName(project.getName())) {
+            return primaryBranchWeight * 100;
+        }
+        return 100;
+    }
+
+    /**
+     * Returns the disk budget of a branch job.
+     *
+     * @param weight      the {@link #weightOf} the branch job.
+     * @param totalWeight the sum of the weights of all branch jobs.
+     * @return the budget in bytes.
+     */
+    public long budgetOf(int weight, long totalWeight) {
+        return totalWeight <= 0 ? 0 : diskBudgetMB * 1024L * 1024L / totalWeight * weight;
+    }
+
+    /**
+     * Our descriptor.
+     */
+    @Extension
+    public static class DescriptorImpl extends Descriptor<BuildRetentionPolicy> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getDisplayName() {
+            return Messages.BuildRetentionPolicy_DisplayName();
+        }
+
+        /**
+         * Checks the disk budget.
+         *
+         * @param value the disk budget in MB.
+         * @return the validation result.
+         */
+        @Restricted(DoNotUse.class) // stapler web method
+        public FormValidation doCheckDiskBudgetMB(@QueryParameter String value) {
+            String budget = Util.fixEmptyAndTrim(value);
+            try {
+                if (budget != null && Long.parseLong(budget) > 0) {
+                    return FormValidation.ok();
+                }
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+            return FormValidation.error(Messages.BuildRetentionPolicy_DiskBudgetNotPositive());
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Deletes the builds that the {@link BuildRetentionPolicy} of each {@link FreeStyleMultiBranchProject} no longer has
+ * room for. Runs on its own low priority thread and paces the deletions so that build I/O is not starved.
+ */
+@Extension
+public class BuildRetentionWorker extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(BuildRetentionWorker.class.getName());
+
+    /**
+     * The file in each build directory that records the size of the build once it is finalized, so that the
+     * periodic pass does not have to walk every build directory again.
+     */
+    /*package*/ static final String SIZE_FILE = "retention-size";
+
+    public BuildRetentionWorker() {
+        super("Freestyle multibranch build retention");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(15);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return;
+        }
+        for (FreeStyleMultiBranchProject project : jenkins.getAllItems(FreeStyleMultiBranchProject.class)) {
+            BuildRetentionPolicy policy = project.getBuildRetention();
+            if (policy != null) {
+                apply(project, policy, listener);
+            }
+        }
+    }
+
+    /**
+     * Applies a policy to a project.
+     *
+     * @param project  the project.
+     * @param policy   the policy.
+     * @param listener where to report.
+     * @throws InterruptedException if interrupted.
+     */
+    /*package*/ static void apply(FreeStyleMultiBranchProject project, BuildRetentionPolicy policy,
+                                  TaskListener listener) throws InterruptedException {
+        List<FreeStyleMultiBranchProject.ProjectImpl> jobs =
+                new ArrayList<FreeStyleMultiBranchProject.ProjectImpl>(project.getItems());
+        long totalWeight = 0;
+        for (FreeStyleMultiBranchProject.ProjectImpl job : jobs) {
+            totalWeight += policy.weightOf(job);
+        }
+        long pause = TimeUnit.MINUTES.toMillis(1) / policy.getMaxDeletionsPerMinute();
+        int deleted = 0;
+        for (FreeStyleMultiBranchProject.ProjectImpl job : jobs) {
+            long budget = policy.budgetOf(policy.weightOf(job), totalWeight);
+            // while a build is running its size is still growing, so only record the sizes of idle jobs
+            for (Integer number : expired(job.getBuildDir(), budget, policy.getMinBuildsToKeep(),
+                    !job.isBuilding())) {
+                FreeStyleMultiBranchProject.BuildImpl build = job.getBuildByNumber(number);
+                if (build == null || build.isBuilding() || build.isKeepLog()) {
+                    continue;
+                }
+                try {
+                    build.delete();
+                    deleted++;
+                } catch (IOException e) {
+                    e.printStackTrace(listener.error("Could not delete " + build.getFullDisplayName()));
+                }
+                Thread.sleep(pause);
+            }
+        }
+        if (deleted > 0) {
+            listener.getLogger().format("Deleted %d builds of %s%n", deleted, project.getFullName());
+        }
+    }
+
+    /**
+     * Returns the numbers of the builds of a branch job that do not fit in its budget, without loading any builds.
+     *
+     * @param buildDir the build directory of the branch job.
+     * @param budget   the budget in bytes.
+     * @param minKeep  the number of most recent builds kept regardless of the budget.
+     * @param record   {@code true} to record the sizes that had to be measured, {@code false} if some of the builds
+     *                 may still be running.
+     * @return the build numbers, newest first.
+     */
+    /*package*/ static List<Integer> expired(File buildDir, long budget, int minKeep, boolean record) {
+        File[] dirs = buildDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                try {
+                    return f.isDirectory() && f.getName().matches("[0-9]+") && !Util.isSymlink(f);
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+        });
+        if (dirs == null || dirs.length <= minKeep) {
+            return Collections.emptyList();
+        }
+        Integer[] numbers = new Integer[dirs.length];
+        for (int i = 0; i < dirs.length; i++) {
+            numbers[i] = Integer.valueOf(dirs[i].getName());
+        }
+        Arrays.sort(numbers, Collections.reverseOrder());
+        List<Integer> result = new ArrayList<Integer>();
+        long used = 0;
+        for (int i = 0; i < numbers.length; i++) {
+            if (!result.isEmpty()) {
+                // once one build is over budget, so are all the older ones
+                result.add(numbers[i]);
+                continue;
+            }
+            used += sizeOf(new File(buildDir, numbers[i].toString()), record);
+            if (i >= minKeep && used > budget) {
+                result.add(numbers[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the recorded size of a build, measuring it if it was never recorded.
+     *
+     * @param dir    the build directory.
+     * @param record {@code true} to record the size if it had to be measured.
+     * @return the size in bytes.
+     */
+    private static long sizeOf(File dir, boolean record) {
+        File file = new File(dir, SIZE_FILE);
+        if (file.isFile()) {
+            try {
+                return Long.parseLong(FileUtils.readFileToString(file, "US-ASCII").trim());
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.FINE, "Ignoring the unreadable size recorded in " + file, e);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Ignoring the unreadable size recorded in " + file, e);
+            }
+        }
+        return record ? recordSize(dir) : du(dir);
+    }
+
+    /**
+     * Measures a build and records its size.
+     *
+     * @param dir the build directory.
+     * @return the size in bytes.
+     */
+    /*package*/ static long recordSize(File dir) {
+        long size = du(dir);
+        try {
+            FileUtils.writeStringToFile(new File(dir, SIZE_FILE), Long.toString(size), "US-ASCII");
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not record the size of " + dir, e);
+        }
+        return size;
+    }
+
+    /**
+     * Records the size of a build again after its contents changed, if it was recorded before.
+     *
+     * @param dir the build directory.
+     */
+    /*package*/ static void refreshSize(File dir) {
+        if (new File(dir, SIZE_FILE).isFile()) {
+            recordSize(dir);
+        }
+    }
+
+    private static long du(File dir) {
+        long total = 0;
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                total += child.isDirectory() ? du(child) : child.length();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Records the size of each finalized build of a project with a retention policy.
+     */
+    @Extension
+    public static class RunListenerImpl extends RunListener<FreeStyleMultiBranchProject.BuildImpl> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onFinalized(FreeStyleMultiBranchProject.BuildImpl run) {
+            if (run.getParent().getParent().getBuildRetention() != null) {
+                recordSize(run.getRootDir());
+            }
+        }
+    }
+}
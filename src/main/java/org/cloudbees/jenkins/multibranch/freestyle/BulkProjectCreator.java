@@ -0,0 +1,458 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.BulkChange;
+import hudson.Extension;
+import hudson.model.Cause;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Failure;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Items;
+import hudson.model.Queue;
+import hudson.model.RootAction;
+import hudson.model.TopLevelItem;
+import hudson.security.ACL;
+import hudson.security.AccessControlled;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.http.HttpServletResponse;
+import jenkins.branch.BranchProjectFactory;
+import jenkins.branch.BranchSource;
+import jenkins.model.Jenkins;
+import jenkins.model.ModifiableTopLevelItemGroup;
+import jenkins.util.Timer;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.DoNotUse;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+/**
+ * Creates many {@link FreeStyleMultiBranchProject}s at once. All the names and configurations are checked in memory
+ * before the first project is written, the projects are then written in a single pass, each exactly once, and should
+ * writing one of them fail the projects that the call already created are deleted again. The initial branch indexing
+ * is started in the background for at most a given number of projects at a time rather than for all of them at once.
+ * <p>
+ * Served at {@code /freestyle-multibranch-bulk/createProjects} by {@link ActionImpl} and intended for use from
+ * scripts, e.g.
+ * <pre>
+ * BulkProjectCreator.create(Jenkins.instance, [
+ *     new BulkProjectCreator.Spec("repo-a", [new BranchSource(...)]),
+ *     new BulkProjectCreator.Spec("repo-b", [new BranchSource(...)])
+ * ], 4)
+ * </pre>
+ */
+public final class BulkProjectCreator {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(BulkProjectCreator.class.getName());
+
+    /**
+     * How often the progress of the initial indexing is checked.
+     */
+    private static final long POLL_SECONDS = 5L;
+
+    /**
+     * How long an initial indexing may hold a slot before the next project is started regardless.
+     */
+    private static final long MAX_INDEXING_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * The number of initial branch indexings that {@link ActionImpl#doCreateProjects} runs at once unless told
+     * otherwise.
+     */
+    /*package*/ static final int DEFAULT_INDEXING_CONCURRENCY = 4;
+
+    private BulkProjectCreator() {
+    }
+
+    /**
+     * Creates the projects described by the supplied specs.
+     *
+     * @param parent              the group to create the projects in.
+     * @param specs               the specs.
+     * @param indexingConcurrency the maximum number of initial branch indexings running at once, {@code 0} to not
+     *                            index the projects.
+     * @return the created projects.
+     * @throws IOException if the projects could not be created.
+     * @throws Failure     if a spec is invalid, in which case no project is created.
+     */
+    @NonNull
+    public static List<FreeStyleMultiBranchProject> create(@NonNull ModifiableTopLevelItemGroup parent,
+                                                           @NonNull List<Spec> specs, int indexingConcurrency)
+            throws IOException {
+        List<String> names = new ArrayList<String>(specs.size());
+        List<String> configs = new ArrayList<String>(specs.size());
+        for (Spec spec : specs) {
+            names.add(spec.getName());
+            configs.add(Items.XSTREAM2.toXML(spec.toProject(parent)));
+        }
+        return createFromXml(parent, names, configs, indexingConcurrency);
+    }
+
+    /**
+     * Creates projects from their {@code config.xml}.
+     *
+     * @param parent              the group to create the projects in.
+     * @param names               the names of the projects.
+     * @param configs             the {@code config.xml} of each project.
+     * @param indexingConcurrency the maximum number of initial branch indexings running at once, {@code 0} to not
+     *                            index the projects.
+     * @return the created projects.
+     * @throws IOException if the projects could not be created.
+     * @throws Failure     if a name or config is invalid, in which case no project is left behind.
+     */
+    @NonNull
+    public static List<FreeStyleMultiBranchProject> createFromXml(@NonNull ModifiableTopLevelItemGroup parent,
+                                                                  @NonNull List<String> names,
+                                                                  @NonNull List<String> configs,
+                                                                  int indexingConcurrency)
+            throws IOException {
+        if (names.size() != configs.size()) {
+            throw new IllegalArgumentException("Expected one config per name");
+        }
+        // check the names up front so that a clash does not leave a half created batch behind
+        Set<String> seen = new HashSet<String>();
+        for (String name : names) {
+            Jenkins.checkGoodName(name);
+            if (!seen.add(name.toLowerCase()) || parent.getItem(name) != null) {
+                throw new Failure("A job already exists with the name " + name);
+            }
+        }
+        // build every project in memory first so that an invalid config is rejected before anything is written
+        for (int i = 0; i < names.size(); i++) {
+            Object project;
+            try {
+                project = Items.XSTREAM2.fromXML(configs.get(i));
+            } catch (RuntimeException e) {
+                throw new Failure("Invalid configuration for " + names.get(i) + ": " + e.getMessage());
+            }
+            if (!(project instanceof FreeStyleMultiBranchProject)) {
+                throw new Failure(
+                        "The configuration for " + names.get(i) + " is not a freestyle multibranch project");
+            }
+        }
+        List<FreeStyleMultiBranchProject> created = new ArrayList<FreeStyleMultiBranchProject>(names.size());
+        boolean complete = false;
+        try {
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                TopLevelItem item = parent.createProjectFromXML(name,
+                        new ByteArrayInputStream(configs.get(i).getBytes("UTF-8")));
+                if (!(item instanceof FreeStyleMultiBranchProject)) {
+                    delete(item);
+                    throw new Failure("The configuration for " + name + " is not a freestyle multibranch project");
+                }
+                created.add((FreeStyleMultiBranchProject) item);
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                for (FreeStyleMultiBranchProject p : created) {
+                    delete(p);
+                }
+            }
+        }
+        if (indexingConcurrency > 0 && !created.isEmpty()) {
+            // the indexer polls until every project has been indexed, which is no job for the calling thread
+            Timer.get().submit(new Indexer(created, indexingConcurrency));
+        }
+        return created;
+    }
+
+    /**
+     * Deletes a project that a failed bulk creation left behind. The caller may create items without being allowed to
+     * delete them, so this runs as the system.
+     */
+    private static void delete(@CheckForNull TopLevelItem item) {
+        if (item == null) {
+            return;
+        }
+        SecurityContext context = ACL.impersonate(ACL.SYSTEM);
+        try {
+            item.delete();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not delete " + item.getFullName() + " after a failed bulk creation", e);
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Interrupted deleting " + item.getFullName() + " after a failed bulk creation",
+                    e);
+            Thread.currentThread().interrupt();
+        } finally {
+            SecurityContextHolder.setContext(context);
+        }
+    }
+
+    /**
+     * Describes one project to create.
+     */
+    public static final class Spec {
+        @NonNull
+        private final String name;
+        @NonNull
+        private final List<BranchSource> sources;
+        @CheckForNull
+        private FreeStyleSCMSourceCriteria scmSourceCriteria;
+        @CheckForNull
+        private BranchProjectFactory<FreeStyleMultiBranchProject.ProjectImpl, FreeStyleMultiBranchProject.BuildImpl>
+                projectFactory;
+
+        public Spec(@NonNull String name, @CheckForNull Collection<? extends BranchSource> sources) {
+            this.name = name;
+            this.sources = sources == null
+                    ? Collections.<BranchSource>emptyList()
+                    : new ArrayList<BranchSource>(sources);
+        }
+
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        @NonNull
+        public List<BranchSource> getSources() {
+            return Collections.unmodifiableList(sources);
+        }
+
+        @CheckForNull
+        public FreeStyleSCMSourceCriteria getScmSourceCriteria() {
+            return scmSourceCriteria;
+        }
+
+        public Spec withScmSourceCriteria(@CheckForNull FreeStyleSCMSourceCriteria scmSourceCriteria) {
+            this.scmSourceCriteria = scmSourceCriteria;
+            return this;
+        }
+
+        @CheckForNull
+        public BranchProjectFactory<FreeStyleMultiBranchProject.ProjectImpl, FreeStyleMultiBranchProject.BuildImpl>
+                getProjectFactory() {
+            return projectFactory;
+        }
+
+        public Spec withProjectFactory(@CheckForNull
+                BranchProjectFactory<FreeStyleMultiBranchProject.ProjectImpl, FreeStyleMultiBranchProject.BuildImpl>
+                        projectFactory) {
+            this.projectFactory = projectFactory;
+            return this;
+        }
+
+        /**
+         * Configures a project in memory, without saving it or triggering indexing.
+         */
+        @NonNull
+        private FreeStyleMultiBranchProject toProject(@NonNull ItemGroup parent) throws IOException {
+            FreeStyleMultiBranchProject project = new FreeStyleMultiBranchProject(parent, name);
+            BulkChange bc = new BulkChange(project);
+            try {
+                project.setProjectFactory(projectFactory == null ? new FreeStyleProjectFactory() : projectFactory);
+                project.setScmSourceCriteria(scmSourceCriteria);
+                project.getSourcesList().addAll(sources);
+            } finally {
+                bc.abort();
+            }
+            return project;
+        }
+    }
+
+    /**
+     * Serves bulk project creation at {@code /freestyle-multibranch-bulk/createProjects}.
+     */
+    @Extension
+    public static class ActionImpl implements RootAction {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getIconFileName() {
+            return null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getDisplayName() {
+            return null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getUrlName() {
+            return "freestyle-multibranch-bulk";
+        }
+
+        /**
+         * Creates many freestyle multibranch projects at once. The request body is a JSON object such as
+         * <pre>
+         * {"parent": "some/folder", "indexingConcurrency": 4,
+         *  "projects": [{"name": "repo-a",
+         *                "config": "&lt;freestyle-multibranch&gt;...&lt;/freestyle-multibranch&gt;"}]}
+         * </pre>
+         * where {@code parent} defaults to the root and {@code indexingConcurrency} to
+         * {@link #DEFAULT_INDEXING_CONCURRENCY}.
+         *
+         * @param req the request.
+         * @param rsp the response.
+         * @throws IOException if the projects could not be created.
+         */
+        @RequirePOST
+        @Restricted(DoNotUse.class) // stapler web method
+        public void doCreateProjects(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            Jenkins jenkins = Jenkins.getActiveInstance();
+            JSONObject body = JSONObject.fromObject(IOUtils.toString(req.getReader()));
+            String parentName = body.optString("parent", "");
+            ModifiableTopLevelItemGroup parent;
+            if (parentName.isEmpty()) {
+                parent = jenkins;
+            } else {
+                Item item = jenkins.getItemByFullName(parentName);
+                if (!(item instanceof ModifiableTopLevelItemGroup)) {
+                    rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "No such folder: " + parentName);
+                    return;
+                }
+                parent = (ModifiableTopLevelItemGroup) item;
+            }
+            ((AccessControlled) parent).checkPermission(Item.CREATE);
+            List<String> names = new ArrayList<String>();
+            List<String> configs = new ArrayList<String>();
+            JSONArray projects = body.optJSONArray("projects");
+            if (projects != null) {
+                for (int i = 0; i < projects.size(); i++) {
+                    JSONObject project = projects.getJSONObject(i);
+                    names.add(project.getString("name"));
+                    configs.add(project.getString("config"));
+                }
+            }
+            List<FreeStyleMultiBranchProject> created = createFromXml(parent, names, configs,
+                    body.optInt("indexingConcurrency", DEFAULT_INDEXING_CONCURRENCY));
+            JSONArray result = new JSONArray();
+            for (FreeStyleMultiBranchProject p : created) {
+                result.add(p.getFullName());
+            }
+            JSONObject json = new JSONObject();
+            json.put("created", result);
+            rsp.setContentType("application/json;charset=UTF-8");
+            rsp.getWriter().write(json.toString(2));
+        }
+    }
+
+    /**
+     * Starts the initial indexing of the created projects, keeping at most a given number in flight.
+     */
+    private static final class Indexer implements Runnable {
+        private final Deque<FreeStyleMultiBranchProject> pending;
+        private final List<FreeStyleMultiBranchProject> running = new ArrayList<FreeStyleMultiBranchProject>();
+        private final List<Long> started = new ArrayList<Long>();
+        private final int concurrency;
+
+        private Indexer(List<FreeStyleMultiBranchProject> projects, int concurrency) {
+            this.pending = new ArrayDeque<FreeStyleMultiBranchProject>(projects);
+            this.concurrency = concurrency;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void run() {
+            long now = System.currentTimeMillis();
+            for (int i = running.size() - 1; i >= 0; i--) {
+                FreeStyleMultiBranchProject p = running.get(i);
+                if (!isIndexing(p) || now - started.get(i) > MAX_INDEXING_MILLIS) {
+                    running.remove(i);
+                    started.remove(i);
+                }
+            }
+            while (running.size() < concurrency && !pending.isEmpty()) {
+                FreeStyleMultiBranchProject p = pending.removeFirst();
+                if (p.scheduleBuild(0, new Cause.UserIdCause())) {
+                    running.add(p);
+                    started.add(now);
+                } else {
+                    LOGGER.log(Level.INFO, "Could not schedule the initial indexing of {0}", p.getFullName());
+                }
+            }
+            if (!running.isEmpty() || !pending.isEmpty()) {
+                Timer.get().schedule(this, POLL_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+
+        /**
+         * Tells whether a project is waiting for or running an indexing, going by the queue and the executors only as
+         * the computation of a project that never ran or that was interrupted may never report a result.
+         */
+        private static boolean isIndexing(FreeStyleMultiBranchProject p) {
+            Jenkins jenkins = Jenkins.getInstance();
+            if (jenkins == null) {
+                return false;
+            }
+            if (jenkins.getQueue().getItem(p) != null) {
+                return true;
+            }
+            for (Computer c : jenkins.getComputers()) {
+                for (Executor e : c.getOneOffExecutors()) {
+                    Queue.Executable executable = e.getCurrentExecutable();
+                    if (executable != null && executable.getParent() == p) {
+                        return true;
+                    }
+                }
+                for (Executor e : c.getExecutors()) {
+                    Queue.Executable executable = e.getCurrentExecutable();
+                    if (executable != null && executable.getParent() == p) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.XmlFile;
+import hudson.model.Items;
+import hudson.model.Saveable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.Timer;
+
+/**
+ * The probe latency and rejection rate observed for each criteria of an {@link AllOfFreeStyleSCMSourceCriteria} on
+ * each source, used to evaluate the criteria most likely to cheaply reject a head first.
+ * <p>
+ * Persisted in {@code criteria-statistics.xml} alongside the folder's {@code config.xml}. Instances without an owner
+ * are kept in memory only, as used by {@link FreeStyleMultiBranchProjectFactory} before the project exists.
+ */
+public class CriteriaStatistics implements Saveable {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(CriteriaStatistics.class.getName());
+
+    /**
+     * The name of the file that the statistics are persisted in.
+     */
+    /*package*/ static final String FILE_NAME = "criteria-statistics.xml";
+
+    /**
+     * How long changes are collected before they are written, a scan records one sample per criteria per head.
+     */
+    private static final long SAVE_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * The weight of a new sample in the moving averages, so that the statistics follow a repository that changes.
+     */
+    private static final double ALPHA = 0.1;
+
+    /**
+     * The statistics keyed by source id and then criteria key.
+     */
+    private final TreeMap<String, TreeMap<String, Stat>> sources = new TreeMap<String, TreeMap<String, Stat>>();
+
+    /**
+     * The folder that owns these statistics or {@code null} if they are not persisted.
+     */
+    private transient FreeStyleMultiBranchProject owner;
+
+    /**
+     * {@code true} while a save has been scheduled but not yet written.
+     */
+    private transient boolean savePending;
+
+    /**
+     * Loads the statistics of the supplied folder.
+     *
+     * @param owner the folder.
+     * @return the statistics.
+     */
+    @NonNull
+    /*package*/ static CriteriaStatistics load(@NonNull FreeStyleMultiBranchProject owner) {
+        XmlFile file = getDataFile(owner);
+        CriteriaStatistics statistics = null;
+        if (file.exists()) {
+            try {
+                statistics = (CriteriaStatistics) file.read();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not read " + file + ", starting afresh", e);
+            } catch (ClassCastException e) {
+                LOGGER.log(Level.WARNING, "Unexpected content in " + file + ", starting afresh", e);
+            }
+        }
+        if (statistics == null) {
+            statistics = new CriteriaStatistics();
+        }
+        statistics.owner = owner;
+        return statistics;
+    }
+
+    @NonNull
+    private static XmlFile getDataFile(@NonNull FreeStyleMultiBranchProject owner) {
+        return new XmlFile(Items.XSTREAM, new File(owner.getRootDir(), FILE_NAME));
+    }
+
+    /**
+     * Returns the statistics of a criteria on a source.
+     *
+     * @param sourceId the source id.
+     * @param key      the criteria key.
+     * @return the statistics or {@code null} if the criteria has not been evaluated on the source.
+     */
+    @CheckForNull
+    public synchronized Stat get(@NonNull String sourceId, @NonNull String key) {
+        Map<String, Stat> stats = sources.get(sourceId);
+        return stats == null ? null : stats.get(key);
+    }
+
+    /**
+     * Records one evaluation of a criteria.
+     *
+     * @param sourceId    the source id.
+     * @param key         the criteria key.
+     * @param displayName a description of the criteria for troubleshooting.
+     * @param nanos       how long the evaluation took.
+     * @param rejected    {@code true} if the criteria rejected the head.
+     */
+    /*package*/ void record(@NonNull String sourceId, @NonNull String key, @NonNull String displayName, long nanos,
+                            boolean rejected) {
+        synchronized (this) {
+            TreeMap<String, Stat> stats = sources.get(sourceId);
+            if (stats == null) {
+                stats = new TreeMap<String, Stat>();
+                sources.put(sourceId, stats);
+            }
+            Stat stat = stats.get(key);
+            if (stat == null) {
+                stat = new Stat(displayName);
+                stats.put(key, stat);
+            }
+            stat.update(nanos / 1000000.0, rejected);
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Returns a snapshot of the statistics for troubleshooting.
+     *
+     * @return the statistics keyed by source id and then criteria key.
+     */
+    @NonNull
+    public synchronized Map<String, Map<String, Stat>> getSources() {
+        Map<String, Map<String, Stat>> result = new TreeMap<String, Map<String, Stat>>();
+        for (Map.Entry<String, TreeMap<String, Stat>> e : sources.entrySet()) {
+            Map<String, Stat> stats = new TreeMap<String, Stat>();
+            for (Map.Entry<String, Stat> s : e.getValue().entrySet()) {
+                stats.put(s.getKey(), s.getValue().copy());
+            }
+            result.put(e.getKey(), stats);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void save() throws IOException {
+        if (owner == null) {
+            return;
+        }
+        XmlFile file = getDataFile(owner);
+        synchronized (this) {
+            file.write(this);
+        }
+    }
+
+    private void scheduleSave() {
+        synchronized (this) {
+            if (owner == null || savePending) {
+                return;
+            }
+            savePending = true;
+        }
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CriteriaStatistics.this) {
+                    savePending = false;
+                }
+                try {
+                    save();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not save criteria statistics of " + owner.getFullName(), e);
+                }
+            }
+        }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The moving averages of one criteria on one source.
+     */
+    public static final class Stat {
+        private final String displayName;
+        private long samples;
+        private double meanMillis;
+        private double rejectionRate;
+
+        private Stat(String displayName) {
+            this.displayName = displayName;
+        }
+
+        private void update(double millis, boolean rejected) {
+            if (samples == 0) {
+                meanMillis = millis;
+                rejectionRate = rejected ? 1.0 : 0.0;
+            } else {
+                meanMillis += ALPHA * (millis - meanMillis);
+                rejectionRate += ALPHA * ((rejected ? 1.0 : 0.0) - rejectionRate);
+            }
+            samples++;
+        }
+
+        private Stat copy() {
+            Stat copy = new Stat(displayName);
+            copy.samples = samples;
+            copy.meanMillis = meanMillis;
+            copy.rejectionRate = rejectionRate;
+            return copy;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        public long getSamples() {
+            return samples;
+        }
+
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        public double getRejectionRate() {
+            return rejectionRate;
+        }
+
+        /**
+         * The expected cost of evaluating this criteria per head it rejects; evaluating a conjunction in ascending
+         * order of this rank minimizes the expected cost of rejecting a head.
+         *
+         * @return the rank.
+         */
+        public double getRank() {
+            return meanMillis / Math.max(rejectionRate, 0.001);
+        }
+    }
+}
@@ -0,0 +1,524 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.RootAction;
+import hudson.model.listeners.ItemListener;
+import hudson.security.ACL;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.DoNotUse;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Timers and counters for the hot paths of this plugin, exposed at {@code /freestyle-multibranch/metrics} and, when
+ * the metrics plugin is installed, through its registry.
+ */
+@Extension
+public class FreeStyleMultiBranchMetrics implements RootAction {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(FreeStyleMultiBranchMetrics.class.getName());
+
+    /**
+     * The prefix of all our metric names.
+     */
+    /*package*/ static final String PREFIX = "freestyle-multibranch.";
+
+    /**
+     * The timers keyed by name.
+     */
+    private static final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+
+    /**
+     * The full names of the timers that have been registered with the metrics plugin, guarded by itself.
+     */
+    private static final Set<String> registered = new HashSet<String>();
+
+    /**
+     * Whether the metrics plugin registry can be used, the timers created before then are registered by
+     * {@link #metricsPluginStarted()}.
+     */
+    private static volatile boolean metricsPluginStarted;
+
+    /**
+     * Latency of {@link FreeStyleProjectFactory#newInstance(jenkins.branch.Branch)}.
+     */
+    public static final Timer NEW_INSTANCE = timer("factory.newInstance");
+
+    /**
+     * Latency of {@link FreeStyleMultiBranchProjectFactory#doCreateProject}.
+     */
+    public static final Timer CREATE_PROJECT = timer("factory.doCreateProject");
+
+    /**
+     * Latency of the saves triggered by {@link FreeStyleProjectFactory#setBranch}.
+     */
+    public static final Timer SET_BRANCH_SAVE = timer("factory.setBranch.save");
+
+    /**
+     * Latency of {@link FreeStyleMultiBranchProject.BuildImpl.RunnerImpl#decideWorkspace}.
+     */
+    public static final Timer DECIDE_WORKSPACE = timer("build.decideWorkspace");
+
+    /**
+     * Returns the timer with the supplied name, creating it if necessary.
+     *
+     * @param name the name without {@link #PREFIX}.
+     * @return the timer.
+     */
+    @NonNull
+    public static Timer timer(@NonNull String name) {
+        Timer timer = timers.get(name);
+        if (timer == null) {
+            Timer fresh = new Timer();
+            timer = timers.putIfAbsent(name, fresh);
+            if (timer == null) {
+                timer = fresh;
+                registerTimers();
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * Registers the timers created so far once the metrics plugin has started.
+     */
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void metricsPluginStarted() {
+        metricsPluginStarted = true;
+        registerTimers();
+    }
+
+    /**
+     * Registers the timers that the metrics plugin does not know about yet, when it is installed. Anything that fails
+     * is retried on the next call, which happens whenever a timer is created.
+     */
+    /*package*/ static void registerTimers() {
+        withMetricsPlugin(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (registered) {
+                    for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+                        String name = PREFIX + entry.getKey();
+                        if (!registered.contains(name)) {
+                            MetricsPluginGauges.register(name, entry.getValue());
+                            registered.add(name);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Registers the branch job gauges of all the projects, dropping those of the projects that are gone. This walks
+     * every item so it is only done once all the items are loaded, after which the gauges follow the item events one
+     * project at a time.
+     */
+    /*package*/ static void registerProjects() {
+        withMetricsPlugin(new Runnable() {
+            @Override
+            public void run() {
+                MetricsPluginGauges.registerProjects(getBranchJobCounts().keySet());
+            }
+        });
+    }
+
+    /**
+     * Registers the branch job gauge of a project.
+     *
+     * @param fullName the full name of the project.
+     */
+    /*package*/ static void registerProject(@NonNull final String fullName) {
+        withMetricsPlugin(new Runnable() {
+            @Override
+            public void run() {
+                MetricsPluginGauges.registerProject(fullName);
+            }
+        });
+    }
+
+    /**
+     * Removes the branch job gauges of a project or of the projects in a folder.
+     *
+     * @param fullName the full name of the project or folder.
+     */
+    /*package*/ static void unregisterProjects(@NonNull final String fullName) {
+        withMetricsPlugin(new Runnable() {
+            @Override
+            public void run() {
+                MetricsPluginGauges.unregisterProjects(fullName);
+            }
+        });
+    }
+
+    /**
+     * Runs something against the metrics plugin if it is installed and has started.
+     *
+     * @param task what to run, which may only link to the metrics plugin classes through {@link MetricsPluginGauges}.
+     */
+    private static void withMetricsPlugin(Runnable task) {
+        if (!metricsPluginStarted) {
+            return;
+        }
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null || jenkins.getPlugin("metrics") == null) {
+            return;
+        }
+        try {
+            task.run();
+        } catch (LinkageError e) {
+            LOGGER.log(Level.FINE, "Metrics plugin not available", e);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not register with the metrics plugin", e);
+        }
+    }
+
+    /**
+     * Returns the latency timer for the supplied criteria type.
+     *
+     * @param criteria the criteria.
+     * @return the timer.
+     */
+    @NonNull
+    public static Timer criteria(@NonNull Object criteria) {
+        return timer("criteria." + criteria.getClass().getName() + ".isHead");
+    }
+
+    /**
+     * Returns a snapshot of all the timers keyed by name.
+     *
+     * @return the snapshot.
+     */
+    @NonNull
+    public static Map<String, Timer> getTimers() {
+        return new TreeMap<String, Timer>(timers);
+    }
+
+    /**
+     * Returns the number of branch jobs in each {@link FreeStyleMultiBranchProject}, regardless of the permissions of
+     * the current user.
+     *
+     * @return the number of branch jobs keyed by full name.
+     */
+    @NonNull
+    public static Map<String, Integer> getBranchJobCounts() {
+        Map<String, Integer> result = new TreeMap<String, Integer>();
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins != null) {
+            SecurityContext context = ACL.impersonate(ACL.SYSTEM);
+            try {
+                for (FreeStyleMultiBranchProject p : jenkins.getAllItems(FreeStyleMultiBranchProject.class)) {
+                    result.put(p.getFullName(), p.getItems().size());
+                }
+            } finally {
+                SecurityContextHolder.setContext(context);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of branch jobs in a {@link FreeStyleMultiBranchProject}, regardless of the permissions of the
+     * current user.
+     *
+     * @param fullName the full name of the project.
+     * @return the number of branch jobs, {@code 0} if there is no such project.
+     */
+    public static int getBranchJobCount(@NonNull String fullName) {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return 0;
+        }
+        SecurityContext context = ACL.impersonate(ACL.SYSTEM);
+        try {
+            FreeStyleMultiBranchProject p = jenkins.getItemByFullName(fullName, FreeStyleMultiBranchProject.class);
+            return p == null ? 0 : p.getItems().size();
+        } finally {
+            SecurityContextHolder.setContext(context);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getUrlName() {
+        return "freestyle-multibranch";
+    }
+
+    /**
+     * Serves the metrics as JSON.
+     *
+     * @param rsp the response.
+     * @throws IOException if the response could not be written.
+     */
+    @Restricted(DoNotUse.class) // stapler web method
+    public void doMetrics(StaplerResponse rsp) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        JSONObject json = new JSONObject();
+        JSONObject t = new JSONObject();
+        for (Map.Entry<String, Timer> entry : getTimers().entrySet()) {
+            t.put(entry.getKey(), entry.getValue().toJSON());
+        }
+        json.put("timers", t);
+        JSONObject b = new JSONObject();
+        for (Map.Entry<String, Integer> entry : getBranchJobCounts().entrySet()) {
+            b.put(entry.getKey(), entry.getValue());
+        }
+        json.put("branchJobs", b);
+        JSONObject h = new JSONObject();
+        h.put("count", BranchHibernation.getHibernatedCount());
+        h.put("estimatedBytesSaved", BranchHibernation.getEstimatedBytesSaved());
+        json.put("hibernation", h);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().write(json.toString(2));
+    }
+
+    /**
+     * Keeps the per project gauges in step with the projects.
+     */
+    @Extension
+    public static class ItemListenerImpl extends ItemListener {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onCreated(Item item) {
+            if (item instanceof FreeStyleMultiBranchProject) {
+                registerProject(item.getFullName());
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onLoaded() {
+            registerProjects();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onDeleted(Item item) {
+            // deleting a folder only tells us about the folder
+            if (item instanceof FreeStyleMultiBranchProject || item instanceof ItemGroup) {
+                unregisterProjects(item.getFullName());
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            if (item instanceof FreeStyleMultiBranchProject) {
+                unregisterProjects(oldFullName);
+                registerProject(newFullName);
+            }
+        }
+    }
+
+    /**
+     * A lock-free latency timer with a power-of-two bucketed histogram.
+     */
+    public static final class Timer {
+        /**
+         * Bucket {@code i} counts durations in {@code [2^i, 2^(i+1))} microseconds, the last bucket is open ended.
+         */
+        private static final int BUCKETS = 32;
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        /**
+         * Where the durations are also reported, if anywhere.
+         */
+        private volatile Sink sink;
+
+        /*package*/ Timer() {
+        }
+
+        /*package*/ void setSink(Sink sink) {
+            this.sink = sink;
+        }
+
+        /**
+         * Starts timing.
+         *
+         * @return the value to pass to {@link #stop(long)}.
+         */
+        public long start() {
+            return System.nanoTime();
+        }
+
+        /**
+         * Stops timing.
+         *
+         * @param start the value returned by {@link #start()}.
+         */
+        public void stop(long start) {
+            update(System.nanoTime() - start);
+        }
+
+        /**
+         * Records a duration.
+         *
+         * @param nanos the duration in nanoseconds.
+         */
+        public void update(long nanos) {
+            if (nanos < 0) {
+                return;
+            }
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get())) {
+                if (maxNanos.compareAndSet(max, nanos)) {
+                    break;
+                }
+            }
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            int bucket = micros == 0 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+            histogram.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+            Sink sink = this.sink;
+            if (sink != null) {
+                sink.update(nanos);
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        public double getMeanMillis() {
+            long c = count.get();
+            return c == 0 ? 0.0 : totalNanos.get() / 1000000.0 / c;
+        }
+
+        /**
+         * Estimates a quantile from the histogram.
+         *
+         * @param quantile the quantile, e.g. {@code 0.95}.
+         * @return the upper bound of the bucket containing the quantile in milliseconds.
+         */
+        public double getQuantileMillis(double quantile) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = histogram.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0.0;
+            }
+            long target = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= target) {
+                    return Math.min((1L << (i + 1)) / 1000.0, maxNanos.get() / 1000000.0);
+                }
+            }
+            return maxNanos.get() / 1000000.0;
+        }
+
+        /*package*/ JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("count", getCount());
+            json.put("mean_ms", getMeanMillis());
+            json.put("p50_ms", getQuantileMillis(0.5));
+            json.put("p95_ms", getQuantileMillis(0.95));
+            json.put("p99_ms", getQuantileMillis(0.99));
+            json.put("max_ms", getMaxNanos() / 1000000.0);
+            return json;
+        }
+    }
+
+    /**
+     * Receives the durations recorded by a {@link Timer}, e.g. to feed a metrics plugin timer.
+     */
+    /*package*/ interface Sink {
+        /**
+         * Records a duration.
+         *
+         * @param nanos the duration in nanoseconds.
+         */
+        void update(long nanos);
+    }
+}
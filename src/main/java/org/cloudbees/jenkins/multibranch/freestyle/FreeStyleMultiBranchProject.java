@@ -24,21 +24,33 @@
 
 package org.cloudbees.jenkins.multibranch.freestyle;
 
+import com.cloudbees.hudson.plugins.folder.computed.ChildObserver;
 import com.cloudbees.hudson.plugins.folder.computed.ComputedFolder;
+import com.thoughtworks.xstream.XStream;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.DescriptorExtensionList;
 import hudson.Extension;
 import hudson.FilePath;
+import hudson.console.AnnotatedLargeText;
+import hudson.console.PlainTextConsoleOutputStream;
 import hudson.init.InitMilestone;
 import hudson.init.Initializer;
+import hudson.model.BallColor;
 import hudson.model.Build;
+import hudson.model.DependencyGraph;
+import hudson.model.Describable;
 import hudson.model.Descriptor;
+import hudson.model.Item;
 import hudson.model.ItemGroup;
 import hudson.model.Items;
 import hudson.model.JobProperty;
 import hudson.model.Node;
 import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.Result;
 import hudson.model.Saveable;
+import hudson.model.TaskListener;
 import hudson.model.TopLevelItem;
 import hudson.model.TopLevelItemDescriptor;
 import hudson.scm.NullSCM;
@@ -48,39 +60,141 @@ import hudson.slaves.WorkspaceList;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.Builder;
 import hudson.tasks.Publisher;
+import hudson.util.CaseInsensitiveComparator;
+import hudson.util.CopyOnWriteMap;
 import hudson.util.DescribableList;
+import hudson.util.RobustReflectionConverter;
 import javax.servlet.ServletException;
 import jenkins.branch.Branch;
 import jenkins.branch.BranchProjectFactory;
 import jenkins.branch.MultiBranchProject;
 import jenkins.branch.MultiBranchProjectDescriptor;
+import jenkins.model.DependencyDeclarer;
 import jenkins.model.Jenkins;
 import jenkins.scm.api.SCMSource;
 import jenkins.scm.api.SCMSourceCriteria;
 import net.sf.json.JSONObject;
+import net.sf.json.util.JSONUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.jenkins.ui.icon.Icon;
 import org.jenkins.ui.icon.IconSet;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import jenkins.branch.BranchProperty;
 import jenkins.scm.api.SCMHead;
+import jenkins.scm.api.SCMRevision;
 import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.DoNotUse;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerProxy;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 /**
  * A multi-branch project that emulates a {@link hudson.model.FreeStyleProject}
  */
 public class FreeStyleMultiBranchProject extends
         MultiBranchProject<FreeStyleMultiBranchProject.ProjectImpl, FreeStyleMultiBranchProject.BuildImpl> {
+    /**
+     * The page size of {@link #doBranches} when none is requested.
+     */
+    private static final int DEFAULT_BRANCHES_PAGE_SIZE = 100;
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(FreeStyleMultiBranchProject.class.getName());
+
+    /**
+     * The largest page size that {@link #doBranches} will serve.
+     */
+    private static final int MAX_BRANCHES_PAGE_SIZE = 1000;
+
     private FreeStyleSCMSourceCriteria scmSourceCriteria = new AllFreeStyleSCMSourceCriteria();
 
+    /**
+     * How much build history the branch jobs may keep, {@code null} to leave it to each branch job.
+     */
+    private BuildRetentionPolicy buildRetention;
+
+    /**
+     * Whether to fetch new revisions into the branch workspace while builds wait in the queue.
+     */
+    private boolean prefetch;
+
+    /**
+     * The number of days after which idle branch jobs are hibernated, {@code 0} to never hibernate.
+     */
+    private int hibernateAfterDays;
+
+    /**
+     * Whether branch indexing writes a summary per criteria instead of a line per head, see {@link IndexingLog}.
+     */
+    private boolean compactIndexingLog;
+
+    /**
+     * Whether the logs of finished builds are stored compressed and indexed, see {@link BuildLogStore}.
+     */
+    private boolean compressBuildLogs;
+
+    /**
+     * The compact log of the branch indexing in progress.
+     */
+    private transient volatile IndexingLog indexingLog;
+
+    /**
+     * The last simulation started by {@link #doSimulateIndexing}.
+     */
+    private transient volatile IndexingSimulator.Simulation simulation;
+
+    /**
+     * The outcome of each head in the previous branch indexing, used to spot the heads that changed, lazily loaded
+     * from {@link IndexingLog#OUTCOMES_FILE_NAME}.
+     */
+    private transient Map<String, Boolean> indexingOutcomes;
+
+    /**
+     * The last build status of each branch job, lazily loaded from {@link BranchStatusIndex#FILE_NAME}.
+     */
+    private transient BranchStatusIndex statusIndex;
+
+    /**
+     * The agent disk used by the branch workspaces, lazily loaded from {@link WorkspaceUsageIndex#FILE_NAME}.
+     */
+    private transient WorkspaceUsageIndex workspaceUsage;
+
+    /**
+     * The roots the branch workspaces were placed on, lazily loaded from {@link WorkspacePlacement#FILE_NAME}.
+     */
+    private transient WorkspacePlacement workspacePlacement;
+
+    /**
+     * The learned criteria statistics, lazily loaded from {@link CriteriaStatistics#FILE_NAME}.
+     */
+    private transient CriteriaStatistics criteriaStatistics;
+
+    /**
+     * Shares the common parts of the {@link Branch} of each branch job.
+     */
+    private transient BranchInterner branchInterner;
+
     /**
      * Our constructor
      *
@@ -91,12 +205,79 @@ public class FreeStyleMultiBranchProject extends
         super(parent, name);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The branch jobs are parsed concurrently by {@link ParallelBranchLoader} first, the folder then reuses the
+     * parsed instances when it loads its children in the usual order.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void onLoad(ItemGroup<? extends Item> parent, String name) throws IOException {
+        long start = System.nanoTime();
+        int preloaded = 0;
+        if (items == null || items.isEmpty()) {
+            // on a reload we keep the existing children so that they retain their identity
+            this.name = name;
+            File jobsDir = new File(((ItemGroup) parent).getRootDirFor(this), "jobs");
+            Map<String, ProjectImpl> parsed = ParallelBranchLoader.load(
+                    StringUtils.isEmpty(parent.getFullName()) ? name : parent.getFullName() + "/" + name, jobsDir);
+            if (!parsed.isEmpty()) {
+                Map<String, ProjectImpl> children =
+                        new CopyOnWriteMap.Tree<String, ProjectImpl>(CaseInsensitiveComparator.INSTANCE);
+                children.putAll(parsed);
+                items = children;
+                preloaded = parsed.size();
+            }
+        }
+        super.onLoad(parent, name);
+        if (preloaded > 0) {
+            LOGGER.log(Level.INFO, "Loaded {0} branch jobs of {1} in {2}ms ({3} parsed in parallel)",
+                    new Object[]{getItems().size(), getFullName(),
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), preloaded});
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public SCMSourceCriteria getSCMSourceCriteria(@NonNull SCMSource source) {
-        return scmSourceCriteria instanceof AllFreeStyleSCMSourceCriteria ? null : scmSourceCriteria;
+        if (scmSourceCriteria == null || scmSourceCriteria instanceof AllFreeStyleSCMSourceCriteria) {
+            return null;
+        }
+        IndexingLog log = indexingLog;
+        // SCM events are processed while an indexing runs but are not part of it
+        return new InstrumentedSCMSourceCriteria(scmSourceCriteria, getCriteriaStatistics(), source.getId(),
+                log != null && log.isIndexingThread() ? log : null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void computeChildren(ChildObserver<ProjectImpl> observer, TaskListener listener)
+            throws IOException, InterruptedException {
+        if (!compactIndexingLog) {
+            if (indexingOutcomes == null || !indexingOutcomes.isEmpty()) {
+                indexingOutcomes = Collections.emptyMap();
+                IndexingLog.discardOutcomes(getRootDir());
+            }
+            super.computeChildren(observer, listener);
+            return;
+        }
+        if (indexingOutcomes == null) {
+            indexingOutcomes = IndexingLog.loadOutcomes(getRootDir());
+        }
+        IndexingLog log = new IndexingLog(indexingOutcomes);
+        indexingLog = log;
+        try {
+            super.computeChildren(observer, listener);
+        } finally {
+            indexingLog = null;
+            indexingOutcomes = log.getOutcomes();
+            log.finish(getRootDir(), listener);
+        }
     }
 
     @NonNull
@@ -110,6 +291,192 @@ public class FreeStyleMultiBranchProject extends
         }
     }
 
+    @CheckForNull
+    public BuildRetentionPolicy getBuildRetention() {
+        return buildRetention;
+    }
+
+    public void setBuildRetention(@CheckForNull BuildRetentionPolicy buildRetention) {
+        this.buildRetention = buildRetention;
+    }
+
+    public boolean isPrefetch() {
+        return prefetch;
+    }
+
+    public void setPrefetch(boolean prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    public boolean isCompactIndexingLog() {
+        return compactIndexingLog;
+    }
+
+    public void setCompactIndexingLog(boolean compactIndexingLog) {
+        this.compactIndexingLog = compactIndexingLog;
+    }
+
+    public boolean isCompressBuildLogs() {
+        return compressBuildLogs;
+    }
+
+    public void setCompressBuildLogs(boolean compressBuildLogs) {
+        this.compressBuildLogs = compressBuildLogs;
+    }
+
+    public int getHibernateAfterDays() {
+        return hibernateAfterDays;
+    }
+
+    public void setHibernateAfterDays(int hibernateAfterDays) {
+        this.hibernateAfterDays = Math.max(0, hibernateAfterDays);
+    }
+
+    /**
+     * Returns the index of the last build status of each branch job.
+     *
+     * @return the index.
+     */
+    @NonNull
+    public synchronized BranchStatusIndex getStatusIndex() {
+        if (statusIndex == null) {
+            statusIndex = BranchStatusIndex.load(this);
+        }
+        return statusIndex;
+    }
+
+    /**
+     * Returns the agent disk used by the workspaces of each branch job.
+     *
+     * @return the index.
+     */
+    @NonNull
+    public synchronized WorkspaceUsageIndex getWorkspaceUsage() {
+        if (workspaceUsage == null) {
+            workspaceUsage = WorkspaceUsageIndex.load(this);
+        }
+        return workspaceUsage;
+    }
+
+    /**
+     * Returns the roots of the nodes that the branch workspaces were placed on.
+     *
+     * @return the placement.
+     */
+    @NonNull
+    public synchronized WorkspacePlacement getWorkspacePlacement() {
+        if (workspacePlacement == null) {
+            workspacePlacement = WorkspacePlacement.load(this);
+        }
+        return workspacePlacement;
+    }
+
+    /**
+     * Returns the probe latency and rejection rate learned for each criteria on each source.
+     *
+     * @return the statistics.
+     */
+    @NonNull
+    public synchronized CriteriaStatistics getCriteriaStatistics() {
+        if (criteriaStatistics == null) {
+            criteriaStatistics = CriteriaStatistics.load(this);
+        }
+        return criteriaStatistics;
+    }
+
+    /**
+     * Returns the interner that shares the common configuration of the branch jobs.
+     *
+     * @return the interner.
+     */
+    @NonNull
+    /*package*/ synchronized BranchInterner getBranchInterner() {
+        if (branchInterner == null) {
+            branchInterner = new BranchInterner();
+        }
+        return branchInterner;
+    }
+
+    /**
+     * Exposes the {@link #getStatusIndex()} through the REST API so that clients do not need to walk the jobs.
+     *
+     * @return the status of each branch job.
+     */
+    @Exported(name = "branchStatus")
+    public List<BranchStatusIndex.Entry> getBranchStatus() {
+        return getStatusIndex().getEntries();
+    }
+
+    /**
+     * A cursor-paged listing of the branch jobs served from the {@link #getStatusIndex()}. Each page is written to
+     * the response as it is produced, so large folders do not need to be rendered in memory like {@code api/json}.
+     * The {@code revision} of each branch is the head revision last seen by indexing, {@code lastBuildRevision} is
+     * the revision that the last build checked out.
+     *
+     * @param after  the {@code next} cursor returned by the previous page, omit for the first page.
+     * @param limit  the page size, at most {@link #MAX_BRANCHES_PAGE_SIZE}.
+     * @param name   an optional regular expression that the branch job name must match.
+     * @param result an optional result, e.g. {@code FAILURE}, that the last build must have, unknown results are
+     *               rejected with {@code 400}.
+     * @param rsp    the response.
+     * @throws IOException if the response could not be written.
+     */
+    @Restricted(DoNotUse.class) // stapler web method
+    public void doBranches(@QueryParameter String after, @QueryParameter int limit, @QueryParameter String name,
+                           @QueryParameter String result, StaplerResponse rsp) throws IOException {
+        checkPermission(READ);
+        Pattern namePattern;
+        try {
+            namePattern = StringUtils.isBlank(name) ? null : Pattern.compile(name);
+        } catch (PatternSyntaxException e) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "Invalid name pattern: " + e.getDescription());
+            return;
+        }
+        Result resultFilter = null;
+        if (StringUtils.isNotBlank(result)) {
+            // Result.fromString maps anything it does not know to FAILURE
+            resultFilter = Result.fromString(result.trim());
+            if (!resultFilter.toString().equalsIgnoreCase(result.trim())) {
+                rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "Unknown result: " + result);
+                return;
+            }
+        }
+        if (limit <= 0 || limit > MAX_BRANCHES_PAGE_SIZE) {
+            limit = limit <= 0 ? DEFAULT_BRANCHES_PAGE_SIZE : MAX_BRANCHES_PAGE_SIZE;
+        }
+        List<BranchStatusIndex.Entry> page = getStatusIndex().page(StringUtils.defaultIfEmpty(after, null), limit,
+                namePattern, resultFilter);
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.write("{\"branches\":[");
+        boolean first = true;
+        for (BranchStatusIndex.Entry entry : page) {
+            ProjectImpl project = getItem(entry.getName());
+            if (!first) {
+                w.write(',');
+            }
+            first = false;
+            w.write("{\"name\":");
+            w.write(JSONUtils.quote(entry.getName()));
+            w.write(",\"displayName\":");
+            w.write(JSONUtils.quote(project == null ? entry.getName() : project.getDisplayName()));
+            SCMRevision revision = project == null ? null : getProjectFactory().getRevision(project);
+            w.write(",\"revision\":");
+            w.write(revision == null ? "null" : JSONUtils.quote(revision.toString()));
+            w.write(",\"lastBuildRevision\":");
+            w.write(entry.getRevision() == null ? "null" : JSONUtils.quote(entry.getRevision()));
+            w.write(",\"result\":");
+            w.write(entry.getResult() == null ? "null" : JSONUtils.quote(entry.getResult().toString()));
+            w.write(",\"building\":");
+            w.write(Boolean.toString(entry.isBuilding()));
+            w.write('}');
+        }
+        w.write("],\"next\":");
+        w.write(page.size() < limit ? "null" : JSONUtils.quote(page.get(page.size() - 1).getName()));
+        w.write('}');
+        w.flush();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -131,8 +498,7 @@ public class FreeStyleMultiBranchProject extends
             String chosen = projects.iterator().next().getName(); // fallback
             for (ProjectImpl p : projects) {
                 String n = p.getName();
-                // TODO would appreciate an API in SCMSource to find the main branch
-                if (/* Git */ n.equals("master") || /* SVN?? */ n.equals("trunk") || /* Hg */n.equals("default")) {
+                if (isPrimaryBranchName(n)) {
                     chosen = n;
                     break;
                 }
@@ -140,11 +506,110 @@ public class FreeStyleMultiBranchProject extends
             return getUrlChildPrefix() + "/" + chosen + "/parent";
         }
     }
+    /**
+     * Guesses whether the named branch job is for the main line of development.
+     *
+     * @param name the branch job name.
+     * @return {@code true} if the name is the conventional name of a main branch.
+     */
+    /*package*/ static boolean isPrimaryBranchName(String name) {
+        // TODO would appreciate an API in SCMSource to find the main branch
+        return /* Git */ "master".equals(name) || /* SVN?? */ "trunk".equals(name) || /* Hg */"default".equals(name);
+    }
+
     @Restricted(NoExternalUse.class) // for Ancestor binding only
     public ProjectImpl getDummyBranch() {
         return new ProjectImpl(this);
     }
 
+    /**
+     * Starts predicting what a branch indexing would do, without changing any branch job, see
+     * {@link IndexingSimulator}. The request body may be a JSON object whose {@code scmSourceCriteria} is bound as the
+     * configuration form would bind it, for example
+     * <pre>
+     * {"scmSourceCriteria": {"$class": "org.cloudbees.jenkins.multibranch.freestyle.MarkerFreeStyleSCMSourceCriteria",
+     *                        "fileName": "build.xml"}}
+     * </pre>
+     * otherwise the current criteria are used. The simulation runs in the background: poll
+     * {@link #doSimulateIndexingResult} for the prediction and read its output from {@link #doSimulateIndexingLog}.
+     *
+     * @param req the request.
+     * @param rsp the response.
+     * @throws IOException if the simulation could not be started.
+     */
+    @RequirePOST
+    @Restricted(DoNotUse.class) // stapler web method
+    public void doSimulateIndexing(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        checkPermission(CONFIGURE);
+        String body = IOUtils.toString(req.getReader());
+        FreeStyleSCMSourceCriteria criteria = getScmSourceCriteria();
+        if (StringUtils.isNotBlank(body)) {
+            try {
+                JSONObject json = JSONObject.fromObject(body);
+                if (json.has("scmSourceCriteria")) {
+                    criteria = req.bindJSON(FreeStyleSCMSourceCriteria.class, json.getJSONObject("scmSourceCriteria"));
+                }
+            } catch (RuntimeException e) {
+                rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "Invalid criteria: " + e.getMessage());
+                return;
+            }
+            if (criteria == null) {
+                rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "Not a freestyle multibranch criteria");
+                return;
+            }
+        }
+        IndexingSimulator.Simulation started;
+        synchronized (this) {
+            if (simulation != null && !simulation.isDone()) {
+                rsp.sendError(StaplerResponse.SC_CONFLICT, "A simulation is already running");
+                return;
+            }
+            started = simulation = IndexingSimulator.start(this,
+                    criteria instanceof AllFreeStyleSCMSourceCriteria ? null : criteria);
+        }
+        rsp.setStatus(StaplerResponse.SC_ACCEPTED);
+        rsp.setHeader("Location", getAbsoluteUrl() + "simulateIndexingResult");
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().write(started.toJSON().toString(2));
+    }
+
+    /**
+     * Reports the state of the last simulation started by {@link #doSimulateIndexing}, including the prediction once
+     * it has finished.
+     *
+     * @param rsp the response.
+     * @throws IOException if the response could not be written.
+     */
+    @Restricted(DoNotUse.class) // stapler web method
+    public void doSimulateIndexingResult(StaplerResponse rsp) throws IOException {
+        checkPermission(CONFIGURE);
+        IndexingSimulator.Simulation simulation = this.simulation;
+        if (simulation == null) {
+            rsp.sendError(StaplerResponse.SC_NOT_FOUND, "No simulation has been started");
+            return;
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().write(simulation.toJSON().toString(2));
+    }
+
+    /**
+     * Serves the output of the probes of the last simulation started by {@link #doSimulateIndexing}.
+     *
+     * @param rsp the response.
+     * @throws IOException if the response could not be written.
+     */
+    @Restricted(DoNotUse.class) // stapler web method
+    public void doSimulateIndexingLog(StaplerResponse rsp) throws IOException {
+        checkPermission(CONFIGURE);
+        IndexingSimulator.Simulation simulation = this.simulation;
+        if (simulation == null || !simulation.getLog().isFile()) {
+            rsp.sendError(StaplerResponse.SC_NOT_FOUND, "No simulation has been started");
+            return;
+        }
+        rsp.setContentType("text/plain;charset=UTF-8");
+        FileUtils.copyFile(simulation.getLog(), rsp.getOutputStream());
+    }
+
     @Override
     protected void submit(StaplerRequest req, StaplerResponse rsp)
             throws IOException, ServletException, Descriptor.FormException {
@@ -160,6 +625,13 @@ public class FreeStyleMultiBranchProject extends
                 recalculateAfterSubmitted(true);
             }
         }
+        prefetch = json.optBoolean("prefetch");
+        compactIndexingLog = json.optBoolean("compactIndexingLog");
+        compressBuildLogs = json.optBoolean("compressBuildLogs");
+        hibernateAfterDays = Math.max(0, json.optInt("hibernateAfterDays"));
+        buildRetention = json.has("buildRetention")
+                ? req.bindJSON(BuildRetentionPolicy.class, json.getJSONObject("buildRetention"))
+                : null;
     }
 
     /**
@@ -221,7 +693,7 @@ public class FreeStyleMultiBranchProject extends
     /**
      * The per-branch jobs
      */
-    public static class ProjectImpl extends Project<ProjectImpl, BuildImpl> implements TopLevelItem {
+    public static class ProjectImpl extends Project<ProjectImpl, BuildImpl> implements TopLevelItem, StaplerProxy {
 
         /**
          * HACK to remove the ability to configure from the inherited jelly files
@@ -234,6 +706,16 @@ public class FreeStyleMultiBranchProject extends
          */
         private Branch branch;
 
+        /**
+         * Whether our configuration has been released from memory by {@link BranchHibernation}.
+         */
+        private transient volatile boolean hibernated;
+
+        /**
+         * Set while the framework reads a hibernated job without needing its full configuration.
+         */
+        private static final ThreadLocal<Boolean> readingHibernated = new ThreadLocal<Boolean>();
+
         /**
          * Prevent default constructor.
          */
@@ -290,6 +772,17 @@ public class FreeStyleMultiBranchProject extends
             }
         }
 
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onLoad(ItemGroup<? extends Item> parent, String name) throws IOException {
+            super.onLoad(parent, name);
+            if (branch != null && parent instanceof FreeStyleMultiBranchProject) {
+                branch = ((FreeStyleMultiBranchProject) parent).getBranchInterner().intern(branch);
+            }
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -330,6 +823,21 @@ public class FreeStyleMultiBranchProject extends
             return branch.getScm();
         }
 
+        /**
+         * {@inheritDoc}
+         * <p>
+         * Served from the parent's {@link BranchStatusIndex} so that listing the branch jobs does not load builds.
+         */
+        @Override
+        public BallColor getIconColor() {
+            FreeStyleMultiBranchProject parent = getParent();
+            if (parent == null || isDisabled()) {
+                return super.getIconColor();
+            }
+            BranchStatusIndex.Entry entry = parent.getStatusIndex().get(getName());
+            return entry == null ? super.getIconColor() : entry.getColor();
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -338,6 +846,24 @@ public class FreeStyleMultiBranchProject extends
             return super.isBuildable() && branch.isBuildable();
         }
 
+        /**
+         * {@inheritDoc}
+         * <p>
+         * The job directory, with all its builds, is moved aside and deleted in the background by
+         * {@link BranchJobReaper} so that indexing is not held up when many branches are removed at once.
+         */
+        @Override
+        protected void performDelete() throws IOException, InterruptedException {
+            // the workspace cleanup done by our superclass needs the last build, so load it while we still can
+            getLastBuild();
+            // our superclass disables the job first, which saves config.xml; do it now so that nothing is written
+            // into the job directory once it has been moved aside
+            makeDisabled(true);
+            BranchJobReaper.reap(this);
+            // only cleans up the workspace now, the recursive delete of the moved directory finds nothing
+            super.performDelete();
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -371,6 +897,195 @@ public class FreeStyleMultiBranchProject extends
             this.branch = branch;
         }
 
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public DescribableList<Builder, Descriptor<Builder>> getBuildersList() {
+            wakeOnAccess();
+            return super.getBuildersList();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public DescribableList<Publisher, Descriptor<Publisher>> getPublishersList() {
+            wakeOnAccess();
+            return super.getPublishersList();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public DescribableList<BuildWrapper, Descriptor<BuildWrapper>> getBuildWrappersList() {
+            wakeOnAccess();
+            return super.getBuildWrappersList();
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p>
+         * The dependency graph is rebuilt whenever any job is saved, so a hibernated job contributes the
+         * {@link DependencyDeclarer}s kept by {@link #hibernate()} instead of being restored.
+         */
+        @Override
+        protected void buildDependencyGraph(DependencyGraph graph) {
+            readingHibernated.set(Boolean.TRUE);
+            try {
+                super.buildDependencyGraph(graph);
+            } finally {
+                readingHibernated.remove();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Object getTarget() {
+            // any UI access restores the full configuration
+            wake();
+            return this;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void save() throws IOException {
+            wake();
+            if (hibernated) {
+                // writing now would replace the configuration that is still on disk with the released one
+                throw new IOException("Could not restore hibernated branch job " + getFullName()
+                        + " from " + getConfigFile() + ", refusing to save it");
+            }
+            super.save();
+        }
+
+        /*package*/ boolean isHibernated() {
+            return hibernated;
+        }
+
+        /**
+         * Releases the build steps and cached builds from memory until the next time they are needed.
+         *
+         * @return an estimate of the heap released in bytes, {@code 0} if the job could not be hibernated.
+         */
+        /*package*/ long hibernate() {
+            final long[] released = new long[1];
+            // holding the queue lock means no build of ours can be scheduled while we check and release
+            Queue.withLock(new Runnable() {
+                @Override
+                public void run() {
+                    released[0] = hibernateIfIdle();
+                }
+            });
+            return released[0];
+        }
+
+        private synchronized long hibernateIfIdle() {
+            if (hibernated || isBuilding() || isInQueue()) {
+                return 0;
+            }
+            DescribableList<Builder, Descriptor<Builder>> builders = super.getBuildersList();
+            DescribableList<Publisher, Descriptor<Publisher>> publishers = super.getPublishersList();
+            DescribableList<BuildWrapper, Descriptor<BuildWrapper>> buildWrappers = super.getBuildWrappersList();
+            // the XML form is a rough but cheap proxy for the size of the object graph
+            long estimate = 2L * (Items.XSTREAM2.toXML(builders).length()
+                    + Items.XSTREAM2.toXML(publishers).length()
+                    + Items.XSTREAM2.toXML(buildWrappers).length());
+            // published first, so that readers wait in wake() for our lock rather than see half cleared lists
+            hibernated = true;
+            replace(builders, declarers(builders));
+            replace(publishers, declarers(publishers));
+            replace(buildWrappers, declarers(buildWrappers));
+            _getRuns().purgeCache();
+            return estimate;
+        }
+
+        /**
+         * Returns the {@link DependencyDeclarer}s of a list, which are kept to build the dependency graph.
+         *
+         * @param list the list.
+         * @param <T>  the type of entries.
+         * @return the dependency declarers.
+         */
+        private static <T extends Describable<T>> List<T> declarers(DescribableList<T, Descriptor<T>> list) {
+            List<T> declarers = new ArrayList<T>();
+            for (T item : list) {
+                if (item instanceof DependencyDeclarer) {
+                    declarers.add(item);
+                }
+            }
+            return declarers;
+        }
+
+        /**
+         * Replaces the entries of one of our lists without saving.
+         *
+         * @param list  the list.
+         * @param items the new entries.
+         * @param <T>   the type of entries.
+         */
+        private <T extends Describable<T>> void replace(DescribableList<T, Descriptor<T>> list,
+                                                        Collection<? extends T> items) {
+            // same trick as our constructor: do not let the owner save while we modify the list
+            list.setOwner(Saveable.NOOP);
+            try {
+                list.replaceBy(items);
+            } catch (IOException e) {
+                // ignore, should never happen as owner is Saveable.NOOP
+            } finally {
+                list.setOwner(this);
+            }
+        }
+
+        /**
+         * Restores the configuration released by {@link #hibernate()} unless the framework is only reading the parts
+         * that were kept.
+         */
+        private void wakeOnAccess() {
+            if (hibernated && readingHibernated.get() == null) {
+                wake();
+            }
+        }
+
+        /**
+         * Restores the lists released by {@link #hibernate()} from our {@code config.xml}. Everything else was kept,
+         * so the job is not loaded again: its triggers keep running and its builds stay as they are.
+         */
+        /*package*/ void wake() {
+            if (!hibernated) {
+                return;
+            }
+            synchronized (this) {
+                if (!hibernated) {
+                    return;
+                }
+                try {
+                    Object stored = getConfigFile().read();
+                    if (!(stored instanceof ProjectImpl)) {
+                        throw new IOException(getConfigFile() + " does not hold a branch job");
+                    }
+                    ProjectImpl copy = (ProjectImpl) stored;
+                    replace(super.getBuildersList(), copy.getBuildersList().toList());
+                    replace(super.getPublishersList(), copy.getPublishersList().toList());
+                    replace(super.getBuildWrappersList(), copy.getBuildWrappersList().toList());
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not restore hibernated branch job " + getFullName(), e);
+                    return;
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Could not restore hibernated branch job " + getFullName(), e);
+                    return;
+                }
+                // only now, readers that saw the flag have been waiting for our lock
+                hibernated = false;
+            }
+            BranchHibernation.onWoken(this);
+        }
+
         /**
          * Our descriptor.
          */
@@ -412,6 +1127,16 @@ public class FreeStyleMultiBranchProject extends
      */
     public static class BuildImpl extends Build<ProjectImpl, BuildImpl> {
 
+        /**
+         * The maximum number of bytes served by {@link #doLogRange} and {@link #doLogTail}.
+         */
+        private static final long MAX_LOG_RANGE = 4L * 1024 * 1024;
+
+        /**
+         * The maximum number of lines served by {@link #doLogLines}.
+         */
+        private static final int MAX_LOG_LINES = 10000;
+
         /**
          * {@inheritDoc}
          */
@@ -426,6 +1151,73 @@ public class FreeStyleMultiBranchProject extends
             super(project, buildDir);
         }
 
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public AnnotatedLargeText getLogText() {
+            return BuildLogStore.isCompressed(this) ? new BuildLogStore.LogText(this) : super.getLogText();
+        }
+
+        /**
+         * Serves a byte range of the plain console log, decompressing only the blocks needed when the log is stored
+         * by {@link BuildLogStore}. The {@code X-Next-Start} header holds the offset to continue from.
+         *
+         * @param start  the offset of the first byte.
+         * @param length the maximum number of bytes, at most {@link #MAX_LOG_RANGE}.
+         * @param rsp    the response.
+         * @throws IOException if the log could not be read.
+         */
+        @Restricted(DoNotUse.class) // stapler web method
+        public void doLogRange(@QueryParameter long start, @QueryParameter long length, StaplerResponse rsp)
+                throws IOException {
+            checkPermission(Item.READ);
+            writeLogRange(start, length <= 0 ? MAX_LOG_RANGE : length, rsp);
+        }
+
+        /**
+         * Serves the end of the plain console log.
+         *
+         * @param bytes the number of bytes, at most {@link #MAX_LOG_RANGE}.
+         * @param rsp   the response.
+         * @throws IOException if the log could not be read.
+         */
+        @Restricted(DoNotUse.class) // stapler web method
+        public void doLogTail(@QueryParameter long bytes, StaplerResponse rsp) throws IOException {
+            checkPermission(Item.READ);
+            long length = bytes <= 0 || bytes > MAX_LOG_RANGE ? MAX_LOG_RANGE : bytes;
+            writeLogRange(BuildLogStore.length(this) - length, length, rsp);
+        }
+
+        /**
+         * Serves a range of lines of the plain console log.
+         *
+         * @param from  the zero based number of the first line.
+         * @param count the maximum number of lines, at most {@link #MAX_LOG_LINES}.
+         * @param rsp   the response.
+         * @throws IOException if the log could not be read.
+         */
+        @Restricted(DoNotUse.class) // stapler web method
+        public void doLogLines(@QueryParameter long from, @QueryParameter int count, StaplerResponse rsp)
+                throws IOException {
+            checkPermission(Item.READ);
+            rsp.setContentType("text/plain;charset=" + getCharset().name());
+            PlainTextConsoleOutputStream out = new PlainTextConsoleOutputStream(rsp.getOutputStream());
+            BuildLogStore.writeLines(this, from, count <= 0 || count > MAX_LOG_LINES ? MAX_LOG_LINES : count, out);
+            out.close();
+        }
+
+        private void writeLogRange(long start, long length, StaplerResponse rsp) throws IOException {
+            start = Math.max(0L, start);
+            long end = Math.min(start + Math.min(length, MAX_LOG_RANGE), BuildLogStore.length(this));
+            long next = Math.max(start, end);
+            rsp.setContentType("text/plain;charset=" + getCharset().name());
+            rsp.setHeader("X-Next-Start", Long.toString(next));
+            PlainTextConsoleOutputStream out = new PlainTextConsoleOutputStream(rsp.getOutputStream());
+            BuildLogStore.writeRange(this, start, next - start, out);
+            out.close();
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -447,18 +1239,44 @@ public class FreeStyleMultiBranchProject extends
                     throws InterruptedException, IOException {
                 final ProjectImpl project = getProject();
 
-                FilePath parentWorkspace = n.getWorkspaceFor(project.getParent());
-                if (parentWorkspace == null) {
-                    throw new IllegalStateException("node " + n.getNodeName() + "is no longer connected");
-                }
+                long start = FreeStyleMultiBranchMetrics.DECIDE_WORKSPACE.start();
+                try {
+                    FilePath workspace = project.getParent().getWorkspacePlacement().place(n, project);
+                    if (workspace == null) {
+                        workspace = getBranchWorkspace(n, project);
+                    }
+                    if (workspace == null) {
+                        throw new IllegalStateException("node " + n.getNodeName() + "is no longer connected");
+                    }
+                    BranchPrefetcher.await(n, workspace);
 
-                return wsl.allocate(parentWorkspace.child(project.getName()));
+                    return wsl.allocate(workspace);
+                } finally {
+                    FreeStyleMultiBranchMetrics.DECIDE_WORKSPACE.stop(start);
+                }
             }
 
         }
 
     }
 
+    /**
+     * Returns the workspace of a branch job on a node, on the root chosen by the {@link WorkspacePlacement} if any.
+     *
+     * @param n       the node.
+     * @param project the branch job.
+     * @return the workspace or {@code null} if the node is no longer connected.
+     */
+    @CheckForNull
+    /*package*/ static FilePath getBranchWorkspace(@NonNull Node n, @NonNull ProjectImpl project) {
+        FilePath placed = project.getParent().getWorkspacePlacement().get(n, project);
+        if (placed != null) {
+            return placed;
+        }
+        FilePath parentWorkspace = n.getWorkspaceFor(project.getParent());
+        return parentWorkspace == null ? null : parentWorkspace.child(project.getName());
+    }
+
     /**
      * Provide a nicer config.xml for jobs.
      */
@@ -467,5 +1285,12 @@ public class FreeStyleMultiBranchProject extends
     public static void registerXStream() {
         Items.XSTREAM.alias("freestyle-multibranch", FreeStyleMultiBranchProject.class);
         Items.XSTREAM.alias("freestyle-branch", ProjectImpl.class);
+        Items.XSTREAM.registerConverter(
+                new ProjectImplConverter(Items.XSTREAM2.getMapper(), Items.XSTREAM2.getReflectionProvider()),
+                XStream.PRIORITY_NORMAL);
+        Items.XSTREAM.registerLocalConverter(ProjectImpl.class, "branch",
+                new BranchConverter(Items.XSTREAM2.getMapper(),
+                        new RobustReflectionConverter(Items.XSTREAM2.getMapper(),
+                                Items.XSTREAM2.getReflectionProvider())));
     }
 }
@@ -25,11 +25,16 @@
 
 package org.cloudbees.jenkins.multibranch.freestyle;
 
+import com.cloudbees.hudson.plugins.folder.computed.FolderComputation;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
 import hudson.ExtensionList;
+import hudson.Util;
 import hudson.model.ItemGroup;
 import hudson.model.Items;
+import hudson.model.Result;
+import hudson.security.ACL;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -38,14 +43,46 @@ import jenkins.branch.BranchProjectFactoryDescriptor;
 import jenkins.branch.MultiBranchProject;
 import jenkins.branch.MultiBranchProjectFactory;
 import jenkins.branch.MultiBranchProjectFactoryDescriptor;
+import jenkins.branch.OrganizationFolder;
+import jenkins.model.Jenkins;
 import jenkins.scm.api.SCMSource;
 import jenkins.scm.api.SCMSourceCriteria;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 
 public class FreeStyleMultiBranchProjectFactory extends MultiBranchProjectFactory.BySCMSourceCriteria {
     private FreeStyleSCMSourceCriteria scmSourceCriteria = new AllFreeStyleSCMSourceCriteria();
     private final BranchProjectFactory<FreeStyleMultiBranchProject.ProjectImpl, FreeStyleMultiBranchProject.BuildImpl> factory;
+    /**
+     * The maximum number of heads of a repository probed at once, {@code 0} or {@code 1} to probe them one at a time.
+     */
+    private int maxConcurrentProbes;
+    /**
+     * The maximum number of repository probes started per minute, {@code 0} for unlimited.
+     */
+    private int probesPerMinute;
+    /**
+     * The throttle shared by all the repositories this factory probes.
+     */
+    private transient ProbeThrottle probeThrottle;
+    /**
+     * A digest of {@link #scmSourceCriteria} identifying the outcomes it produced in {@link ProbeProgress}.
+     */
+    private transient String criteriaDigest;
+    /**
+     * The criteria statistics learned during scans, kept in memory as the projects may not exist yet.
+     */
+    private transient CriteriaStatistics criteriaStatistics;
+    /**
+     * The organization folder this factory belongs to, looked up on first use.
+     */
+    private transient OrganizationFolder owner;
+    /**
+     * The scan of {@link #owner} that was in progress when a repository was last probed.
+     */
+    private transient FolderComputation<?> lastComputation;
 
 
     @DataBoundConstructor
@@ -59,14 +96,98 @@ public class FreeStyleMultiBranchProjectFactory extends MultiBranchProjectFactor
     }
 
     @DataBoundSetter
-    public void setScmSourceCriteria(FreeStyleSCMSourceCriteria scmSourceCriteria) {
+    public synchronized void setScmSourceCriteria(FreeStyleSCMSourceCriteria scmSourceCriteria) {
         this.scmSourceCriteria = scmSourceCriteria;
+        this.criteriaDigest = null;
+    }
+
+    public int getMaxConcurrentProbes() {
+        return maxConcurrentProbes;
+    }
+
+    @DataBoundSetter
+    public synchronized void setMaxConcurrentProbes(int maxConcurrentProbes) {
+        this.maxConcurrentProbes = Math.max(0, maxConcurrentProbes);
+        this.probeThrottle = null;
+    }
+
+    public int getProbesPerMinute() {
+        return probesPerMinute;
+    }
+
+    @DataBoundSetter
+    public synchronized void setProbesPerMinute(int probesPerMinute) {
+        this.probesPerMinute = Math.max(0, probesPerMinute);
+        this.probeThrottle = null;
     }
 
     @NonNull
     @Override
-    protected SCMSourceCriteria getSCMSourceCriteria(@NonNull SCMSource source) {
-        return scmSourceCriteria;
+    protected synchronized SCMSourceCriteria getSCMSourceCriteria(@NonNull SCMSource source) {
+        if (scmSourceCriteria == null || scmSourceCriteria instanceof AllFreeStyleSCMSourceCriteria) {
+            // nothing is probed, so there is nothing to throttle or remember
+            return new AllFreeStyleSCMSourceCriteria();
+        }
+        if (probeThrottle == null) {
+            probeThrottle = new ProbeThrottle(maxConcurrentProbes, probesPerMinute);
+        }
+        if (criteriaDigest == null) {
+            criteriaDigest = Util.getDigestOf(Items.XSTREAM.toXML(scmSourceCriteria));
+        }
+        if (criteriaStatistics == null) {
+            criteriaStatistics = new CriteriaStatistics();
+        }
+        return new ThrottledSCMSourceCriteria(
+                new InstrumentedSCMSourceCriteria(scmSourceCriteria, criteriaStatistics, source.getId()), probeThrottle,
+                getProbeProgress(source), source, criteriaDigest);
+    }
+
+    /**
+     * Returns the probe progress of the organization folder, marking the repository as offered and dropping the
+     * repositories that the last complete scan did not offer.
+     *
+     * @param source the repository being probed.
+     * @return the progress or {@code null} if this factory does not belong to an organization folder.
+     */
+    @CheckForNull
+    private ProbeProgress getProbeProgress(@NonNull SCMSource source) {
+        if (owner == null) {
+            owner = findOwner();
+            if (owner == null) {
+                return null;
+            }
+        }
+        ProbeProgress progress = ProbeProgress.of(owner);
+        FolderComputation<?> computation = owner.getComputation();
+        if (computation != lastComputation) {
+            if (lastComputation != null && lastComputation.getResult() == Result.SUCCESS) {
+                progress.prune(lastComputation.getTimestamp().getTimeInMillis());
+            }
+            lastComputation = computation;
+        }
+        progress.seen(ProbeProgress.sourceKey(source));
+        return progress;
+    }
+
+    @CheckForNull
+    private OrganizationFolder findOwner() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return null;
+        }
+        SecurityContext context = ACL.impersonate(ACL.SYSTEM);
+        try {
+            for (OrganizationFolder folder : jenkins.getAllItems(OrganizationFolder.class)) {
+                for (MultiBranchProjectFactory f : folder.getProjectFactories()) {
+                    if (f == this) {
+                        return folder;
+                    }
+                }
+            }
+            return null;
+        } finally {
+            SecurityContextHolder.setContext(context);
+        }
     }
 
     public BranchProjectFactory<FreeStyleMultiBranchProject.ProjectImpl, FreeStyleMultiBranchProject.BuildImpl> getFactory() {
@@ -78,10 +199,15 @@ public class FreeStyleMultiBranchProjectFactory extends MultiBranchProjectFactor
     @Override
     protected MultiBranchProject<?, ?> doCreateProject(@NonNull ItemGroup<?> parent, @NonNull String name,
                                                        @NonNull Map<String, Object> attributes) {
-        FreeStyleMultiBranchProject result = new FreeStyleMultiBranchProject(parent, name);
-        // NOTE: we need to clone the factory so that each child project can set their factory's owner correctly
-        result.setProjectFactory((BranchProjectFactory) Items.XSTREAM.fromXML(Items.XSTREAM.toXML(this.factory)));
-        return result;
+        long start = FreeStyleMultiBranchMetrics.CREATE_PROJECT.start();
+        try {
+            FreeStyleMultiBranchProject result = new FreeStyleMultiBranchProject(parent, name);
+            // NOTE: we need to clone the factory so that each child project can set their factory's owner correctly
+            result.setProjectFactory((BranchProjectFactory) Items.XSTREAM.fromXML(Items.XSTREAM.toXML(this.factory)));
+            return result;
+        } finally {
+            FreeStyleMultiBranchMetrics.CREATE_PROJECT.stop(start);
+        }
     }
 
     @Extension
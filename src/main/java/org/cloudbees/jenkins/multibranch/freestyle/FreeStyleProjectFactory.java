@@ -102,12 +102,18 @@ public class FreeStyleProjectFactory
      */
     @Override
     public FreeStyleMultiBranchProject.ProjectImpl newInstance(Branch branch) {
-        return new FreeStyleMultiBranchProject.ProjectImpl((FreeStyleMultiBranchProject) getOwner(),
-                branch,
-                Collections.<JobProperty<? super FreeStyleMultiBranchProject.ProjectImpl>>emptyList(),
-                Descriptor.toMap(buildWrappers),
-                builders,
-                Descriptor.toMap(publishers));
+        long start = FreeStyleMultiBranchMetrics.NEW_INSTANCE.start();
+        try {
+            FreeStyleMultiBranchProject owner = (FreeStyleMultiBranchProject) getOwner();
+            return new FreeStyleMultiBranchProject.ProjectImpl(owner,
+                    owner == null ? branch : owner.getBranchInterner().intern(branch),
+                    Collections.<JobProperty<? super FreeStyleMultiBranchProject.ProjectImpl>>emptyList(),
+                    Descriptor.toMap(buildWrappers),
+                    builders,
+                    Descriptor.toMap(publishers));
+        } finally {
+            FreeStyleMultiBranchMetrics.NEW_INSTANCE.stop(start);
+        }
     }
 
     /**
@@ -117,12 +123,16 @@ public class FreeStyleProjectFactory
     @Override
     public FreeStyleMultiBranchProject.ProjectImpl setBranch(
             @NonNull FreeStyleMultiBranchProject.ProjectImpl project, @NonNull Branch branch) {
+        branch = project.getParent().getBranchInterner().intern(branch);
         if (!project.getBranch().equals(branch)) {
             project.setBranch(branch);
+            long start = FreeStyleMultiBranchMetrics.SET_BRANCH_SAVE.start();
             try {
                 project.save();
             } catch (IOException e) {
                 // TODO log
+            } finally {
+                FreeStyleMultiBranchMetrics.SET_BRANCH_SAVE.stop(start);
             }
         } else {
             project.setBranch(branch);
@@ -0,0 +1,335 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.XmlFile;
+import hudson.model.Items;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+import jenkins.scm.api.SCMSourceCriteria;
+
+/**
+ * The compact indexing log of one branch indexing of a {@link FreeStyleMultiBranchProject}. Instead of the criteria
+ * writing lines for every head, the output of each probe is captured and kept only for heads that are new or whose
+ * outcome changed since the previous indexing, whose probe failed or whose probe was slow. The indexing log itself receives a summary
+ * of counts and timings per criteria, while the kept details are written gzip compressed, and capped in size, to
+ * {@code indexing/criteria.log.gz} in the folder. The outcomes are kept in {@code indexing/outcomes.xml} so that
+ * changes are still spotted across a restart.
+ * <p>
+ * Only the probes of the indexing itself are logged. Probes triggered by SCM events while the indexing runs happen on
+ * other threads and write to the event's listener as usual, see {@link #isIndexingThread()}.
+ */
+/*package*/ final class IndexingLog {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(IndexingLog.class.getName());
+
+    /**
+     * The name of the file that the details are written to, relative to the folder root.
+     */
+    /*package*/ static final String FILE_NAME = "indexing/criteria.log.gz";
+
+    /**
+     * Probes taking longer than this many milliseconds have their details kept.
+     */
+    /*package*/ static /* not final so it can be tweaked from the script console */ long SLOW_PROBE_MILLIS =
+            Long.getLong(IndexingLog.class.getName() + ".slowProbeMillis", 1000L);
+
+    /**
+     * The maximum number of uncompressed characters of details kept per indexing.
+     */
+    /*package*/ static /* not final so it can be tweaked from the script console */ int MAX_DETAIL_CHARS =
+            Integer.getInteger(IndexingLog.class.getName() + ".maxDetailChars", 4 * 1024 * 1024);
+
+    /**
+     * The name of the file that the outcomes are kept in, relative to the folder root.
+     */
+    /*package*/ static final String OUTCOMES_FILE_NAME = "indexing/outcomes.xml";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The outcome of each head in the previous indexing keyed by source id and head name.
+     */
+    @NonNull
+    private final Map<String, Boolean> previous;
+
+    /**
+     * The outcome of each head in this indexing keyed by source id and head name.
+     */
+    private final Map<String, Boolean> outcomes = new HashMap<String, Boolean>();
+
+    /**
+     * The summary of each criteria keyed by display name.
+     */
+    private final Map<String, Summary> summaries = new TreeMap<String, Summary>();
+
+    /**
+     * The kept details.
+     */
+    private final StringBuilder details = new StringBuilder();
+
+    /**
+     * The thread running the indexing.
+     */
+    private final Thread thread = Thread.currentThread();
+
+    /**
+     * The number of details dropped once {@link #MAX_DETAIL_CHARS} was reached.
+     */
+    private int dropped;
+
+    /**
+     * Constructor.
+     *
+     * @param previous the outcomes of the previous indexing.
+     */
+    /*package*/ IndexingLog(@NonNull Map<String, Boolean> previous) {
+        this.previous = previous;
+    }
+
+    /**
+     * Loads the outcomes kept by the previous indexing.
+     *
+     * @param rootDir the root directory of the folder.
+     * @return the outcome of each head keyed by source id and head name, empty if none were kept.
+     */
+    @NonNull
+    @SuppressWarnings("unchecked")
+    /*package*/ static Map<String, Boolean> loadOutcomes(@NonNull File rootDir) {
+        XmlFile file = new XmlFile(Items.XSTREAM, new File(rootDir, OUTCOMES_FILE_NAME));
+        if (file.exists()) {
+            try {
+                return new HashMap<String, Boolean>((Map<String, Boolean>) file.read());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not read " + file + ", every head will be treated as new", e);
+            } catch (ClassCastException e) {
+                LOGGER.log(Level.WARNING, "Unexpected content in " + file + ", every head will be treated as new", e);
+            }
+        }
+        return new HashMap<String, Boolean>();
+    }
+
+    /**
+     * Deletes the outcomes kept by the previous indexing.
+     *
+     * @param rootDir the root directory of the folder.
+     */
+    /*package*/ static void discardOutcomes(@NonNull File rootDir) {
+        File file = new File(rootDir, OUTCOMES_FILE_NAME);
+        if (file.isFile() && !file.delete()) {
+            LOGGER.log(Level.FINE, "Could not delete {0}", file);
+        }
+    }
+
+    /**
+     * Tells whether the caller is the thread running the indexing.
+     *
+     * @return {@code true} if the caller is running the indexing rather than, say, processing an SCM event.
+     */
+    /*package*/ boolean isIndexingThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Evaluates a criteria with its output captured.
+     *
+     * @param criteria    the criteria.
+     * @param displayName the name to summarize the criteria under.
+     * @param sourceId    the id of the source being probed.
+     * @param probe       the probe.
+     * @return the outcome.
+     * @throws IOException if the criteria could not be evaluated.
+     */
+    /*package*/ boolean evaluate(@NonNull SCMSourceCriteria criteria, @NonNull String displayName,
+                                 @CheckForNull String sourceId, @NonNull SCMSourceCriteria.Probe probe)
+            throws IOException {
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        TaskListener listener = new StreamTaskListener(captured, UTF_8);
+        long start = System.nanoTime();
+        Boolean result = null;
+        Throwable failure = null;
+        try {
+            result = criteria.isHead(probe, listener);
+            return result;
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } catch (Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            String key = sourceId + ':' + probe.name();
+            String reason = null;
+            synchronized (this) {
+                Summary summary = summaries.get(displayName);
+                if (summary == null) {
+                    summary = new Summary();
+                    summaries.put(displayName, summary);
+                }
+                summary.update(nanos, result);
+                if (result != null) {
+                    outcomes.put(key, result);
+                    Boolean was = previous.get(key);
+                    if (was == null) {
+                        reason = result ? "is new and matches" : "is new and does not match";
+                    } else if (!was.equals(result)) {
+                        reason = result ? "now matches" : "no longer matches";
+                    }
+                }
+            }
+            if (failure != null) {
+                reason = "failed";
+            } else if (reason == null && TimeUnit.NANOSECONDS.toMillis(nanos) > SLOW_PROBE_MILLIS) {
+                reason = "slow";
+            }
+            if (reason != null) {
+                StringBuilder entry = new StringBuilder();
+                entry.append(probe.name()).append(" (").append(sourceId).append(") ").append(reason).append(" in ")
+                        .append(TimeUnit.NANOSECONDS.toMillis(nanos)).append(" ms\n");
+                entry.append(new String(captured.toByteArray(), UTF_8));
+                if (failure != null) {
+                    StringWriter trace = new StringWriter();
+                    failure.printStackTrace(new PrintWriter(trace));
+                    entry.append(trace);
+                }
+                synchronized (this) {
+                    if (details.length() + entry.length() > MAX_DETAIL_CHARS) {
+                        dropped++;
+                    } else {
+                        details.append(entry);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the outcomes of this indexing for use by the next.
+     *
+     * @return the outcome of each head keyed by source id and head name.
+     */
+    @NonNull
+    /*package*/ synchronized Map<String, Boolean> getOutcomes() {
+        return new HashMap<String, Boolean>(outcomes);
+    }
+
+    /**
+     * Writes the summary to the indexing log, the details to {@link #FILE_NAME} and the outcomes to
+     * {@link #OUTCOMES_FILE_NAME}.
+     *
+     * @param rootDir  the root directory of the folder.
+     * @param listener the indexing log.
+     */
+    /*package*/ synchronized void finish(@NonNull File rootDir, @NonNull TaskListener listener) {
+        PrintStream logger = listener.getLogger();
+        for (Map.Entry<String, Summary> e : summaries.entrySet()) {
+            Summary s = e.getValue();
+            logger.format("%s: %d heads probed, %d matched, %d failed, mean %.1f ms, max %d ms%n", e.getKey(),
+                    s.count, s.matched, s.failed, s.count == 0 ? 0.0 : s.totalNanos / 1000000.0 / s.count,
+                    TimeUnit.NANOSECONDS.toMillis(s.maxNanos));
+        }
+        XmlFile outcomesFile = new XmlFile(Items.XSTREAM, new File(rootDir, OUTCOMES_FILE_NAME));
+        try {
+            outcomesFile.write(new HashMap<String, Boolean>(outcomes));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write " + outcomesFile, e);
+        }
+        File file = new File(rootDir, FILE_NAME);
+        if (details.length() == 0) {
+            if (file.isFile() && !file.delete()) {
+                LOGGER.log(Level.FINE, "Could not delete {0}", file);
+            }
+            return;
+        }
+        try {
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Could not create " + parent);
+            }
+            Writer w = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), UTF_8);
+            try {
+                w.write(details.toString());
+                if (dropped > 0) {
+                    w.write(String.format("%d further heads omitted as the details reached %d characters%n",
+                            dropped, MAX_DETAIL_CHARS));
+                }
+            } finally {
+                w.close();
+            }
+            logger.format("Details of changed, failed and slow heads in %s%n", FILE_NAME);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write " + file, e);
+        }
+    }
+
+    /**
+     * The counts and timings of one criteria.
+     */
+    private static final class Summary {
+        private int count;
+        private int matched;
+        private int failed;
+        private long totalNanos;
+        private long maxNanos;
+
+        private void update(long nanos, Boolean result) {
+            count++;
+            if (result == null) {
+                failed++;
+            } else if (result) {
+                matched++;
+            }
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+    }
+}
@@ -0,0 +1,478 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Util;
+import hudson.model.Items;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import jenkins.branch.OrganizationFolder;
+import jenkins.scm.api.SCMHead;
+import jenkins.scm.api.SCMHeadObserver;
+import jenkins.scm.api.SCMRevision;
+import jenkins.scm.api.SCMSource;
+import jenkins.scm.api.SCMSourceCriteria;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Predicts what a branch indexing of a {@link FreeStyleMultiBranchProject} would do with proposed criteria, without
+ * creating, saving or deleting any branch job. The sources are fetched in parallel, heads whose outcome under the
+ * proposed criteria is already known from {@link ProbeProgress} are not probed again, and the time spent probing is
+ * measured to estimate the cost of the real indexing. Branch jobs left without a matching head are split, as the
+ * project's orphaned item strategy would, into those the indexing would delete and those it would retain.
+ */
+public final class IndexingSimulator {
+
+    /**
+     * The maximum number of sources fetched at once.
+     */
+    /*package*/ static /* not final so it can be tweaked from the script console */ int THREADS =
+            Integer.getInteger(IndexingSimulator.class.getName() + ".threads", 4);
+
+    /**
+     * The name of the file that a background simulation logs to, relative to the project root.
+     */
+    /*package*/ static final String LOG_FILE_NAME = "indexing/simulation.log";
+
+    /**
+     * Runs the simulations started by {@link #start}.
+     */
+    private static final ExecutorService background = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(),
+                    IndexingSimulator.class.getSimpleName() + ".background"));
+
+    private IndexingSimulator() {
+    }
+
+    /**
+     * Simulates a branch indexing.
+     *
+     * @param project  the project.
+     * @param criteria the proposed criteria, {@code null} to match every head.
+     * @param sources  the proposed sources, {@code null} for the current sources of the project.
+     * @param listener receives the output of the probes.
+     * @return the predicted changes.
+     * @throws IOException          if a source could not be fetched.
+     * @throws InterruptedException if interrupted.
+     */
+    @NonNull
+    public static Prediction simulate(@NonNull FreeStyleMultiBranchProject project,
+                                      @CheckForNull FreeStyleSCMSourceCriteria criteria,
+                                      @CheckForNull List<SCMSource> sources,
+                                      @NonNull final TaskListener listener)
+            throws IOException, InterruptedException {
+        final List<SCMSource> toFetch = sources == null ? project.getSCMSources() : sources;
+        final String digest = criteria == null ? null : Util.getDigestOf(Items.XSTREAM.toXML(criteria));
+        // outcomes are only remembered for the projects of an organization folder
+        final ProbeProgress progress = project.getParent() instanceof OrganizationFolder
+                ? ProbeProgress.of((OrganizationFolder) project.getParent())
+                : null;
+        final Prediction prediction = new Prediction();
+        long start = System.nanoTime();
+        List<Map<String, SCMRevision>> found = new ArrayList<Map<String, SCMRevision>>(toFetch.size());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(THREADS, toFetch.size())),
+                new NamingThreadFactory(new DaemonThreadFactory(), IndexingSimulator.class.getSimpleName()));
+        try {
+            List<Future<Map<String, SCMRevision>>> futures = new ArrayList<Future<Map<String, SCMRevision>>>();
+            for (final SCMSource source : toFetch) {
+                final SCMSourceCriteria probing = criteria == null
+                        ? null
+                        : new SimulatedCriteria(criteria, digest, progress, ProbeProgress.sourceKey(source),
+                                prediction);
+                futures.add(executor.submit(new Callable<Map<String, SCMRevision>>() {
+                    @Override
+                    public Map<String, SCMRevision> call() throws Exception {
+                        final Map<String, SCMRevision> heads = new LinkedHashMap<String, SCMRevision>();
+                        source.fetch(probing, new SCMHeadObserver() {
+                            @Override
+                            public void observe(@NonNull SCMHead head, @NonNull SCMRevision revision) {
+                                heads.put(head.getName(), revision);
+                            }
+                        }, listener);
+                        return heads;
+                    }
+                }));
+            }
+            for (Future<Map<String, SCMRevision>> future : futures) {
+                try {
+                    found.add(future.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    if (cause instanceof InterruptedException) {
+                        throw (InterruptedException) cause;
+                    }
+                    throw new IOException("Could not fetch heads", cause);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        prediction.elapsedNanos = System.nanoTime() - start;
+        // as with indexing, the first source that has a head wins
+        Map<String, SCMRevision> heads = new TreeMap<String, SCMRevision>();
+        for (Map<String, SCMRevision> m : found) {
+            for (Map.Entry<String, SCMRevision> e : m.entrySet()) {
+                if (!heads.containsKey(e.getKey())) {
+                    heads.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+        Map<String, FreeStyleMultiBranchProject.ProjectImpl> existing =
+                new TreeMap<String, FreeStyleMultiBranchProject.ProjectImpl>();
+        for (FreeStyleMultiBranchProject.ProjectImpl p : project.getItems()) {
+            existing.put(p.getBranch().getHead().getName(), p);
+        }
+        BranchStatusIndex index = project.getStatusIndex();
+        for (Map.Entry<String, SCMRevision> e : heads.entrySet()) {
+            FreeStyleMultiBranchProject.ProjectImpl p = existing.get(e.getKey());
+            if (p == null) {
+                prediction.created.add(e.getKey());
+            } else {
+                BranchStatusIndex.Entry status = index.get(p.getName());
+                String built = status == null ? null : status.getRevision();
+                if (built == null || !built.equals(e.getValue().toString())) {
+                    prediction.updated.add(p.getName());
+                } else {
+                    prediction.unchanged.add(p.getName());
+                }
+            }
+        }
+        List<FreeStyleMultiBranchProject.ProjectImpl> orphaned =
+                new ArrayList<FreeStyleMultiBranchProject.ProjectImpl>();
+        for (Map.Entry<String, FreeStyleMultiBranchProject.ProjectImpl> e : existing.entrySet()) {
+            if (!heads.containsKey(e.getKey())) {
+                orphaned.add(e.getValue());
+            }
+        }
+        if (!orphaned.isEmpty()) {
+            // the strategy only picks the branch jobs to delete, the indexing is what deletes them
+            Collection<FreeStyleMultiBranchProject.ProjectImpl> deleted =
+                    project.getOrphanedItemStrategy().orphanedItems(project, orphaned, listener);
+            for (FreeStyleMultiBranchProject.ProjectImpl p : orphaned) {
+                (deleted.contains(p) ? prediction.removed : prediction.retained).add(p.getName());
+            }
+        }
+        return prediction;
+    }
+
+    /**
+     * Starts a simulation in the background, logging to {@link #LOG_FILE_NAME} in the project.
+     *
+     * @param project  the project.
+     * @param criteria the proposed criteria, {@code null} to match every head.
+     * @return the simulation.
+     * @throws IOException if the log could not be created.
+     */
+    @NonNull
+    public static Simulation start(@NonNull final FreeStyleMultiBranchProject project,
+                                   @CheckForNull final FreeStyleSCMSourceCriteria criteria) throws IOException {
+        File log = new File(project.getRootDir(), LOG_FILE_NAME);
+        File parent = log.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        final StreamTaskListener listener = new StreamTaskListener(log);
+        Future<Prediction> future;
+        try {
+            future = background.submit(new Callable<Prediction>() {
+                @Override
+                public Prediction call() throws Exception {
+                    try {
+                        return simulate(project, criteria, null, listener);
+                    } catch (IOException e) {
+                        e.printStackTrace(listener.error("Simulation failed"));
+                        throw e;
+                    } finally {
+                        listener.closeQuietly();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            listener.closeQuietly();
+            throw new IOException("Could not start the simulation", e);
+        }
+        return new Simulation(log, future);
+    }
+
+    /**
+     * The predicted outcome of a branch indexing.
+     */
+    public static final class Prediction {
+        private final TreeSet<String> created = new TreeSet<String>();
+        private final TreeSet<String> updated = new TreeSet<String>();
+        private final TreeSet<String> removed = new TreeSet<String>();
+        private final TreeSet<String> retained = new TreeSet<String>();
+        private final TreeSet<String> unchanged = new TreeSet<String>();
+        private final AtomicInteger probed = new AtomicInteger();
+        private final AtomicInteger cached = new AtomicInteger();
+        private final AtomicLong probeNanos = new AtomicLong();
+        private long elapsedNanos;
+
+        /**
+         * Returns the names of the heads that would get a new branch job.
+         */
+        @NonNull
+        public List<String> getCreated() {
+            return new ArrayList<String>(created);
+        }
+
+        /**
+         * Returns the branch jobs whose head has a revision that has not been built.
+         */
+        @NonNull
+        public List<String> getUpdated() {
+            return new ArrayList<String>(updated);
+        }
+
+        /**
+         * Returns the branch jobs whose head is gone or no longer matches and that the orphaned item strategy deletes.
+         */
+        @NonNull
+        public List<String> getRemoved() {
+            return new ArrayList<String>(removed);
+        }
+
+        /**
+         * Returns the branch jobs whose head is gone or no longer matches but that the orphaned item strategy keeps.
+         */
+        @NonNull
+        public List<String> getRetained() {
+            return new ArrayList<String>(retained);
+        }
+
+        /**
+         * Returns the branch jobs that would be left as they are.
+         */
+        @NonNull
+        public List<String> getUnchanged() {
+            return new ArrayList<String>(unchanged);
+        }
+
+        /**
+         * Returns the number of heads probed by this simulation.
+         */
+        public int getProbed() {
+            return probed.get();
+        }
+
+        /**
+         * Returns the number of heads whose outcome was already known.
+         */
+        public int getCached() {
+            return cached.get();
+        }
+
+        /**
+         * Returns the time spent probing, summed over all the sources.
+         */
+        public long getProbeMillis() {
+            return probeNanos.get() / 1000000L;
+        }
+
+        /**
+         * Estimates the time a real indexing would spend probing, as if the known heads had to be probed as well.
+         */
+        public long getEstimatedProbeMillis() {
+            int p = probed.get();
+            return p == 0 ? 0L : getProbeMillis() * (p + cached.get()) / p;
+        }
+
+        /**
+         * Returns the wall clock time of the simulation.
+         */
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000L;
+        }
+
+        /**
+         * Returns the prediction as JSON.
+         */
+        @NonNull
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("created", JSONArray.fromObject(getCreated()));
+            json.put("updated", JSONArray.fromObject(getUpdated()));
+            json.put("removed", JSONArray.fromObject(getRemoved()));
+            json.put("retained", JSONArray.fromObject(getRetained()));
+            json.put("unchanged", unchanged.size());
+            json.put("probed", getProbed());
+            json.put("cached", getCached());
+            json.put("probeMillis", getProbeMillis());
+            json.put("estimatedProbeMillis", getEstimatedProbeMillis());
+            json.put("elapsedMillis", getElapsedMillis());
+            return json;
+        }
+    }
+
+    /**
+     * A simulation running in the background, see {@link #start}.
+     */
+    public static final class Simulation {
+        private final long started = System.currentTimeMillis();
+        private final File log;
+        private final Future<Prediction> future;
+
+        private Simulation(File log, Future<Prediction> future) {
+            this.log = log;
+            this.future = future;
+        }
+
+        /**
+         * Returns the file the simulation logs to.
+         */
+        @NonNull
+        public File getLog() {
+            return log;
+        }
+
+        /**
+         * Tells whether the simulation has finished, successfully or not.
+         */
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        /**
+         * Returns the state of the simulation as JSON, with the prediction once it has finished.
+         */
+        @NonNull
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("started", started);
+            if (!future.isDone()) {
+                json.put("status", "running");
+                return json;
+            }
+            try {
+                Prediction prediction = future.get();
+                json.put("status", "done");
+                json.put("prediction", prediction.toJSON());
+            } catch (ExecutionException e) {
+                json.put("status", "failed");
+                json.put("error", String.valueOf(e.getCause()));
+            } catch (CancellationException e) {
+                json.put("status", "failed");
+                json.put("error", "cancelled");
+            } catch (InterruptedException e) {
+                // cannot happen, the future is done
+                Thread.currentThread().interrupt();
+                json.put("status", "running");
+            }
+            return json;
+        }
+    }
+
+    /**
+     * Evaluates the proposed criteria, reusing known outcomes and measuring the probes, without recording anything.
+     */
+    private static final class SimulatedCriteria implements SCMSourceCriteria {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FreeStyleSCMSourceCriteria delegate;
+        private final String digest;
+        private final transient ProbeProgress progress;
+        private final String sourceKey;
+        private final transient Prediction prediction;
+
+        private SimulatedCriteria(FreeStyleSCMSourceCriteria delegate, String digest, ProbeProgress progress,
+                                  String sourceKey, Prediction prediction) {
+            this.delegate = delegate;
+            this.digest = digest;
+            this.progress = progress;
+            this.sourceKey = sourceKey;
+            this.prediction = prediction;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isHead(@NonNull Probe probe, @NonNull TaskListener listener) throws IOException {
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException();
+            }
+            long lastModified = probe.lastModified();
+            if (lastModified != 0L && progress != null) {
+                Boolean known = progress.lookup(ProbeProgress.key(digest, sourceKey, probe.name()), lastModified);
+                if (known != null) {
+                    prediction.cached.incrementAndGet();
+                    return known;
+                }
+            }
+            long start = System.nanoTime();
+            try {
+                return delegate.isHead(probe, listener);
+            } finally {
+                prediction.probeNanos.addAndGet(System.nanoTime() - start);
+                prediction.probed.incrementAndGet();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object o) {
+            return this == o;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this);
+        }
+    }
+}
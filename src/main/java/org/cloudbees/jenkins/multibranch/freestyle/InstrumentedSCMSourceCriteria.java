@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import jenkins.scm.api.SCMSourceCriteria;
+
+/**
+ * Wraps a {@link FreeStyleSCMSourceCriteria} so that each evaluation is recorded in
+ * {@link FreeStyleMultiBranchMetrics#criteria(Object)} and, for an {@link AllOfFreeStyleSCMSourceCriteria}, ordered
+ * by the {@link CriteriaStatistics} of the source.
+ */
+/*package*/ final class InstrumentedSCMSourceCriteria implements SCMSourceCriteria {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The criteria being evaluated.
+     */
+    @NonNull
+    private final FreeStyleSCMSourceCriteria delegate;
+
+    /**
+     * The statistics to learn the evaluation order from, {@code null} after deserialization.
+     */
+    private final transient CriteriaStatistics statistics;
+
+    /**
+     * The id of the source being probed.
+     */
+    @CheckForNull
+    private final String sourceId;
+
+    /**
+     * The compact log of the indexing in progress, {@code null} to let the criteria write to the listener.
+     */
+    private final transient IndexingLog indexingLog;
+
+    /*package*/ InstrumentedSCMSourceCriteria(@NonNull FreeStyleSCMSourceCriteria delegate) {
+        this(delegate, null, null, null);
+    }
+
+    /*package*/ InstrumentedSCMSourceCriteria(@NonNull FreeStyleSCMSourceCriteria delegate,
+                                              @CheckForNull CriteriaStatistics statistics,
+                                              @CheckForNull String sourceId) {
+        this(delegate, statistics, sourceId, null);
+    }
+
+    /*package*/ InstrumentedSCMSourceCriteria(@NonNull FreeStyleSCMSourceCriteria delegate,
+                                              @CheckForNull CriteriaStatistics statistics,
+                                              @CheckForNull String sourceId,
+                                              @CheckForNull IndexingLog indexingLog) {
+        this.delegate = delegate;
+        this.statistics = statistics;
+        this.sourceId = sourceId;
+        this.indexingLog = indexingLog;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isHead(@NonNull Probe probe, @NonNull TaskListener listener) throws IOException {
+        if (indexingLog != null) {
+            return indexingLog.evaluate(new SCMSourceCriteria() {
+                @Override
+                public boolean isHead(@NonNull Probe probe, @NonNull TaskListener listener) throws IOException {
+                    return evaluate(probe, listener);
+                }
+            }, delegate.getDescriptor().getDisplayName(), sourceId, probe);
+        }
+        return evaluate(probe, listener);
+    }
+
+    private boolean evaluate(@NonNull Probe probe, @NonNull TaskListener listener) throws IOException {
+        FreeStyleMultiBranchMetrics.Timer timer = FreeStyleMultiBranchMetrics.criteria(delegate);
+        long start = timer.start();
+        try {
+            return delegate instanceof AllOfFreeStyleSCMSourceCriteria
+                    ? ((AllOfFreeStyleSCMSourceCriteria) delegate).isHead(probe, listener, statistics, sourceId)
+                    : delegate.isHead(probe, listener);
+        } finally {
+            timer.stop(start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return delegate.equals(((InstrumentedSCMSourceCriteria) o).delegate);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return delegate.hashCode();
+    }
+}
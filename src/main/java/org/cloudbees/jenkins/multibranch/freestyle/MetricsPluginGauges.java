@@ -0,0 +1,191 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import jenkins.metrics.api.Metrics;
+
+/**
+ * Publishes {@link FreeStyleMultiBranchMetrics} through the metrics plugin registry: each of our timers feeds a
+ * metrics {@link Timer}, while the branch job and hibernation figures are gauges. Only linked when the optional
+ * metrics plugin is installed.
+ */
+/*package*/ final class MetricsPluginGauges {
+
+    /**
+     * Whether the global gauges have been registered.
+     */
+    private static boolean globalGauges;
+
+    /**
+     * The full names of the projects that have a branch job gauge.
+     */
+    private static final Set<String> projects = new HashSet<String>();
+
+    private MetricsPluginGauges() {
+    }
+
+    /**
+     * Registers a metric, replacing any previous metric of the same name, e.g. one left behind by a previous class
+     * loader after a plugin reload.
+     *
+     * @param registry the registry.
+     * @param name     the name.
+     * @param metric   the metric.
+     */
+    private static void replace(MetricRegistry registry, String name, Metric metric) {
+        registry.remove(name);
+        registry.register(name, metric);
+    }
+
+    /**
+     * Returns the name of the branch job gauge of a project.
+     *
+     * @param fullName the full name of the project.
+     * @return the name of the gauge.
+     */
+    /*package*/ static String projectGaugeName(String fullName) {
+        return MetricRegistry.name(FreeStyleMultiBranchMetrics.PREFIX + "project", fullName, "branch.jobs");
+    }
+
+    /**
+     * Registers a metrics timer fed by the supplied timer. Only the durations recorded from now on reach it.
+     *
+     * @param name  the name of the timer.
+     * @param timer the timer.
+     */
+    /*package*/ static void register(String name, FreeStyleMultiBranchMetrics.Timer timer) {
+        final Timer metric = new Timer();
+        replace(Metrics.metricRegistry(), name, metric);
+        timer.setSink(new FreeStyleMultiBranchMetrics.Sink() {
+            @Override
+            public void update(long nanos) {
+                metric.update(nanos, TimeUnit.NANOSECONDS);
+            }
+        });
+    }
+
+    /**
+     * Registers the global gauges unless already done.
+     *
+     * @param registry the registry.
+     */
+    private static void registerGlobalGauges(MetricRegistry registry) {
+        if (globalGauges) {
+            return;
+        }
+        replace(registry, FreeStyleMultiBranchMetrics.PREFIX + "branch.jobs", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                int total = 0;
+                for (Integer count : FreeStyleMultiBranchMetrics.getBranchJobCounts().values()) {
+                    total += count;
+                }
+                return total;
+            }
+        });
+        replace(registry, FreeStyleMultiBranchMetrics.PREFIX + "hibernation.count", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return BranchHibernation.getHibernatedCount();
+            }
+        });
+        replace(registry, FreeStyleMultiBranchMetrics.PREFIX + "hibernation.bytesSaved", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return BranchHibernation.getEstimatedBytesSaved();
+            }
+        });
+        globalGauges = true;
+    }
+
+    /**
+     * Registers the global gauges and one branch job gauge per project, removing the gauges of the projects that no
+     * longer exist.
+     *
+     * @param fullNames the full names of the current projects.
+     */
+    /*package*/ static synchronized void registerProjects(Set<String> fullNames) {
+        MetricRegistry registry = Metrics.metricRegistry();
+        registerGlobalGauges(registry);
+        for (Iterator<String> iterator = projects.iterator(); iterator.hasNext(); ) {
+            String fullName = iterator.next();
+            if (!fullNames.contains(fullName)) {
+                registry.remove(projectGaugeName(fullName));
+                iterator.remove();
+            }
+        }
+        for (String fullName : fullNames) {
+            registerProject(registry, fullName);
+        }
+    }
+
+    /**
+     * Registers the branch job gauge of a project.
+     *
+     * @param fullName the full name of the project.
+     */
+    /*package*/ static synchronized void registerProject(String fullName) {
+        MetricRegistry registry = Metrics.metricRegistry();
+        registerGlobalGauges(registry);
+        registerProject(registry, fullName);
+    }
+
+    private static void registerProject(MetricRegistry registry, final String fullName) {
+        if (projects.add(fullName)) {
+            replace(registry, projectGaugeName(fullName), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return FreeStyleMultiBranchMetrics.getBranchJobCount(fullName);
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes the branch job gauge of a project, or of every project in a folder.
+     *
+     * @param fullName the full name of the project or folder.
+     */
+    /*package*/ static synchronized void unregisterProjects(String fullName) {
+        MetricRegistry registry = Metrics.metricRegistry();
+        String prefix = fullName + "/";
+        for (Iterator<String> iterator = projects.iterator(); iterator.hasNext(); ) {
+            String name = iterator.next();
+            if (name.equals(fullName) || name.startsWith(prefix)) {
+                registry.remove(projectGaugeName(name));
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.XmlFile;
+import hudson.model.Items;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parses the {@code config.xml} of the branch jobs of a {@link FreeStyleMultiBranchProject} concurrently on a bounded
+ * pool. Only the XStream unmarshalling happens here; the folder then attaches the parsed jobs and calls
+ * {@link FreeStyleMultiBranchProject.ProjectImpl#onLoad} in the usual sequential, name ordered way.
+ */
+/*package*/ final class ParallelBranchLoader {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(ParallelBranchLoader.class.getName());
+
+    /**
+     * The number of threads used to parse branch jobs, {@code 0} or {@code 1} disables parallel loading.
+     */
+    /*package*/ static /* not final so it can be tweaked from the script console */ int THREADS =
+            Integer.getInteger(ParallelBranchLoader.class.getName() + ".threads",
+                    Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The shared pool, threads time out when no folder is being loaded.
+     */
+    private static ThreadPoolExecutor executor;
+
+    private ParallelBranchLoader() {
+    }
+
+    private static synchronized ThreadPoolExecutor executor() {
+        if (executor == null || executor.getCorePoolSize() != THREADS) {
+            if (executor != null) {
+                executor.shutdown();
+            }
+            executor = new ThreadPoolExecutor(THREADS, THREADS, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new NamingThreadFactory(new DaemonThreadFactory(), "FreeStyleMultiBranchProject.load"));
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Parses the branch jobs in the supplied directory.
+     *
+     * @param owner   the folder, used for reporting.
+     * @param jobsDir the directory containing one sub-directory per branch job.
+     * @return the parsed branch jobs keyed by directory name in name order. A branch job that could not be parsed is
+     * left out so that the regular loader can report it.
+     */
+    @NonNull
+    /*package*/ static Map<String, FreeStyleMultiBranchProject.ProjectImpl> load(@NonNull String owner,
+                                                                                @NonNull File jobsDir) {
+        Map<String, FreeStyleMultiBranchProject.ProjectImpl> result =
+                new LinkedHashMap<String, FreeStyleMultiBranchProject.ProjectImpl>();
+        File[] subdirs = jobsDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File child) {
+                return child.isDirectory() && Items.getConfigFile(child).exists();
+            }
+        });
+        if (THREADS <= 1 || subdirs == null || subdirs.length < 2) {
+            return result;
+        }
+        Arrays.sort(subdirs);
+        long start = System.nanoTime();
+        List<Future<FreeStyleMultiBranchProject.ProjectImpl>> futures =
+                new ArrayList<Future<FreeStyleMultiBranchProject.ProjectImpl>>(subdirs.length);
+        ThreadPoolExecutor executor = executor();
+        for (final File subdir : subdirs) {
+            futures.add(executor.submit(new Callable<FreeStyleMultiBranchProject.ProjectImpl>() {
+                @Override
+                public FreeStyleMultiBranchProject.ProjectImpl call() throws Exception {
+                    XmlFile file = Items.getConfigFile(subdir);
+                    Object item = file.read();
+                    if (!(item instanceof FreeStyleMultiBranchProject.ProjectImpl)) {
+                        throw new IllegalStateException(file + " does not contain a branch job");
+                    }
+                    return (FreeStyleMultiBranchProject.ProjectImpl) item;
+                }
+            }));
+        }
+        long slowest = 0;
+        String slowestName = null;
+        int failed = 0;
+        for (int i = 0; i < subdirs.length; i++) {
+            long waitStart = System.nanoTime();
+            try {
+                result.put(subdirs[i].getName(), futures.get(i).get());
+            } catch (ExecutionException e) {
+                failed++;
+                LOGGER.log(Level.WARNING, "Could not parse branch job " + subdirs[i] + " of " + owner
+                        + ", falling back to sequential loading", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<?> f : futures) {
+                    f.cancel(true);
+                }
+                LOGGER.log(Level.WARNING, "Interrupted while loading branch jobs of {0}", owner);
+                result.clear();
+                return result;
+            }
+            long waited = System.nanoTime() - waitStart;
+            if (waited > slowest) {
+                slowest = waited;
+                slowestName = subdirs[i].getName();
+            }
+        }
+        LOGGER.log(Level.INFO, "Parsed {0} branch jobs of {1} in {2}ms using {3} threads ({4} failed, longest wait "
+                        + "{5}ms for {6})",
+                new Object[]{result.size(), owner, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                        THREADS, failed, TimeUnit.NANOSECONDS.toMillis(slowest), slowestName});
+        return result;
+    }
+}
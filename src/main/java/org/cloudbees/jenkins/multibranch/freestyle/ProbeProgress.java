@@ -0,0 +1,293 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.Items;
+import hudson.model.Saveable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.scm.api.SCMSource;
+import jenkins.util.Timer;
+
+/**
+ * Remembers the outcome of each repository probe of an organization folder so that a scan which is interrupted, or
+ * simply run again, does not have to probe the heads it has already seen. An outcome is only reused while the head
+ * still reports the same last modified time and the criteria are unchanged.
+ * <p>
+ * Persisted in {@code probe-progress.xml} alongside the organization folder's {@code config.xml}. The outcomes of the
+ * repositories that a complete scan no longer offered are dropped.
+ */
+/*package*/ final class ProbeProgress implements Saveable {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(ProbeProgress.class.getName());
+
+    /**
+     * The name of the file that the progress is persisted in.
+     */
+    /*package*/ static final String FILE_NAME = "probe-progress.xml";
+
+    /**
+     * How long to wait after a change before writing to disk, so that a scan does not rewrite the file per probe.
+     */
+    private static final long SAVE_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * Outcomes not confirmed by a probe for this long are dropped, in case no scan ever completes.
+     */
+    private static final long RETENTION_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    /**
+     * The loaded instances keyed by organization folder.
+     */
+    private static final Map<Item, ProbeProgress> instances = new WeakHashMap<Item, ProbeProgress>();
+
+    /**
+     * The outcomes keyed by {@link #key(String, String, String)}.
+     */
+    private final Map<String, Outcome> outcomes = new HashMap<String, Outcome>();
+
+    /**
+     * When each repository was last offered by a scan, keyed by {@link #sourceKey(SCMSource)}.
+     */
+    private final Map<String, Long> sources = new HashMap<String, Long>();
+
+    /**
+     * The organization folder.
+     */
+    private transient Item owner;
+
+    /**
+     * {@code true} while a save has been scheduled but not yet written.
+     */
+    private transient boolean savePending;
+
+    /**
+     * Returns the progress of an organization folder, loading it on first use.
+     *
+     * @param owner the organization folder.
+     * @return the progress.
+     */
+    @NonNull
+    /*package*/ static ProbeProgress of(@NonNull Item owner) {
+        synchronized (instances) {
+            ProbeProgress progress = instances.get(owner);
+            if (progress == null) {
+                XmlFile file = getDataFile(owner);
+                if (file.exists()) {
+                    try {
+                        progress = (ProbeProgress) file.read();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Could not read " + file + ", starting afresh", e);
+                    } catch (ClassCastException e) {
+                        LOGGER.log(Level.WARNING, "Unexpected content in " + file + ", starting afresh", e);
+                    }
+                }
+                if (progress == null) {
+                    progress = new ProbeProgress();
+                }
+                progress.owner = owner;
+                instances.put(owner, progress);
+            }
+            return progress;
+        }
+    }
+
+    @NonNull
+    private static XmlFile getDataFile(@NonNull Item owner) {
+        return new XmlFile(Items.XSTREAM, new File(owner.getRootDir(), FILE_NAME));
+    }
+
+    /**
+     * Returns a key for a source that is stable across scans. Navigators may give the sources they create a new id
+     * on every scan, so the id is left out.
+     *
+     * @param source the source.
+     * @return the key.
+     */
+    @NonNull
+    /*package*/ static String sourceKey(@NonNull SCMSource source) {
+        return Util.getDigestOf(Items.XSTREAM2.toXML(source).replaceAll("<id>[^<]*</id>", ""));
+    }
+
+    /**
+     * Builds the key of an outcome.
+     *
+     * @param criteria  a digest of the criteria configuration.
+     * @param sourceKey the {@link #sourceKey(SCMSource)} of the source being probed.
+     * @param head      the name of the head being probed.
+     * @return the key.
+     */
+    @NonNull
+    /*package*/ static String key(@NonNull String criteria, @NonNull String sourceKey, @NonNull String head) {
+        return criteria + ':' + sourceKey + ':' + head;
+    }
+
+    /**
+     * Returns the remembered outcome of a probe.
+     *
+     * @param key          the key.
+     * @param lastModified the last modified time of the head now.
+     * @return the remembered outcome or {@code null} if the head has not been probed with this last modified time.
+     */
+    @CheckForNull
+    /*package*/ synchronized Boolean lookup(@NonNull String key, long lastModified) {
+        Outcome outcome = outcomes.get(key);
+        return outcome == null || outcome.lastModified != lastModified ? null : outcome.head;
+    }
+
+    /**
+     * Remembers the outcome of a probe.
+     *
+     * @param key          the key.
+     * @param lastModified the last modified time of the head.
+     * @param head         whether the criteria matched.
+     */
+    /*package*/ void record(@NonNull String key, long lastModified, boolean head) {
+        synchronized (this) {
+            outcomes.put(key, new Outcome(lastModified, head, System.currentTimeMillis()));
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Records that a scan offered a repository.
+     *
+     * @param sourceKey the {@link #sourceKey(SCMSource)}.
+     */
+    /*package*/ synchronized void seen(@NonNull String sourceKey) {
+        sources.put(sourceKey, System.currentTimeMillis());
+    }
+
+    /**
+     * Drops the outcomes of the repositories that were not offered since the supplied time, which is the start of a
+     * scan that completed.
+     *
+     * @param since the start of the scan.
+     */
+    /*package*/ void prune(long since) {
+        synchronized (this) {
+            boolean changed = false;
+            for (Iterator<Long> i = sources.values().iterator(); i.hasNext(); ) {
+                if (i.next() < since) {
+                    i.remove();
+                    changed = true;
+                }
+            }
+            for (Iterator<String> i = outcomes.keySet().iterator(); i.hasNext(); ) {
+                String[] parts = i.next().split(":", 3);
+                if (parts.length < 3 || !sources.containsKey(parts[1])) {
+                    i.remove();
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                return;
+            }
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Returns the number of remembered outcomes.
+     *
+     * @return the number of remembered outcomes.
+     */
+    /*package*/ synchronized int size() {
+        return outcomes.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void save() throws IOException {
+        if (owner == null) {
+            return;
+        }
+        XmlFile file = getDataFile(owner);
+        synchronized (this) {
+            long cutoff = System.currentTimeMillis() - RETENTION_MILLIS;
+            for (Iterator<Outcome> i = outcomes.values().iterator(); i.hasNext(); ) {
+                if (i.next().recorded < cutoff) {
+                    i.remove();
+                }
+            }
+            file.write(this);
+        }
+    }
+
+    private void scheduleSave() {
+        synchronized (this) {
+            if (savePending) {
+                return;
+            }
+            savePending = true;
+        }
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ProbeProgress.this) {
+                    savePending = false;
+                }
+                try {
+                    save();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not save repository probe progress of " + owner.getFullName(), e);
+                }
+            }
+        }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The outcome of probing one head.
+     */
+    private static final class Outcome {
+        private final long lastModified;
+        private final boolean head;
+        private final long recorded;
+
+        private Outcome(long lastModified, boolean head, long recorded) {
+            this.lastModified = lastModified;
+            this.head = head;
+            this.recorded = recorded;
+        }
+    }
+}
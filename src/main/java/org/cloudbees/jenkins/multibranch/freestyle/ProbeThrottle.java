@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the repository probes of one {@link FreeStyleMultiBranchProjectFactory}, and therefore of the navigator of
+ * the organization folder that owns it, both in how many may be in flight at once and in how many may start per
+ * minute (a token bucket that holds at most one minute's worth of tokens).
+ */
+/*package*/ final class ProbeThrottle {
+
+    /**
+     * The concurrent probe permits, or {@code null} for unlimited concurrency.
+     */
+    private final Semaphore permits;
+
+    /**
+     * The number of nanoseconds it takes to earn one token, or {@code 0} for no rate limit.
+     */
+    private final long nanosPerToken;
+
+    /**
+     * The maximum number of tokens that can be banked.
+     */
+    private final double capacity;
+
+    /**
+     * The tokens currently banked.
+     */
+    private double tokens;
+
+    /**
+     * When {@link #tokens} was last refilled.
+     */
+    private long refilled;
+
+    /**
+     * Constructor.
+     *
+     * @param maxConcurrent   the maximum number of probes in flight, {@code 0} for unlimited.
+     * @param probesPerMinute the maximum number of probes started per minute, {@code 0} for unlimited.
+     */
+    /*package*/ ProbeThrottle(int maxConcurrent, int probesPerMinute) {
+        this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent, true) : null;
+        this.nanosPerToken = probesPerMinute > 0 ? TimeUnit.MINUTES.toNanos(1) / probesPerMinute : 0L;
+        this.capacity = Math.max(1, probesPerMinute);
+        this.tokens = capacity;
+        this.refilled = System.nanoTime();
+    }
+
+    /**
+     * Waits until a probe may start.
+     *
+     * @throws InterruptedIOException if interrupted while waiting.
+     */
+    /*package*/ void acquire() throws InterruptedIOException {
+        try {
+            if (permits != null) {
+                permits.acquire();
+            }
+            if (nanosPerToken > 0) {
+                long wait;
+                while ((wait = takeToken()) > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+        } catch (InterruptedException e) {
+            if (permits != null) {
+                permits.release();
+            }
+            throw (InterruptedIOException) new InterruptedIOException("Interrupted waiting to probe").initCause(e);
+        }
+    }
+
+    /**
+     * Signals that a probe started by {@link #acquire()} has completed.
+     */
+    /*package*/ void release() {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @return {@code 0} if a token was taken, otherwise the nanoseconds until the next token is earned.
+     */
+    private synchronized long takeToken() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - refilled) / (double) nanosPerToken);
+        refilled = now;
+        if (tokens >= 1.0) {
+            tokens -= 1.0;
+            return 0L;
+        }
+        return Math.max(1L, (long) ((1.0 - tokens) * nanosPerToken));
+    }
+}
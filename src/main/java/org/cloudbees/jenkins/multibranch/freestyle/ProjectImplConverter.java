@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.converters.reflection.ReflectionProvider;
+import com.thoughtworks.xstream.converters.reflection.ReflectionProviderWrapper;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.mapper.Mapper;
+import hudson.model.Actionable;
+import hudson.util.RobustReflectionConverter;
+import java.util.Collection;
+
+/**
+ * Writes {@link FreeStyleMultiBranchProject.ProjectImpl} without the fields that are at their default value, which
+ * for a branch job are most of the inherited {@link hudson.model.AbstractProject} settings.
+ * <p>
+ * Only values that read back identically when absent are left out: primitives at the JVM default (XStream does not
+ * run constructors) and an empty {@link Actionable} action list (which is created on demand). When a job is read onto
+ * an existing instance, as a reload does, those fields are first reset to their default so that a value left out of
+ * the file does not keep its value from memory. Anything written by earlier versions is read as before. The fields
+ * inherited from core are still read by reflection, only the {@link jenkins.branch.Branch} is read back through its
+ * constructor, see {@link BranchConverter}.
+ */
+/*package*/ class ProjectImplConverter extends RobustReflectionConverter {
+
+    /**
+     * Our reflection provider.
+     */
+    private final DefaultsOmittingReflectionProvider provider;
+
+    /*package*/ ProjectImplConverter(Mapper mapper, ReflectionProvider reflectionProvider) {
+        this(mapper, new DefaultsOmittingReflectionProvider(reflectionProvider));
+    }
+
+    private ProjectImplConverter(Mapper mapper, DefaultsOmittingReflectionProvider provider) {
+        super(mapper, provider);
+        this.provider = provider;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean canConvert(Class type) {
+        return type == FreeStyleMultiBranchProject.ProjectImpl.class;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+        Object existing = context.currentObject();
+        if (existing != null) {
+            provider.resetDefaults(existing);
+        }
+        return super.unmarshal(reader, context);
+    }
+
+    /**
+     * Hides the fields that are at their default value from the marshaller.
+     */
+    private static class DefaultsOmittingReflectionProvider extends ReflectionProviderWrapper {
+
+        DefaultsOmittingReflectionProvider(ReflectionProvider wrapped) {
+            super(wrapped);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void visitSerializableFields(Object object, final Visitor visitor) {
+            super.visitSerializableFields(object, new Visitor() {
+                @Override
+                public void visit(String name, Class type, Class definedIn, Object value) {
+                    if (!isDefault(name, type, definedIn, value)) {
+                        visitor.visit(name, type, definedIn, value);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Resets the fields that are left out when at their default value.
+         *
+         * @param object the object about to be read onto.
+         */
+        void resetDefaults(final Object object) {
+            super.visitSerializableFields(object, new Visitor() {
+                @Override
+                public void visit(String name, Class type, Class definedIn, Object value) {
+                    if (type.isPrimitive()) {
+                        writeField(object, name, defaultValue(type), definedIn);
+                    } else if (definedIn == Actionable.class && "actions".equals(name)) {
+                        writeField(object, name, null, definedIn);
+                    }
+                }
+            });
+        }
+
+        private static Object defaultValue(Class type) {
+            if (type == boolean.class) {
+                return Boolean.FALSE;
+            }
+            if (type == char.class) {
+                return '\0';
+            }
+            if (type == byte.class) {
+                return (byte) 0;
+            }
+            if (type == short.class) {
+                return (short) 0;
+            }
+            if (type == int.class) {
+                return 0;
+            }
+            if (type == long.class) {
+                return 0L;
+            }
+            if (type == float.class) {
+                return 0.0f;
+            }
+            return 0.0d;
+        }
+
+        private static boolean isDefault(String name, Class type, Class definedIn, Object value) {
+            if (type.isPrimitive()) {
+                if (value instanceof Boolean) {
+                    return !((Boolean) value);
+                }
+                if (value instanceof Number) {
+                    return ((Number) value).doubleValue() == 0.0;
+                }
+                if (value instanceof Character) {
+                    return (Character) value == '\0';
+                }
+                return false;
+            }
+            return definedIn == Actionable.class && "actions".equals(name)
+                    && value instanceof Collection && ((Collection) value).isEmpty();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import jenkins.scm.api.SCMSource;
+import jenkins.scm.api.SCMSourceCriteria;
+
+/**
+ * Wraps the criteria of a {@link FreeStyleMultiBranchProjectFactory} for one repository so that probes are throttled
+ * by the factory's {@link ProbeThrottle} and heads whose outcome is already known from {@link ProbeProgress} are not
+ * probed again, so that a scan interrupted by a restart or a rate limit resumes where it left off.
+ */
+/*package*/ final class ThrottledSCMSourceCriteria implements SCMSourceCriteria {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The criteria being evaluated.
+     */
+    @NonNull
+    private final SCMSourceCriteria delegate;
+
+    /**
+     * The throttle shared by all repositories of the factory, {@code null} after deserialization.
+     */
+    private final transient ProbeThrottle throttle;
+
+    /**
+     * The progress of the organization folder, {@code null} after deserialization or if the factory has no owner.
+     */
+    private final transient ProbeProgress progress;
+
+    /**
+     * A digest of the criteria configuration.
+     */
+    @NonNull
+    private final String criteriaDigest;
+
+    /**
+     * The {@link ProbeProgress#sourceKey(SCMSource)} of the repository.
+     */
+    @NonNull
+    private final String sourceKey;
+
+    /*package*/ ThrottledSCMSourceCriteria(@NonNull SCMSourceCriteria delegate, @NonNull ProbeThrottle throttle,
+                                           @CheckForNull ProbeProgress progress, @NonNull SCMSource source,
+                                           @NonNull String criteriaDigest) {
+        this.delegate = delegate;
+        this.throttle = throttle;
+        this.progress = progress;
+        this.criteriaDigest = criteriaDigest;
+        this.sourceKey = ProbeProgress.sourceKey(source);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isHead(@NonNull Probe probe, @NonNull TaskListener listener) throws IOException {
+        long lastModified = probe.lastModified();
+        Boolean known = lookup(probe.name(), lastModified);
+        if (known != null) {
+            return known;
+        }
+        boolean result = probe(probe, listener);
+        record(probe.name(), lastModified, result);
+        return result;
+    }
+
+    /**
+     * Evaluates the criteria against a head, subject to the throttle.
+     *
+     * @param probe    the probe.
+     * @param listener the listener.
+     * @return the outcome.
+     * @throws IOException if the probe failed.
+     */
+    private boolean probe(@NonNull Probe probe, @NonNull TaskListener listener) throws IOException {
+        if (throttle == null) {
+            return delegate.isHead(probe, listener);
+        }
+        throttle.acquire();
+        try {
+            return delegate.isHead(probe, listener);
+        } finally {
+            throttle.release();
+        }
+    }
+
+    @CheckForNull
+    private Boolean lookup(@NonNull String head, long lastModified) {
+        // 0 means the SCM does not know when the head last changed, so we cannot tell whether an outcome is stale
+        return progress == null || lastModified == 0L
+                ? null
+                : progress.lookup(ProbeProgress.key(criteriaDigest, sourceKey, head), lastModified);
+    }
+
+    private void record(@NonNull String head, long lastModified, boolean result) {
+        if (progress != null && lastModified != 0L) {
+            progress.record(ProbeProgress.key(criteriaDigest, sourceKey, head), lastModified, result);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        ThrottledSCMSourceCriteria that = (ThrottledSCMSourceCriteria) o;
+        return delegate.equals(that.delegate) && sourceKey.equals(that.sourceKey);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return delegate.hashCode() * 31 + sourceKey.hashCode();
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Item;
+import hudson.model.Items;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.util.Timer;
+
+/**
+ * Spreads the workspaces of the branch jobs of a {@link FreeStyleMultiBranchProject} across the roots of each node
+ * that has a {@link WorkspaceRootsProperty}. A branch job without a workspace on a node gets the root running the
+ * fewest builds, and of those the one with the most usable space. The choice is then remembered, so later builds of
+ * the branch job reuse the same warm workspace.
+ * <p>
+ * Persisted in {@code workspace-placement.xml} alongside the folder's {@code config.xml}.
+ */
+public class WorkspacePlacement implements Saveable {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(WorkspacePlacement.class.getName());
+
+    /**
+     * The name of the file that the placement is persisted in.
+     */
+    /*package*/ static final String FILE_NAME = "workspace-placement.xml";
+
+    /**
+     * How long changes are collected before they are written.
+     */
+    private static final long SAVE_DELAY_MILLIS = 1000L;
+
+    /**
+     * The chosen root keyed by branch job name and then node name.
+     */
+    private final TreeMap<String, TreeMap<String, String>> roots = new TreeMap<String, TreeMap<String, String>>();
+
+    /**
+     * The folder that owns this placement.
+     */
+    private transient FreeStyleMultiBranchProject owner;
+
+    /**
+     * Whether a save has been scheduled but not yet performed.
+     */
+    private transient boolean savePending;
+
+    /**
+     * Loads the placement of the supplied folder.
+     *
+     * @param owner the folder.
+     * @return the placement.
+     */
+    @NonNull
+    /*package*/ static WorkspacePlacement load(@NonNull FreeStyleMultiBranchProject owner) {
+        XmlFile file = getDataFile(owner);
+        WorkspacePlacement placement = null;
+        if (file.exists()) {
+            try {
+                placement = (WorkspacePlacement) file.read();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not read " + file + ", starting afresh", e);
+            } catch (ClassCastException e) {
+                LOGGER.log(Level.WARNING, "Unexpected content in " + file + ", starting afresh", e);
+            }
+        }
+        if (placement == null) {
+            placement = new WorkspacePlacement();
+        }
+        placement.owner = owner;
+        return placement;
+    }
+
+    @NonNull
+    private static XmlFile getDataFile(@NonNull FreeStyleMultiBranchProject owner) {
+        return new XmlFile(Items.XSTREAM, new File(owner.getRootDir(), FILE_NAME));
+    }
+
+    /**
+     * Returns the workspace of a branch job on a node as already placed.
+     *
+     * @param n       the node.
+     * @param project the branch job.
+     * @return the workspace or {@code null} if the branch job has not been placed on a configured root of the node.
+     */
+    @CheckForNull
+    /*package*/ FilePath get(@NonNull Node n, @NonNull FreeStyleMultiBranchProject.ProjectImpl project) {
+        String root = getRoot(n, project);
+        return root == null ? null : workspace(n, root, project);
+    }
+
+    /**
+     * Returns the workspace of a branch job on a node, placing it on one of the node's roots if necessary.
+     *
+     * @param n       the node.
+     * @param project the branch job.
+     * @return the workspace or {@code null} if the node has no configured roots or is no longer connected.
+     * @throws IOException          if the roots could not be inspected.
+     * @throws InterruptedException if interrupted while inspecting the roots.
+     */
+    @CheckForNull
+    /*package*/ FilePath place(@NonNull Node n, @NonNull FreeStyleMultiBranchProject.ProjectImpl project)
+            throws IOException, InterruptedException {
+        String root = getRoot(n, project);
+        if (root == null) {
+            root = choose(n);
+            if (root == null) {
+                return null;
+            }
+            synchronized (this) {
+                TreeMap<String, String> nodes = roots.get(project.getName());
+                if (nodes == null) {
+                    nodes = new TreeMap<String, String>();
+                    roots.put(project.getName(), nodes);
+                }
+                nodes.put(n.getNodeName(), root);
+            }
+            scheduleSave();
+        }
+        return workspace(n, root, project);
+    }
+
+    /**
+     * Returns the remembered root of a branch job on a node, provided the node still has that root configured.
+     */
+    @CheckForNull
+    private String getRoot(@NonNull Node n, @NonNull FreeStyleMultiBranchProject.ProjectImpl project) {
+        WorkspaceRootsProperty property = n.getNodeProperties().get(WorkspaceRootsProperty.class);
+        if (property == null) {
+            return null;
+        }
+        String root;
+        synchronized (this) {
+            Map<String, String> nodes = roots.get(project.getName());
+            root = nodes == null ? null : nodes.get(n.getNodeName());
+        }
+        return root != null && property.getRootList().contains(root) ? root : null;
+    }
+
+    /**
+     * Picks the root of a node running the fewest builds, then with the most usable space.
+     */
+    @CheckForNull
+    private static String choose(@NonNull Node n) throws IOException, InterruptedException {
+        WorkspaceRootsProperty property = n.getNodeProperties().get(WorkspaceRootsProperty.class);
+        VirtualChannel channel = n.getChannel();
+        if (property == null || channel == null) {
+            return null;
+        }
+        List<String> candidates = property.getRootList();
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        Map<String, Integer> busy = new TreeMap<String, Integer>();
+        Computer c = n.toComputer();
+        if (c != null) {
+            for (Executor e : c.getExecutors()) {
+                Queue.Executable executable = e.getCurrentExecutable();
+                if (executable instanceof AbstractBuild) {
+                    FilePath ws = ((AbstractBuild) executable).getWorkspace();
+                    for (String root : candidates) {
+                        if (ws != null && isUnder(ws.getRemote(), root)) {
+                            Integer count = busy.get(root);
+                            busy.put(root, count == null ? 1 : count + 1);
+                        }
+                    }
+                }
+            }
+        }
+        Map<String, Long> space = new TreeMap<String, Long>();
+        for (String root : candidates) {
+            try {
+                space.put(root, new FilePath(channel, root).act(new UsableSpace()));
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not inspect " + root + " on " + n.getDisplayName(), e);
+            }
+        }
+        return pick(candidates, busy, space);
+    }
+
+    /**
+     * Picks the root running the fewest builds, then with the most usable space, then the first configured.
+     *
+     * @param candidates the configured roots in order.
+     * @param busy       the number of builds running under each root, absent for none.
+     * @param space      the usable space of each root, absent if the root could not be inspected.
+     * @return the chosen root or {@code null} if none of the roots could be inspected.
+     */
+    @CheckForNull
+    /*package*/ static String pick(@NonNull List<String> candidates, @NonNull Map<String, Integer> busy,
+                                   @NonNull Map<String, Long> space) {
+        String best = null;
+        int bestBusy = Integer.MAX_VALUE;
+        long bestSpace = -1L;
+        for (String root : candidates) {
+            Long usable = space.get(root);
+            if (usable == null) {
+                continue;
+            }
+            Integer count = busy.get(root);
+            int load = count == null ? 0 : count;
+            if (load < bestBusy || (load == bestBusy && usable > bestSpace)) {
+                best = root;
+                bestBusy = load;
+                bestSpace = usable;
+            }
+        }
+        return best;
+    }
+
+    private static boolean isUnder(@NonNull String path, @NonNull String root) {
+        return path.startsWith(root) && (path.length() == root.length() || root.endsWith("/")
+                || root.endsWith("\\") || path.charAt(root.length()) == '/' || path.charAt(root.length()) == '\\');
+    }
+
+    @CheckForNull
+    private static FilePath workspace(@NonNull Node n, @NonNull String root,
+                                      @NonNull FreeStyleMultiBranchProject.ProjectImpl project) {
+        VirtualChannel channel = n.getChannel();
+        return channel == null
+                ? null
+                : new FilePath(channel, root).child(project.getParent().getFullName()).child(project.getName());
+    }
+
+    /**
+     * Forgets a branch job, for example because it has been deleted.
+     *
+     * @param branch the branch job name.
+     */
+    /*package*/ void remove(String branch) {
+        synchronized (this) {
+            if (roots.remove(branch) == null) {
+                return;
+            }
+        }
+        scheduleSave();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void save() throws IOException {
+        if (owner == null) {
+            return;
+        }
+        XmlFile file = getDataFile(owner);
+        synchronized (this) {
+            file.write(this);
+        }
+    }
+
+    /**
+     * Coalesces the saves of the builds placed, or the branch jobs deleted, at about the same time into a single
+     * write.
+     */
+    private void scheduleSave() {
+        synchronized (this) {
+            if (savePending) {
+                return;
+            }
+            savePending = true;
+        }
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (WorkspacePlacement.this) {
+                    savePending = false;
+                }
+                try {
+                    save();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not save workspace placement of " + owner.getFullName(), e);
+                }
+            }
+        }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Measures the usable space of the volume of a root, creating the root if necessary.
+     */
+    private static final class UsableSpace extends MasterToSlaveFileCallable<Long> {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Long invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            if (!f.isDirectory() && !f.mkdirs()) {
+                throw new IOException("Could not create " + f);
+            }
+            return f.getUsableSpace();
+        }
+    }
+
+    /**
+     * Drops the placement of deleted branch jobs.
+     */
+    @Extension
+    public static class ItemListenerImpl extends ItemListener {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onDeleted(Item item) {
+            if (item instanceof FreeStyleMultiBranchProject.ProjectImpl) {
+                FreeStyleMultiBranchProject.ProjectImpl project = (FreeStyleMultiBranchProject.ProjectImpl) item;
+                project.getParent().getWorkspacePlacement().remove(project.getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * The directories of a node, typically on separate volumes, across which {@link WorkspacePlacement} spreads the
+ * workspaces of branch jobs.
+ */
+public class WorkspaceRootsProperty extends NodeProperty<Node> {
+
+    /**
+     * The absolute paths of the roots, one per line.
+     */
+    private final String roots;
+
+    @DataBoundConstructor
+    public WorkspaceRootsProperty(String roots) {
+        this.roots = roots;
+    }
+
+    public String getRoots() {
+        return roots;
+    }
+
+    /**
+     * Returns the configured roots.
+     *
+     * @return the absolute paths of the roots.
+     */
+    @NonNull
+    public List<String> getRootList() {
+        if (StringUtils.isBlank(roots)) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<String>();
+        for (String line : roots.split("\\r?\\n")) {
+            String root = line.trim();
+            if (!root.isEmpty() && !result.contains(root)) {
+                result.add(root);
+            }
+        }
+        return result;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends NodePropertyDescriptor {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getDisplayName() {
+            return Messages.WorkspaceRootsProperty_DisplayName();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import hudson.remoting.VirtualChannel;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Computes the size of a workspace on the agent that holds it, walking the directory tree in parallel.
+ * <p>
+ * The walk keeps a cache next to the workspace (in the {@code @tmp} directory) recording for each directory its
+ * modification time, the total size of the files directly in it and its sub-directories. A directory whose
+ * modification time has not changed has had no entries added, removed or renamed, so its cached file total and
+ * sub-directory list are reused without listing or stat-ing its files. Files rewritten in place do not change the
+ * directory modification time, so the cache is discarded every {@link #FULL_SCAN_INTERVAL_MILLIS} to bound the drift.
+ * The cache is a plain data file, as anything that can write to the workspace can write to it too.
+ */
+/*package*/ class WorkspaceSizer extends MasterToSlaveFileCallable<Long> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * How often the cache is discarded and a full walk done.
+     */
+    private static final long FULL_SCAN_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    /**
+     * The name of the cache file in the {@code @tmp} directory.
+     */
+    /*package*/ static final String CACHE_NAME = "freestyle-multibranch-disk-usage.dat";
+
+    private static final int MAGIC = 0x464d4255; // FMBU
+
+    private static final int VERSION = 1;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Long invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        if (!workspace.isDirectory()) {
+            return 0L;
+        }
+        File cacheFile = new File(workspace.getParentFile(), workspace.getName() + "@tmp/" + CACHE_NAME);
+        Cache previous = Cache.read(cacheFile);
+        Cache next = new Cache(previous == null || System.currentTimeMillis() - previous.created
+                > FULL_SCAN_INTERVAL_MILLIS ? System.currentTimeMillis() : previous.created);
+        Map<String, DirRecord> old = previous == null || next.created != previous.created
+                ? new HashMap<String, DirRecord>()
+                : previous.dirs;
+        ForkJoinPool pool = new ForkJoinPool(Math.min(4, Runtime.getRuntime().availableProcessors()));
+        long total;
+        try {
+            total = pool.invoke(new Walk(workspace, "", old, next.dirs));
+        } finally {
+            pool.shutdown();
+        }
+        next.write(cacheFile);
+        return total;
+    }
+
+    /**
+     * What we know about a directory.
+     */
+    private static final class DirRecord {
+        private final long mtime;
+        private final long fileBytes;
+        private final String[] subdirs;
+
+        private DirRecord(long mtime, long fileBytes, String[] subdirs) {
+            this.mtime = mtime;
+            this.fileBytes = fileBytes;
+            this.subdirs = subdirs;
+        }
+    }
+
+    /**
+     * The records of a workspace, keyed by path relative to the workspace.
+     */
+    private static final class Cache {
+        private final long created;
+        private final Map<String, DirRecord> dirs = new ConcurrentHashMap<String, DirRecord>();
+
+        private Cache(long created) {
+            this.created = created;
+        }
+
+        private static Cache read(File file) {
+            if (!file.isFile()) {
+                return null;
+            }
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                        return null;
+                    }
+                    Cache cache = new Cache(in.readLong());
+                    int size = in.readInt();
+                    for (int i = 0; i < size; i++) {
+                        String path = in.readUTF();
+                        long mtime = in.readLong();
+                        long fileBytes = in.readLong();
+                        // a corrupt count fails at the end of the file rather than allocating it up front
+                        List<String> subdirs = new ArrayList<String>();
+                        for (int j = in.readInt(); j > 0; j--) {
+                            subdirs.add(in.readUTF());
+                        }
+                        cache.dirs.put(path, new DirRecord(mtime, fileBytes,
+                                subdirs.toArray(new String[subdirs.size()])));
+                    }
+                    return cache;
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        private void write(File file) throws IOException {
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                return;
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(created);
+                out.writeInt(dirs.size());
+                for (Map.Entry<String, DirRecord> e : dirs.entrySet()) {
+                    DirRecord record = e.getValue();
+                    out.writeUTF(e.getKey());
+                    out.writeLong(record.mtime);
+                    out.writeLong(record.fileBytes);
+                    out.writeInt(record.subdirs.length);
+                    for (String name : record.subdirs) {
+                        out.writeUTF(name);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Sizes one directory and forks a task per sub-directory.
+     */
+    private static final class Walk extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+        private final File dir;
+        private final String path;
+        private final Map<String, DirRecord> old;
+        private final Map<String, DirRecord> next;
+
+        private Walk(File dir, String path, Map<String, DirRecord> old, Map<String, DirRecord> next) {
+            this.dir = dir;
+            this.path = path;
+            this.old = old;
+            this.next = next;
+        }
+
+        @Override
+        protected Long compute() {
+            long mtime = dir.lastModified();
+            DirRecord record = old.get(path);
+            if (record == null || record.mtime != mtime) {
+                long fileBytes = 0;
+                List<String> subdirs = new ArrayList<String>();
+                File[] children = dir.listFiles();
+                if (children != null) {
+                    for (File child : children) {
+                        if (Files.isSymbolicLink(child.toPath())) {
+                            continue;
+                        }
+                        if (child.isDirectory()) {
+                            subdirs.add(child.getName());
+                        } else {
+                            fileBytes += child.length();
+                        }
+                    }
+                }
+                record = new DirRecord(mtime, fileBytes, subdirs.toArray(new String[subdirs.size()]));
+            }
+            next.put(path, record);
+            List<Walk> tasks = new ArrayList<Walk>(record.subdirs.length);
+            for (String name : record.subdirs) {
+                Walk task = new Walk(new File(dir, name), path.isEmpty() ? name : path + "/" + name, old, next);
+                task.fork();
+                tasks.add(task);
+            }
+            long total = record.fileBytes;
+            for (Walk task : tasks) {
+                total += task.join();
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.BulkChange;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.XmlFile;
+import hudson.model.Computer;
+import hudson.model.Item;
+import hudson.model.Items;
+import hudson.model.Node;
+import hudson.model.Saveable;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.slaves.WorkspaceList;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.Timer;
+
+/**
+ * The agent disk used by the workspaces of the branch jobs of a {@link FreeStyleMultiBranchProject}, per branch job
+ * and node. The size of a workspace is re-measured on its agent by {@link WorkspaceSizer} after each build and the
+ * difference applied here, so that no recursive walk of every node is ever needed to report usage.
+ * <p>
+ * Persisted in {@code workspace-usage.xml} alongside the folder's {@code config.xml}, with the changes of concurrent
+ * builds written together.
+ */
+public class WorkspaceUsageIndex implements Saveable {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(WorkspaceUsageIndex.class.getName());
+
+    /**
+     * The name of the file that the index is persisted in.
+     */
+    /*package*/ static final String FILE_NAME = "workspace-usage.xml";
+
+    /**
+     * How long changes are collected before they are written.
+     */
+    private static final long SAVE_DELAY_MILLIS = 1000L;
+
+    /**
+     * Bytes keyed by branch job name and then node name.
+     */
+    private final TreeMap<String, TreeMap<String, Long>> usage = new TreeMap<String, TreeMap<String, Long>>();
+
+    /**
+     * The folder that owns this index.
+     */
+    private transient FreeStyleMultiBranchProject owner;
+
+    /**
+     * Whether a save has been scheduled but not yet performed.
+     */
+    private transient boolean savePending;
+
+    /**
+     * Loads the index of the supplied folder.
+     *
+     * @param owner the folder.
+     * @return the index.
+     */
+    @NonNull
+    /*package*/ static WorkspaceUsageIndex load(@NonNull FreeStyleMultiBranchProject owner) {
+        XmlFile file = getDataFile(owner);
+        WorkspaceUsageIndex index = null;
+        if (file.exists()) {
+            try {
+                index = (WorkspaceUsageIndex) file.read();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not read " + file + ", starting afresh", e);
+            } catch (ClassCastException e) {
+                LOGGER.log(Level.WARNING, "Unexpected content in " + file + ", starting afresh", e);
+            }
+        }
+        if (index == null) {
+            index = new WorkspaceUsageIndex();
+        }
+        index.owner = owner;
+        return index;
+    }
+
+    @NonNull
+    private static XmlFile getDataFile(@NonNull FreeStyleMultiBranchProject owner) {
+        return new XmlFile(Items.XSTREAM, new File(owner.getRootDir(), FILE_NAME));
+    }
+
+    /**
+     * Records the current size of a workspace.
+     *
+     * @param branch the branch job name.
+     * @param node   the node name.
+     * @param bytes  the size of the workspace.
+     * @return the change since the size was last recorded.
+     */
+    /*package*/ long record(String branch, String node, long bytes) {
+        long delta;
+        synchronized (this) {
+            TreeMap<String, Long> nodes = usage.get(branch);
+            if (nodes == null) {
+                nodes = new TreeMap<String, Long>();
+                usage.put(branch, nodes);
+            }
+            Long previous = nodes.put(node, bytes);
+            delta = previous == null ? bytes : bytes - previous;
+        }
+        if (delta != 0) {
+            scheduleSave();
+        }
+        return delta;
+    }
+
+    /**
+     * Forgets a branch job, for example because it has been deleted.
+     *
+     * @param branch the branch job name.
+     */
+    /*package*/ void remove(String branch) {
+        synchronized (this) {
+            if (usage.remove(branch) == null) {
+                return;
+            }
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Returns the total usage of a branch job over all nodes.
+     *
+     * @param branch the branch job name.
+     * @return the usage in bytes.
+     */
+    public synchronized long getBranchTotal(String branch) {
+        long total = 0;
+        Map<String, Long> nodes = usage.get(branch);
+        if (nodes != null) {
+            for (Long bytes : nodes.values()) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns the usage of each node.
+     *
+     * @return the usage in bytes keyed by node name.
+     */
+    @NonNull
+    public synchronized Map<String, Long> getNodeTotals() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map<String, Long> nodes : usage.values()) {
+            for (Map.Entry<String, Long> e : nodes.entrySet()) {
+                Long current = result.get(e.getKey());
+                result.put(e.getKey(), (current == null ? 0L : current) + e.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the total usage of the project.
+     *
+     * @return the usage in bytes.
+     */
+    public long getTotal() {
+        long total = 0;
+        for (Long bytes : getNodeTotals().values()) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    /**
+     * Formats a size for display.
+     *
+     * @param bytes the size.
+     * @return the human readable size.
+     */
+    public static String format(long bytes) {
+        return Functions.humanReadableByteSize(bytes);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void save() throws IOException {
+        if (owner == null || BulkChange.contains(this)) {
+            return;
+        }
+        XmlFile file = getDataFile(owner);
+        synchronized (this) {
+            file.write(this);
+        }
+        SaveableListener.fireOnChange(this, file);
+    }
+
+    /**
+     * Coalesces the saves of the builds that complete at about the same time into a single write.
+     */
+    private void scheduleSave() {
+        synchronized (this) {
+            if (savePending) {
+                return;
+            }
+            savePending = true;
+        }
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (WorkspaceUsageIndex.this) {
+                    savePending = false;
+                }
+                saveQuietly();
+            }
+        }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not save workspace usage of " + owner.getFullName(), e);
+        }
+    }
+
+    /**
+     * Measures the workspace of each completed build in the background.
+     */
+    @Extension
+    public static class RunListenerImpl extends RunListener<FreeStyleMultiBranchProject.BuildImpl> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onCompleted(final FreeStyleMultiBranchProject.BuildImpl run, @NonNull TaskListener listener) {
+            final FilePath workspace = run.getWorkspace();
+            final Node node = run.getBuiltOn();
+            if (workspace == null || node == null) {
+                return;
+            }
+            final String nodeName = node.getNodeName();
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                @Override
+                public void run() {
+                    FreeStyleMultiBranchProject.ProjectImpl project = run.getParent();
+                    try {
+                        Long bytes = measure(node, workspace);
+                        if (bytes != null) {
+                            project.getParent().getWorkspaceUsage()
+                                    .record(project.getName(), nodeName.isEmpty() ? "master" : nodeName, bytes);
+                        }
+                    } catch (IOException e) {
+                        LOGGER.log(Level.FINE, "Could not measure workspace of " + run.getFullDisplayName(), e);
+                    } catch (InterruptedException e) {
+                        LOGGER.log(Level.FINE, "Interrupted measuring workspace of " + run.getFullDisplayName(), e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Measures a workspace while holding its {@link WorkspaceList} lease, so that the walk does not race a build
+     * that is changing the workspace.
+     *
+     * @param node      the node.
+     * @param workspace the workspace.
+     * @return the size in bytes or {@code null} if the workspace is in use or the node is offline, the next build
+     * measures it again.
+     * @throws IOException          if the workspace could not be measured.
+     * @throws InterruptedException if interrupted.
+     */
+    @CheckForNull
+    /*package*/ static Long measure(@NonNull Node node, @NonNull FilePath workspace)
+            throws IOException, InterruptedException {
+        Computer computer = node.toComputer();
+        if (computer == null || computer.isOffline()) {
+            return null;
+        }
+        WorkspaceList.Lease lease = computer.getWorkspaceList().tryAcquire(workspace);
+        if (lease == null) {
+            return null;
+        }
+        try {
+            return workspace.act(new WorkspaceSizer());
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * Drops the usage of deleted branch jobs.
+     */
+    @Extension
+    public static class ItemListenerImpl extends ItemListener {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onDeleted(Item item) {
+            if (item instanceof FreeStyleMultiBranchProject.ProjectImpl) {
+                FreeStyleMultiBranchProject.ProjectImpl project = (FreeStyleMultiBranchProject.ProjectImpl) item;
+                project.getParent().getWorkspaceUsage().remove(project.getName());
+            }
+        }
+    }
+}
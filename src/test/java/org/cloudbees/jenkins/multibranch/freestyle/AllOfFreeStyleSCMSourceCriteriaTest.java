@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import hudson.model.TopLevelItem;
+import java.util.Arrays;
+import java.util.Collections;
+import jenkins.branch.OrganizationFolder;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class AllOfFreeStyleSCMSourceCriteriaTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+    }
+
+    @Test
+    public void configurePageRoundTrips() throws Exception {
+        OrganizationFolder instance = r.jenkins.createProject(OrganizationFolder.class, "instance");
+        FreeStyleMultiBranchProjectFactory factory =
+                new FreeStyleMultiBranchProjectFactory(new FreeStyleProjectFactory());
+        AllOfFreeStyleSCMSourceCriteria criteria = new AllOfFreeStyleSCMSourceCriteria(
+                Arrays.<FreeStyleSCMSourceCriteria>asList(
+                        new MarkerFreeStyleSCMSourceCriteria("marker.txt"),
+                        new MarkerFreeStyleSCMSourceCriteria("build.xml")));
+        factory.setScmSourceCriteria(criteria);
+        instance.getProjectFactories().replaceBy(Collections.singletonList(factory));
+        HtmlPage page = r.createWebClient().getPage(instance, "configure");
+        r.submit(page.getFormByName("config"));
+        FreeStyleMultiBranchProjectFactory saved =
+                instance.getProjectFactories().get(FreeStyleMultiBranchProjectFactory.class);
+        assertThat(saved.getScmSourceCriteria(), instanceOf(AllOfFreeStyleSCMSourceCriteria.class));
+        assertThat(saved.getScmSourceCriteria(), is((FreeStyleSCMSourceCriteria) criteria));
+    }
+}
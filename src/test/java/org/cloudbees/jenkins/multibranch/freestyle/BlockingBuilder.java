@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A builder that signals when it starts and then waits until the test lets it finish, so that tests can inspect
+ * state while a branch build is running.
+ */
+public class BlockingBuilder extends Builder {
+
+    private static final Semaphore started = new Semaphore(0);
+
+    private static final Semaphore finish = new Semaphore(0);
+
+    @DataBoundConstructor
+    public BlockingBuilder() {
+    }
+
+    /**
+     * Forgets any signals left over from a previous test.
+     */
+    public static void reset() {
+        started.drainPermits();
+        finish.drainPermits();
+    }
+
+    /**
+     * Waits for a build to reach this builder.
+     *
+     * @throws InterruptedException if interrupted.
+     */
+    public static void awaitStarted() throws InterruptedException {
+        if (!started.tryAcquire(60, TimeUnit.SECONDS)) {
+            throw new AssertionError("No build reached the blocking builder");
+        }
+    }
+
+    /**
+     * Lets one waiting build finish.
+     */
+    public static void release() {
+        finish.release();
+    }
+
+    @Override
+    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+            throws InterruptedException {
+        started.release();
+        finish.acquire();
+        return true;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Block until released";
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import com.cloudbees.hudson.plugins.folder.computed.DefaultOrphanedItemStrategy;
+import hudson.model.Items;
+import hudson.model.TopLevelItem;
+import hudson.tasks.Builder;
+import java.util.Collections;
+import jenkins.branch.Branch;
+import jenkins.branch.BranchProperty;
+import jenkins.branch.BranchSource;
+import jenkins.branch.DefaultBranchPropertyStrategy;
+import jenkins.branch.NoTriggerBranchProperty;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMSource;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+public class BranchConverterTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+    }
+
+    /**
+     * Creates a project with unbuilt branch jobs for master and feature, keeping the jobs of removed branches as dead
+     * branches so that their config can be checked too.
+     */
+    private static FreeStyleMultiBranchProject createProjectKeepingDeadBranches(MockSCMController c, String repo)
+            throws Exception {
+        c.createRepository(repo);
+        c.createBranch(repo, "feature");
+        FreeStyleMultiBranchProject instance = r.jenkins.createProject(FreeStyleMultiBranchProject.class, repo);
+        BranchSource source = new BranchSource(new MockSCMSource(null, c, repo, true, false, false));
+        source.setStrategy(new DefaultBranchPropertyStrategy(new BranchProperty[]{new NoTriggerBranchProperty()}));
+        instance.getSourcesList().add(source);
+        instance.setProjectFactory(new FreeStyleProjectFactory(Collections.<Builder>emptyList(), null, null));
+        instance.setOrphanedItemStrategy(new DefaultOrphanedItemStrategy(false, "", ""));
+        instance.scheduleBuild2(0).getFuture().get();
+        r.waitUntilNoActivity();
+        return instance;
+    }
+
+    @Test
+    public void liveBranchRoundTrip() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            FreeStyleMultiBranchProject instance = createProjectKeepingDeadBranches(c, "live");
+            FreeStyleMultiBranchProject.ProjectImpl project = instance.getItem("feature");
+            String xml = project.getConfigFile().asString();
+            assertThat(xml, containsString("<branch sourceId=\""));
+
+            FreeStyleMultiBranchProject.ProjectImpl read =
+                    (FreeStyleMultiBranchProject.ProjectImpl) Items.XSTREAM.fromXML(xml);
+            Branch branch = read.getBranch();
+            assertThat(branch.getClass().getName(), is(Branch.class.getName()));
+            assertThat(branch.getName(), is("feature"));
+            assertThat(branch.getSourceId(), is(project.getBranch().getSourceId()));
+            assertThat(branch.getScm().getClass().getName(), is(project.getBranch().getScm().getClass().getName()));
+            assertThat(branch.getProperties().size(), is(1));
+            assertThat(branch.getProperties().get(0), instanceOf(NoTriggerBranchProperty.class));
+        }
+    }
+
+    @Test
+    public void readingOntoAJobResetsOmittedDefaults() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            FreeStyleMultiBranchProject instance = createProjectKeepingDeadBranches(c, "reloaded");
+            FreeStyleMultiBranchProject.ProjectImpl project = instance.getItem("feature");
+            String enabled = project.getConfigFile().asString();
+            assertThat(enabled, not(containsString("<disabled>")));
+            project.makeDisabled(true);
+            assertThat(project.getConfigFile().asString(), containsString("<disabled>true</disabled>"));
+
+            // as a reload does, with a file that leaves the flag out
+            FileUtils.writeStringToFile(project.getConfigFile().getFile(), enabled, "UTF-8");
+            project.getConfigFile().unmarshal(project);
+            assertThat(project.isDisabled(), is(false));
+            assertThat(project.getBranch().getName(), is("feature"));
+        }
+    }
+
+    @Test
+    public void deadBranchRoundTrip() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            FreeStyleMultiBranchProject instance = createProjectKeepingDeadBranches(c, "dead");
+            c.deleteBranch("dead", "feature");
+            instance.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            FreeStyleMultiBranchProject.ProjectImpl project = instance.getItem("feature");
+            assertThat(project.getBranch(), instanceOf(Branch.Dead.class));
+            project.save();
+            String xml = project.getConfigFile().asString();
+            assertThat(xml, not(containsString("<branch sourceId=\"")));
+
+            FreeStyleMultiBranchProject.ProjectImpl read =
+                    (FreeStyleMultiBranchProject.ProjectImpl) Items.XSTREAM.fromXML(xml);
+            assertThat(read.getBranch(), instanceOf(Branch.Dead.class));
+            assertThat(read.getBranch().getName(), is("feature"));
+            assertThat(read.getBranch().getProperties().size(), is(1));
+
+            r.jenkins.reload();
+            instance = r.jenkins.getItemByFullName("dead", FreeStyleMultiBranchProject.class);
+            assertThat(instance.getItem("feature").getBranch(), instanceOf(Branch.Dead.class));
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.model.TopLevelItem;
+import hudson.tasks.ArtifactArchiver;
+import hudson.tasks.BuildTrigger;
+import hudson.tasks.Builder;
+import hudson.tasks.Publisher;
+import hudson.tasks.Shell;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import jenkins.branch.BranchProperty;
+import jenkins.branch.BranchSource;
+import jenkins.branch.DefaultBranchPropertyStrategy;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMSource;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class BranchHibernationTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+    }
+
+    private static FreeStyleMultiBranchProject.ProjectImpl createBranchJob(MockSCMController c, String repo)
+            throws Exception {
+        c.createRepository(repo);
+        r.jenkins.createProject(FreeStyleProject.class, repo + "-downstream");
+        FreeStyleMultiBranchProject instance = r.jenkins.createProject(FreeStyleMultiBranchProject.class, repo);
+        BranchSource source = new BranchSource(new MockSCMSource(null, c, repo, true, false, false));
+        source.setStrategy(new DefaultBranchPropertyStrategy(new BranchProperty[0]));
+        instance.getSourcesList().add(source);
+        instance.setProjectFactory(new FreeStyleProjectFactory(
+                Collections.<Builder>singletonList(new Shell("echo hello")), null,
+                Arrays.<Publisher>asList(new ArtifactArchiver("*.txt"),
+                        new BuildTrigger(repo + "-downstream", Result.SUCCESS))));
+        instance.scheduleBuild2(0).getFuture().get();
+        r.waitUntilNoActivity();
+        return instance.getItem("master");
+    }
+
+    @Test
+    public void hibernateAndWake() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            FreeStyleMultiBranchProject.ProjectImpl master = createBranchJob(c, "sleepy");
+            assertThat(master.hibernate(), greaterThan(0L));
+            assertThat(master.isHibernated(), is(true));
+            assertThat(master.hibernate(), is(0L));
+
+            master.wake();
+            assertThat(master.isHibernated(), is(false));
+            assertThat(master.getBuildersList().size(), is(1));
+            assertThat(master.getPublishersList().size(), is(2));
+        }
+    }
+
+    @Test
+    public void accessWakes() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            FreeStyleMultiBranchProject.ProjectImpl master = createBranchJob(c, "access");
+            master.hibernate();
+            assertThat(master.getBuildersList().get(Shell.class).getCommand(), is("echo hello"));
+            assertThat(master.isHibernated(), is(false));
+        }
+    }
+
+    @Test
+    public void buildOfAHibernatedJobRunsItsSteps() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            FreeStyleMultiBranchProject.ProjectImpl master = createBranchJob(c, "woken");
+            int next = master.getNextBuildNumber();
+            master.hibernate();
+            FreeStyleMultiBranchProject.BuildImpl build = r.assertBuildStatusSuccess(master.scheduleBuild2(0));
+            r.assertLogContains("hello", build);
+            assertThat(master.isHibernated(), is(false));
+            // waking does not reload the job, the build records are the ones we had
+            assertThat(build.getNumber(), is(next));
+            assertThat(master.getBuildByNumber(next), sameInstance(build));
+        }
+    }
+
+    @Test
+    public void dependencyGraphDoesNotWake() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            FreeStyleMultiBranchProject.ProjectImpl master = createBranchJob(c, "graph");
+            master.hibernate();
+            r.jenkins.rebuildDependencyGraph();
+            assertThat(master.isHibernated(), is(true));
+            // the build trigger was kept so the graph is unchanged
+            assertThat(r.jenkins.getDependencyGraph().getDownstream(master),
+                    hasItem(r.jenkins.getItemByFullName("graph-downstream", FreeStyleProject.class)));
+        }
+    }
+
+    @Test
+    public void saveWakes() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            FreeStyleMultiBranchProject.ProjectImpl master = createBranchJob(c, "saved");
+            master.hibernate();
+            master.save();
+            assertThat(master.isHibernated(), is(false));
+            assertThat(master.getConfigFile().asString(), containsString("echo hello"));
+        }
+    }
+
+    @Test
+    public void saveFailsIfTheJobCannotBeRestored() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            FreeStyleMultiBranchProject.ProjectImpl master = createBranchJob(c, "broken");
+            master.hibernate();
+            FileUtils.writeStringToFile(master.getConfigFile().getFile(), "<freestyle-branch>");
+            try {
+                master.save();
+                fail("saved a branch job that could not be restored");
+            } catch (IOException e) {
+                assertThat(e.getMessage(), containsString("refusing to save"));
+            }
+            assertThat(master.isHibernated(), is(true));
+            assertThat(master.getConfigFile().asString(), is("<freestyle-branch>"));
+        }
+    }
+}
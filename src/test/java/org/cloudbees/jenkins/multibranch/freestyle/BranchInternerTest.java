@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import hudson.model.TopLevelItem;
+import hudson.scm.NullSCM;
+import hudson.tasks.Builder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import jenkins.branch.Branch;
+import jenkins.branch.BranchProperty;
+import jenkins.branch.BranchSource;
+import jenkins.branch.DefaultBranchPropertyStrategy;
+import jenkins.branch.NoTriggerBranchProperty;
+import jenkins.branch.RateLimitBranchProperty;
+import jenkins.scm.api.SCMHead;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMSource;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class BranchInternerTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+    }
+
+    @Test
+    public void branchJobsDoNotShareMutableState() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("interned");
+            c.createBranch("interned", "feature");
+            FreeStyleMultiBranchProject instance =
+                    r.jenkins.createProject(FreeStyleMultiBranchProject.class, "interned");
+            BranchSource source = new BranchSource(new MockSCMSource(null, c, "interned", true, false, false));
+            source.setStrategy(new DefaultBranchPropertyStrategy(new BranchProperty[]{
+                    new NoTriggerBranchProperty(), new RateLimitBranchProperty(5, "hour")
+            }));
+            instance.getSourcesList().add(source);
+            instance.setProjectFactory(new FreeStyleProjectFactory(Collections.<Builder>emptyList(), null, null));
+            instance.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+
+            Branch master = instance.getItem("master").getBranch();
+            Branch feature = instance.getItem("feature").getBranch();
+            assertThat(master.getScm(), not(sameInstance(feature.getScm())));
+            assertThat(master.getProperties().get(0), sameInstance(feature.getProperties().get(0)));
+            assertThat(master.getProperties().get(1), not(sameInstance(feature.getProperties().get(1))));
+        }
+    }
+
+    @Test
+    public void suppliedBranchIsNotModified() {
+        BranchInterner interner = new BranchInterner();
+        NullSCM scm = new NullSCM();
+        BranchProperty noTrigger = new NoTriggerBranchProperty();
+        BranchProperty rateLimit = new RateLimitBranchProperty(5, "hour");
+        Branch first = interner.intern(new Branch(new String("source"), new SCMHead("a"), new NullSCM(),
+                Arrays.asList(new NoTriggerBranchProperty(), new RateLimitBranchProperty(5, "hour"))));
+        Branch second = new Branch(new String("source"), new SCMHead("b"), scm, Arrays.asList(noTrigger, rateLimit));
+
+        Branch interned = interner.intern(second);
+        assertThat(interned, not(sameInstance(second)));
+        assertThat(interned.getSourceId(), sameInstance(first.getSourceId()));
+        assertThat(interned.getScm(), sameInstance((Object) scm));
+        assertThat(interned.getProperties().get(0), sameInstance(first.getProperties().get(0)));
+        assertThat(interned.getProperties().get(1), sameInstance(rateLimit));
+        // the branch we were given still has its own instances
+        assertThat(second.getSourceId(), not(sameInstance(first.getSourceId())));
+        assertThat(second.getProperties().get(0), sameInstance(noTrigger));
+        assertThat(interner.intern(interned), sameInstance(interned));
+        assertThat(interned.getName(), is("b"));
+    }
+
+    @Test
+    public void scmStringsAreShared() {
+        BranchInterner interner = new BranchInterner();
+        ConfiguredSCM first = new ConfiguredSCM(new String("https://example.com/repo.git"), new String("creds"),
+                new String("+refs/heads/*:refs/remotes/origin/*"));
+        ConfiguredSCM second = new ConfiguredSCM(new String("https://example.com/repo.git"), new String("creds"),
+                new String("+refs/heads/*:refs/remotes/origin/*"));
+        interner.intern(new Branch("source", new SCMHead("a"), first, Collections.<BranchProperty>emptyList()));
+        Branch branch = new Branch("source", new SCMHead("b"), second, Collections.<BranchProperty>emptyList());
+
+        assertThat(interner.intern(branch).getScm(), sameInstance((Object) second));
+        assertThat(second.remotes.get(0).url, sameInstance(first.remotes.get(0).url));
+        assertThat(second.remotes.get(0).credentialsId, sameInstance(first.remotes.get(0).credentialsId));
+        assertThat(second.refspecs[0], sameInstance(first.refspecs[0]));
+        assertThat(second.remotes.get(0).url, is("https://example.com/repo.git"));
+    }
+
+    private static class ConfiguredSCM extends NullSCM {
+        private final List<Remote> remotes;
+        private final String[] refspecs;
+
+        ConfiguredSCM(String url, String credentialsId, String refspec) {
+            this.remotes = Collections.singletonList(new Remote(url, credentialsId));
+            this.refspecs = new String[]{refspec};
+        }
+    }
+
+    private static class Remote {
+        private final String url;
+        private final String credentialsId;
+
+        Remote(String url, String credentialsId) {
+            this.url = url;
+            this.credentialsId = credentialsId;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import hudson.model.TopLevelItem;
+import hudson.tasks.Builder;
+import java.io.File;
+import java.util.Collections;
+import jenkins.branch.BranchProperty;
+import jenkins.branch.BranchSource;
+import jenkins.branch.DefaultBranchPropertyStrategy;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMSource;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class BranchJobReaperTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+    }
+
+    @Test
+    public void deletedBranchJobLeavesNothingBehind() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("reaped");
+            c.createBranch("reaped", "feature");
+            FreeStyleMultiBranchProject instance =
+                    r.jenkins.createProject(FreeStyleMultiBranchProject.class, "reaped");
+            BranchSource source = new BranchSource(new MockSCMSource(null, c, "reaped", true, false, false));
+            source.setStrategy(new DefaultBranchPropertyStrategy(new BranchProperty[0]));
+            instance.getSourcesList().add(source);
+            instance.setProjectFactory(new FreeStyleProjectFactory(Collections.<Builder>emptyList(), null, null));
+            instance.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            FreeStyleMultiBranchProject.ProjectImpl feature = instance.getItem("feature");
+            feature.scheduleBuild2(0).get();
+            File rootDir = feature.getRootDir();
+
+            feature.delete();
+            assertThat(instance.getItem("feature"), nullValue());
+            // in particular no config.xml was saved into a recreated job directory
+            assertThat(rootDir.exists(), is(false));
+            File trash = new File(instance.getRootDir(), BranchJobReaper.TRASH_DIR);
+            for (int i = 0; i < 100 && trash.list() != null && trash.list().length > 0; i++) {
+                Thread.sleep(100);
+            }
+            assertThat(trash.list(), emptyArray());
+        }
+    }
+}
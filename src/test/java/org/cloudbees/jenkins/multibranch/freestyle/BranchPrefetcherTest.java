@@ -0,0 +1,172 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.model.TopLevelItem;
+import hudson.slaves.WorkspaceList;
+import hudson.tasks.Builder;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jenkins.branch.BranchProperty;
+import jenkins.branch.BranchSource;
+import jenkins.branch.DefaultBranchPropertyStrategy;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeFalse;
+
+public class BranchPrefetcherTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    private String[] fetchCommand;
+
+    private long awaitSeconds;
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        assumeFalse(Functions.isWindows());
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+        BlockingBuilder.reset();
+        fetchCommand = BranchPrefetcher.FETCH_COMMAND;
+        awaitSeconds = BranchPrefetcher.AWAIT_SECONDS;
+        // a fetch that hangs
+        BranchPrefetcher.FETCH_COMMAND = new String[]{"sleep", "600"};
+        BranchPrefetcher.AWAIT_SECONDS = 1;
+    }
+
+    @After
+    public void restore() {
+        BranchPrefetcher.FETCH_COMMAND = fetchCommand;
+        BranchPrefetcher.AWAIT_SECONDS = awaitSeconds;
+    }
+
+    private static FreeStyleMultiBranchProject.ProjectImpl createBuiltBranchJob(MockSCMController c, String repo,
+                                                                               List<Builder> builders)
+            throws Exception {
+        c.createRepository(repo);
+        FreeStyleMultiBranchProject instance = r.jenkins.createProject(FreeStyleMultiBranchProject.class, repo);
+        BranchSource source = new BranchSource(new MockSCMSource(null, c, repo, true, false, false));
+        source.setStrategy(new DefaultBranchPropertyStrategy(new BranchProperty[0]));
+        instance.getSourcesList().add(source);
+        instance.setProjectFactory(new FreeStyleProjectFactory(builders, null, null));
+        instance.setPrefetch(true);
+        instance.scheduleBuild2(0).getFuture().get();
+        r.waitUntilNoActivity();
+        FreeStyleMultiBranchProject.ProjectImpl master = instance.getItem("master");
+        // make the workspace look like a clone
+        master.getLastBuild().getWorkspace().child(".git").mkdirs();
+        return master;
+    }
+
+    @Test
+    public void hungPrefetchDoesNotStallTheBuild() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            FreeStyleMultiBranchProject.ProjectImpl master =
+                    createBuiltBranchJob(c, "hung", Collections.<Builder>emptyList());
+            FilePath workspace = master.getLastBuild().getWorkspace();
+            BranchPrefetcher.prefetch(master);
+            assertThat(BranchPrefetcher.isInProgress(r.jenkins, workspace), is(true));
+
+            long start = System.nanoTime();
+            FreeStyleMultiBranchProject.BuildImpl build = r.assertBuildStatusSuccess(master.scheduleBuild2(0));
+            assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), lessThan(30L));
+            // the cancelled pre-fetch released the warm workspace in time
+            assertThat(build.getWorkspace(), is(workspace));
+            assertThat(BranchPrefetcher.isInProgress(r.jenkins, workspace), is(false));
+        }
+    }
+
+    @Test
+    public void requestIsLookedIntoInTheBackground() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            FreeStyleMultiBranchProject.ProjectImpl master =
+                    createBuiltBranchJob(c, "requested", Collections.<Builder>emptyList());
+            FilePath workspace = master.getLastBuild().getWorkspace();
+            // as the queue listener does, with the queue lock held
+            BranchPrefetcher.request(master);
+            for (int i = 0; i < 50 && !BranchPrefetcher.isInProgress(r.jenkins, workspace); i++) {
+                Thread.sleep(100);
+            }
+            assertThat(BranchPrefetcher.isInProgress(r.jenkins, workspace), is(true));
+            r.assertBuildStatusSuccess(master.scheduleBuild2(0));
+        }
+    }
+
+    @Test
+    public void noPrefetchIntoTheWorkspaceOfARunningBuild() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            // let the first build through
+            BlockingBuilder.release();
+            FreeStyleMultiBranchProject.ProjectImpl master = createBuiltBranchJob(c, "running",
+                    Collections.<Builder>singletonList(new BlockingBuilder()));
+            BlockingBuilder.reset();
+            FilePath workspace = master.getLastBuild().getWorkspace();
+            master.scheduleBuild2(0);
+            BlockingBuilder.awaitStarted();
+            try {
+                BranchPrefetcher.prefetch(master);
+                assertThat(BranchPrefetcher.isInProgress(r.jenkins, workspace), is(false));
+            } finally {
+                BlockingBuilder.release();
+            }
+            r.waitUntilNoActivity();
+        }
+    }
+
+    @Test
+    public void prefetchSkipsALeasedWorkspace() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            FreeStyleMultiBranchProject.ProjectImpl master =
+                    createBuiltBranchJob(c, "leased", Collections.<Builder>emptyList());
+            FilePath workspace = master.getLastBuild().getWorkspace();
+            WorkspaceList.Lease lease = r.jenkins.toComputer().getWorkspaceList().acquire(workspace);
+            try {
+                BranchPrefetcher.prefetch(master);
+                // gives up on the lease at once rather than running the hung fetch
+                for (int i = 0; i < 50 && BranchPrefetcher.isInProgress(r.jenkins, workspace); i++) {
+                    Thread.sleep(100);
+                }
+                assertThat(BranchPrefetcher.isInProgress(r.jenkins, workspace), is(false));
+            } finally {
+                lease.release();
+            }
+        }
+    }
+}
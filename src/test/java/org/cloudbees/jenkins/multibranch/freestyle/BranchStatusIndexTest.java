@@ -0,0 +1,236 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import hudson.model.Result;
+import hudson.model.TopLevelItem;
+import hudson.tasks.Builder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import jenkins.branch.BranchProperty;
+import jenkins.branch.BranchSource;
+import jenkins.branch.DefaultBranchPropertyStrategy;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMSource;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class BranchStatusIndexTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+        BlockingBuilder.reset();
+    }
+
+    private static FreeStyleMultiBranchProject createProject(MockSCMController c, String repo,
+                                                             List<Builder> builders) throws Exception {
+        FreeStyleMultiBranchProject instance = r.jenkins.createProject(FreeStyleMultiBranchProject.class, repo);
+        BranchSource source = new BranchSource(new MockSCMSource(null, c, repo, true, false, false));
+        source.setStrategy(new DefaultBranchPropertyStrategy(new BranchProperty[0]));
+        instance.getSourcesList().add(source);
+        instance.setProjectFactory(new FreeStyleProjectFactory(builders, null, null));
+        return instance;
+    }
+
+    private static JSONObject branches(JenkinsRule.WebClient wc, FreeStyleMultiBranchProject instance, String query)
+            throws Exception {
+        return JSONObject.fromObject(wc.goTo(instance.getUrl() + "branches?" + query, "application/json")
+                .getWebResponse().getContentAsString());
+    }
+
+    private static List<String> names(JSONObject page) {
+        List<String> names = new ArrayList<>();
+        JSONArray branches = page.getJSONArray("branches");
+        for (int i = 0; i < branches.size(); i++) {
+            names.add(branches.getJSONObject(i).getString("name"));
+        }
+        return names;
+    }
+
+    private static List<String> names(BranchStatusIndex index) {
+        List<String> names = new ArrayList<>();
+        for (BranchStatusIndex.Entry e : index.getEntries()) {
+            names.add(e.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void tracksBuildsAndBranchJobs() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("status");
+            c.createBranch("status", "Beta");
+            c.createBranch("status", "alpha");
+            FreeStyleMultiBranchProject instance = createProject(c, "status", Collections.<Builder>emptyList());
+            instance.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            BranchStatusIndex index = instance.getStatusIndex();
+            // same order as the folder lists its items
+            assertThat(names(index), contains("alpha", "Beta", "master"));
+            BranchStatusIndex.Entry master = index.get("master");
+            assertThat(master, notNullValue());
+            assertThat(master.getNumber(), is(1));
+            assertThat(master.getResult(), is(Result.SUCCESS));
+            assertThat(master.isBuilding(), is(false));
+            assertThat(master.getRevision(), notNullValue());
+
+            instance.getItem("alpha").delete();
+            assertThat(index.get("alpha"), nullValue());
+            assertThat(names(index), contains("Beta", "master"));
+        }
+    }
+
+    @Test
+    public void persists() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("persist");
+            c.createBranch("persist", "Beta");
+            FreeStyleMultiBranchProject instance = createProject(c, "persist", Collections.<Builder>emptyList());
+            instance.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            instance.getStatusIndex().save();
+            BranchStatusIndex loaded = BranchStatusIndex.load(instance);
+            assertThat(names(loaded), contains("Beta", "master"));
+            assertThat(loaded.get("master").getNumber(), is(1));
+            assertThat(loaded.get("master").getResult(), is(Result.SUCCESS));
+            assertThat(loaded.get("beta"), notNullValue());
+        }
+    }
+
+    @Test
+    public void runningBuildIsFlagged() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("running");
+            FreeStyleMultiBranchProject instance = createProject(c, "running",
+                    Collections.<Builder>singletonList(new BlockingBuilder()));
+            instance.scheduleBuild2(0).getFuture().get();
+            BlockingBuilder.awaitStarted();
+            BranchStatusIndex index = instance.getStatusIndex();
+            assertThat(index.get("master").getNumber(), is(1));
+            assertThat(index.get("master").isBuilding(), is(true));
+            BlockingBuilder.release();
+            r.waitUntilNoActivity();
+
+            instance.getItem("master").scheduleBuild2(0);
+            BlockingBuilder.awaitStarted();
+            BranchStatusIndex.Entry running = index.get("master");
+            assertThat(running.isBuilding(), is(true));
+            // the last completed build is shown until the running build has completed
+            BranchStatusIndex.Entry last = BranchStatusIndex.Entry.of(instance.getItem("master").getBuildByNumber(1));
+            assertThat(running.getNumber(), is(1));
+            assertThat(running.getResult(), is(Result.SUCCESS));
+            assertThat(running.getTimestamp(), is(last.getTimestamp()));
+            assertThat(running.getDuration(), is(last.getDuration()));
+            BlockingBuilder.release();
+            r.waitUntilNoActivity();
+            assertThat(index.get("master").getNumber(), is(2));
+            assertThat(index.get("master").isBuilding(), is(false));
+        }
+    }
+
+    @Test
+    public void deletedBuildsAreDropped() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("deleted");
+            FreeStyleMultiBranchProject instance = createProject(c, "deleted", Collections.<Builder>emptyList());
+            instance.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            FreeStyleMultiBranchProject.ProjectImpl master = instance.getItem("master");
+            r.assertBuildStatusSuccess(master.scheduleBuild2(0));
+            BranchStatusIndex index = instance.getStatusIndex();
+            assertThat(index.get("master").getNumber(), is(2));
+
+            master.getBuildByNumber(1).delete();
+            assertThat(index.get("master").getNumber(), is(2));
+            master.getBuildByNumber(2).delete();
+            assertThat(index.get("master").getNumber(), is(0));
+            assertThat(index.get("master").getResult(), nullValue());
+        }
+    }
+
+    @Test
+    public void branchesArePaged() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("paged");
+            c.createBranch("paged", "Beta");
+            c.createBranch("paged", "alpha");
+            FreeStyleMultiBranchProject instance = createProject(c, "paged", Collections.<Builder>emptyList());
+            instance.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            JenkinsRule.WebClient wc = r.createWebClient();
+
+            JSONObject page = branches(wc, instance, "limit=2");
+            assertThat(names(page), contains("alpha", "Beta"));
+            assertThat(page.getString("next"), is("Beta"));
+            page = branches(wc, instance, "limit=2&after=" + page.getString("next"));
+            assertThat(names(page), contains("master"));
+            assertThat(page.get("next"), is((Object) JSONNull.getInstance()));
+
+            JSONObject master = page.getJSONArray("branches").getJSONObject(0);
+            FreeStyleMultiBranchProject.ProjectImpl project = instance.getItem("master");
+            assertThat(master.getString("revision"),
+                    is(instance.getProjectFactory().getRevision(project).toString()));
+            assertThat(master.getString("result"), is("SUCCESS"));
+        }
+    }
+
+    @Test
+    public void branchesAreFiltered() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("filtered");
+            c.createBranch("filtered", "Beta");
+            c.createBranch("filtered", "alpha");
+            FreeStyleMultiBranchProject instance = createProject(c, "filtered", Collections.<Builder>emptyList());
+            instance.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            JenkinsRule.WebClient wc = r.createWebClient();
+
+            assertThat(names(branches(wc, instance, "name=.*a$")), contains("alpha", "Beta"));
+            assertThat(names(branches(wc, instance, "result=SUCCESS")), contains("alpha", "Beta", "master"));
+            assertThat(names(branches(wc, instance, "result=failure")), empty());
+            wc.assertFails(instance.getUrl() + "branches?result=typo", 400);
+            wc.assertFails(instance.getUrl() + "branches?name=(", 400);
+        }
+    }
+}
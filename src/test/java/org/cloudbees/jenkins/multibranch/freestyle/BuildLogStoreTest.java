@@ -0,0 +1,219 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import com.gargoylesoftware.htmlunit.WebResponse;
+import hudson.model.TopLevelItem;
+import hudson.tasks.Builder;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Collections;
+import jenkins.branch.BranchProperty;
+import jenkins.branch.BranchSource;
+import jenkins.branch.DefaultBranchPropertyStrategy;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMSource;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class BuildLogStoreTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+    }
+
+    @Test
+    public void offsetsMapToTheirBlock() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            String log = lines(3000, 100);
+            FreeStyleMultiBranchProject.BuildImpl build = compressedBuild(c, log);
+            BuildLogStore.Index index = index(build);
+            int size = BuildLogStore.BLOCK_SIZE;
+            assertThat(index.size, is(5));
+            assertThat(index.totalBytes, is((long) log.length()));
+            assertThat(index.blockForOffset(0), is(0));
+            assertThat(index.blockForOffset(size - 1), is(0));
+            assertThat(index.blockForOffset(size), is(1));
+            assertThat(index.blockForOffset(2L * size - 1), is(1));
+            assertThat(index.blockForOffset(2L * size), is(2));
+            assertThat(index.blockForOffset(log.length() - 1), is(4));
+
+            assertThat(range(build, size - 10, 20), is(log.substring(size - 10, size + 10)));
+            assertThat(range(build, 2L * size, 5), is(log.substring(2 * size, 2 * size + 5)));
+            assertThat(range(build, log.length() - 5, 100), is(log.substring(log.length() - 5)));
+            assertThat(range(build, log.length(), 100), is(""));
+        }
+    }
+
+    @Test
+    public void linesMapToTheirBlock() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            // line 655 straddles the first block boundary
+            String log = lines(3000, 100);
+            FreeStyleMultiBranchProject.BuildImpl build = compressedBuild(c, log);
+            BuildLogStore.Index index = index(build);
+            assertThat(index.lines[1], is(655L));
+            assertThat(index.blockForLine(0), is(0));
+            assertThat(index.blockForLine(655), is(0));
+            assertThat(index.blockForLine(656), is(1));
+            assertThat(index.totalLines, is(3000L));
+
+            assertThat(lines(build, 654, 3), is(line(654, 100) + line(655, 100) + line(656, 100)));
+            assertThat(lines(build, 2999, 10), is(line(2999, 100)));
+            assertThat(lines(build, 3000, 10), is(""));
+        }
+    }
+
+    @Test
+    public void lineEndingOnABlockBoundary() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            // 1024 lines fill a block exactly, so line 1024 starts the second block
+            String log = lines(3000, 64);
+            FreeStyleMultiBranchProject.BuildImpl build = compressedBuild(c, log);
+            BuildLogStore.Index index = index(build);
+            assertThat(index.lines[1], is(1024L));
+            assertThat(index.blockForLine(1024), is(0));
+            assertThat(index.blockForLine(1025), is(1));
+            assertThat(lines(build, 1023, 2), is(line(1023, 64) + line(1024, 64)));
+            assertThat(lines(build, 1024, 1), is(line(1024, 64)));
+        }
+    }
+
+    @Test
+    public void compressedLogIsReadableByJenkins() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            String log = lines(3000, 100);
+            FreeStyleMultiBranchProject.BuildImpl build = compressedBuild(c, log);
+            assertThat(build.getLogFile().getName(), is(BuildLogStore.LOG_FILE));
+            try (InputStream in = build.getLogInputStream()) {
+                assertThat(IOUtils.toString(in, "UTF-8"), is(log));
+            }
+            // the console truncates large logs by the length in the gzip trailer
+            assertThat(build.getLogText().length(), is((long) log.length()));
+        }
+    }
+
+    @Test
+    public void progressiveTextIsServedFromTheIndex() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            String log = lines(3000, 100);
+            FreeStyleMultiBranchProject.BuildImpl build = compressedBuild(c, log);
+            assertThat(build.getLogText(), instanceOf(BuildLogStore.LogText.class));
+            int start = 2 * BuildLogStore.BLOCK_SIZE + 10;
+            WebResponse rsp = r.createWebClient().goTo(build.getUrl() + "logText/progressiveText?start=" + start,
+                    "text/plain").getWebResponse();
+            assertThat(rsp.getContentAsString(), is(log.substring(start)));
+            assertThat(rsp.getResponseHeaderValue("X-Text-Size"), is(Integer.toString(log.length())));
+            assertThat(rsp.getResponseHeaderValue("X-More-Data"), nullValue());
+        }
+    }
+
+    @Test
+    public void logRangeIsServedWithTheNextStart() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            String log = lines(3000, 100);
+            FreeStyleMultiBranchProject.BuildImpl build = compressedBuild(c, log);
+            int size = BuildLogStore.BLOCK_SIZE;
+            JenkinsRule.WebClient wc = r.createWebClient();
+            WebResponse rsp = wc.goTo(build.getUrl() + "logRange?start=" + (size - 10) + "&length=20", "text/plain")
+                    .getWebResponse();
+            assertThat(rsp.getContentAsString(), is(log.substring(size - 10, size + 10)));
+            assertThat(rsp.getResponseHeaderValue("X-Next-Start"), is(Integer.toString(size + 10)));
+            rsp = wc.goTo(build.getUrl() + "logRange?start=" + (log.length() - 5) + "&length=20", "text/plain")
+                    .getWebResponse();
+            assertThat(rsp.getContentAsString(), is(log.substring(log.length() - 5)));
+            assertThat(rsp.getResponseHeaderValue("X-Next-Start"), is(Integer.toString(log.length())));
+        }
+    }
+
+    private FreeStyleMultiBranchProject.BuildImpl compressedBuild(MockSCMController c, String log)
+            throws Exception {
+        c.createRepository("logs");
+        FreeStyleMultiBranchProject instance = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "logs");
+        BranchSource source = new BranchSource(new MockSCMSource(null, c, "logs", true, false, false));
+        source.setStrategy(new DefaultBranchPropertyStrategy(new BranchProperty[0]));
+        instance.getSourcesList().add(source);
+        instance.setProjectFactory(new FreeStyleProjectFactory(Collections.<Builder>emptyList(), null, null));
+        instance.scheduleBuild2(0).getFuture().get();
+        r.waitUntilNoActivity();
+        FreeStyleMultiBranchProject.ProjectImpl master = instance.getItem("master");
+        FreeStyleMultiBranchProject.BuildImpl build = master.getLastBuild();
+        assertThat(build, notNullValue());
+        FileUtils.writeStringToFile(new File(build.getRootDir(), "log"), log, "UTF-8");
+        BuildLogStore.compress(build.getRootDir());
+        assertThat(new File(build.getRootDir(), "log").exists(), is(false));
+        return build;
+    }
+
+    private static BuildLogStore.Index index(FreeStyleMultiBranchProject.BuildImpl build) throws Exception {
+        BuildLogStore.Index index = BuildLogStore.Index.read(new File(build.getRootDir(), BuildLogStore.INDEX_FILE));
+        assertThat(index, notNullValue());
+        return index;
+    }
+
+    private static String range(FreeStyleMultiBranchProject.BuildImpl build, long start, long length)
+            throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long next = BuildLogStore.writeRange(build, start, length, out);
+        assertThat(next, is(start + out.size()));
+        return out.toString("UTF-8");
+    }
+
+    private static String lines(FreeStyleMultiBranchProject.BuildImpl build, long from, int count)
+            throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BuildLogStore.writeLines(build, from, count, out);
+        return out.toString("UTF-8");
+    }
+
+    private static String lines(int count, int width) {
+        StringBuilder log = new StringBuilder(count * width);
+        for (int i = 0; i < count; i++) {
+            log.append(line(i, width));
+        }
+        return log.toString();
+    }
+
+    private static String line(int number, int width) {
+        return String.format("%0" + (width - 1) + "d", number) + "\n";
+    }
+}
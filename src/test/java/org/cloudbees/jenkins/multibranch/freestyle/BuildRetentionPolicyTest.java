@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import hudson.util.FormValidation;
+import hudson.util.XStream2;
+import java.io.File;
+import java.util.Collections;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+public class BuildRetentionPolicyTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File buildDir(int builds, int bytesPerBuild) throws Exception {
+        File dir = tmp.newFolder();
+        for (int i = 1; i <= builds; i++) {
+            FileUtils.writeByteArrayToFile(new File(new File(dir, Integer.toString(i)), "log"),
+                    new byte[bytesPerBuild]);
+        }
+        // not a build
+        assertThat(new File(dir, "legacyIds").mkdir(), is(true));
+        return dir;
+    }
+
+    @Test
+    public void budgetIsSharedByWeight() {
+        BuildRetentionPolicy policy = new BuildRetentionPolicy(100);
+        long total = 400 + 100 + 50;
+        long primary = policy.budgetOf(400, total);
+        long branch = policy.budgetOf(100, total);
+        long changeRequest = policy.budgetOf(50, total);
+        assertThat(primary, is(4 * branch));
+        assertThat(branch, is(2 * changeRequest));
+        assertThat(primary + branch + changeRequest, lessThanOrEqualTo(100L * 1024 * 1024));
+        assertThat(primary + branch + changeRequest, is(100L * 1024 * 1024 / total * total));
+        assertThat(policy.budgetOf(100, 0), is(0L));
+    }
+
+    @Test
+    public void budgetIsPositive() {
+        assertThat(new BuildRetentionPolicy(0).getDiskBudgetMB(), is(1L));
+        assertThat(new BuildRetentionPolicy(-5).getDiskBudgetMB(), is(1L));
+        BuildRetentionPolicy read = (BuildRetentionPolicy) new XStream2().fromXML(
+                "<" + BuildRetentionPolicy.class.getName() + ">"
+                        + "<diskBudgetMB>-3</diskBudgetMB><minBuildsToKeep>0</minBuildsToKeep>"
+                        + "</" + BuildRetentionPolicy.class.getName() + ">");
+        assertThat(read.getDiskBudgetMB(), is(1L));
+        assertThat(read.getMinBuildsToKeep(), is(1));
+
+        BuildRetentionPolicy.DescriptorImpl descriptor = new BuildRetentionPolicy.DescriptorImpl();
+        assertThat(descriptor.doCheckDiskBudgetMB("512").kind, is(FormValidation.Kind.OK));
+        assertThat(descriptor.doCheckDiskBudgetMB("0").kind, is(FormValidation.Kind.ERROR));
+        assertThat(descriptor.doCheckDiskBudgetMB("-1").kind, is(FormValidation.Kind.ERROR));
+        assertThat(descriptor.doCheckDiskBudgetMB("lots").kind, is(FormValidation.Kind.ERROR));
+        assertThat(descriptor.doCheckDiskBudgetMB(null).kind, is(FormValidation.Kind.ERROR));
+    }
+
+    @Test
+    public void oldestBuildsOverBudgetExpire() throws Exception {
+        File dir = buildDir(5, 1000);
+        // 5 and 4 fit, 3 is the first over budget so it and everything older goes
+        assertThat(BuildRetentionWorker.expired(dir, 2500, 1, true), contains(3, 2, 1));
+        assertThat(BuildRetentionWorker.expired(dir, 2000, 1, true), contains(3, 2, 1));
+        assertThat(BuildRetentionWorker.expired(dir, 1999, 1, true), contains(4, 3, 2, 1));
+        assertThat(BuildRetentionWorker.expired(dir, 5000, 1, true), is(Collections.<Integer>emptyList()));
+    }
+
+    @Test
+    public void minimumBuildsAreKeptOverBudget() throws Exception {
+        File dir = buildDir(5, 1000);
+        assertThat(BuildRetentionWorker.expired(dir, 0, 1, true), contains(4, 3, 2, 1));
+        assertThat(BuildRetentionWorker.expired(dir, 0, 4, true), contains(1));
+        assertThat(BuildRetentionWorker.expired(dir, 0, 5, true), is(Collections.<Integer>emptyList()));
+    }
+
+    @Test
+    public void recordedSizesAreTrusted() throws Exception {
+        File dir = buildDir(3, 1000);
+        assertThat(BuildRetentionWorker.expired(dir, 1500, 1, false), contains(2, 1));
+        assertThat(new File(new File(dir, "3"), BuildRetentionWorker.SIZE_FILE).exists(), is(false));
+        assertThat(BuildRetentionWorker.expired(dir, 1500, 1, true), contains(2, 1));
+        assertThat(FileUtils.readFileToString(new File(new File(dir, "3"), BuildRetentionWorker.SIZE_FILE)),
+                is("1000"));
+        // once recorded, the build is not measured again
+        FileUtils.writeByteArrayToFile(new File(new File(dir, "3"), "log"), new byte[5000]);
+        assertThat(BuildRetentionWorker.expired(dir, 3000, 1, true), is(Collections.<Integer>emptyList()));
+        BuildRetentionWorker.refreshSize(new File(dir, "3"));
+        assertThat(BuildRetentionWorker.expired(dir, 3000, 1, true), contains(2, 1));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import com.codahale.metrics.MetricRegistry;
+import hudson.model.TopLevelItem;
+import hudson.tasks.Builder;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import jenkins.branch.BranchProperty;
+import jenkins.branch.BranchSource;
+import jenkins.branch.DefaultBranchPropertyStrategy;
+import jenkins.metrics.api.Metrics;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMSource;
+import net.sf.json.JSONObject;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class FreeStyleMultiBranchMetricsTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+    }
+
+    @Test
+    public void timerQuantilesComeFromTheHistogram() {
+        FreeStyleMultiBranchMetrics.Timer timer = new FreeStyleMultiBranchMetrics.Timer();
+        assertThat(timer.getQuantileMillis(0.5), is(0.0));
+        for (int i = 0; i < 99; i++) {
+            timer.update(TimeUnit.MICROSECONDS.toNanos(500));
+        }
+        timer.update(TimeUnit.MILLISECONDS.toNanos(10));
+        timer.update(-1);
+        assertThat(timer.getCount(), is(100L));
+        assertThat(timer.getMaxNanos(), is(TimeUnit.MILLISECONDS.toNanos(10)));
+        // 500us falls in the [256us, 512us) bucket
+        assertThat(timer.getQuantileMillis(0.5), is(0.512));
+        assertThat(timer.getQuantileMillis(0.99), is(0.512));
+        // the open bucket is capped by the maximum
+        assertThat(timer.getQuantileMillis(1.0), is(10.0));
+        assertThat(timer.toJSON().getLong("count"), is(100L));
+    }
+
+    @Test
+    public void endpointReportsTimersAndBranchJobs() throws Exception {
+        long before = FreeStyleMultiBranchMetrics.NEW_INSTANCE.getCount();
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("measured");
+            c.createBranch("measured", "feature");
+            FreeStyleMultiBranchProject instance =
+                    r.jenkins.createProject(FreeStyleMultiBranchProject.class, "measured");
+            BranchSource source = new BranchSource(new MockSCMSource(null, c, "measured", true, false, false));
+            source.setStrategy(new DefaultBranchPropertyStrategy(new BranchProperty[0]));
+            instance.getSourcesList().add(source);
+            instance.setProjectFactory(new FreeStyleProjectFactory(Collections.<Builder>emptyList(), null, null));
+            instance.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            assertThat(instance.getItems().size(), is(2));
+
+            assertThat(FreeStyleMultiBranchMetrics.getBranchJobCount("measured"), is(2));
+            assertThat(FreeStyleMultiBranchMetrics.getBranchJobCount("missing"), is(0));
+            JSONObject json = JSONObject.fromObject(r.createWebClient().goTo("freestyle-multibranch/metrics",
+                    "application/json").getWebResponse().getContentAsString());
+            assertThat(json.getJSONObject("branchJobs").getInt("measured"), is(2));
+            assertThat(json.getJSONObject("timers").getJSONObject("factory.newInstance").getLong("count"),
+                    greaterThanOrEqualTo(before + 2));
+            assertThat(json.getJSONObject("hibernation").has("count"), is(true));
+        }
+    }
+
+    @Test
+    public void metricsPluginGetsTimersAndOneGaugePerProject() throws Exception {
+        MetricRegistry registry = Metrics.metricRegistry();
+        com.codahale.metrics.Timer timer =
+                registry.getTimers().get(FreeStyleMultiBranchMetrics.PREFIX + "factory.newInstance");
+        assertThat(timer != null, is(true));
+        long before = timer.getCount();
+        FreeStyleMultiBranchMetrics.NEW_INSTANCE.update(TimeUnit.MILLISECONDS.toNanos(3));
+        assertThat(timer.getCount(), is(before + 1));
+
+        FreeStyleMultiBranchProject instance = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "gauged");
+        String gauge = MetricsPluginGauges.projectGaugeName("gauged");
+        assertThat(registry.getGauges().get(gauge).getValue(), is((Object) 0));
+        instance.delete();
+        assertThat(registry.getGauges().containsKey(gauge), is(false));
+    }
+}
@@ -25,7 +25,19 @@
 
 package org.cloudbees.jenkins.multibranch.freestyle;
 
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Failure;
+import hudson.model.Items;
+import hudson.model.TaskListener;
 import hudson.model.TopLevelItem;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import jenkins.branch.BranchProperty;
 import jenkins.branch.BranchSource;
 import jenkins.branch.DefaultBranchPropertyStrategy;
@@ -41,9 +53,13 @@ import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 
 import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 public class FreeStyleMultiBranchProjectTest {
     @ClassRule
@@ -80,5 +96,129 @@ public class FreeStyleMultiBranchProjectTest {
         }
     }
 
+    @Test
+    public void branchJobConfigRoundTrips() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("roundtrip");
+            FreeStyleMultiBranchProject instance =
+                    r.jenkins.createProject(FreeStyleMultiBranchProject.class, "instance");
+            BranchSource source = new BranchSource(new MockSCMSource(null, c, "roundtrip", true, false, false));
+            source.setStrategy(new DefaultBranchPropertyStrategy(new BranchProperty[0]));
+            instance.getSourcesList().add(source);
+            instance.setProjectFactory(new FreeStyleProjectFactory());
+            instance.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            FreeStyleMultiBranchProject.ProjectImpl master = instance.getItem("master");
+            assertThat(master, notNullValue());
+            String xml = Items.XSTREAM2.toXML(master);
+            assertThat(xml, containsString("sourceId="));
+            assertThat(xml, not(containsString("<disabled>")));
+            FreeStyleMultiBranchProject.ProjectImpl copy =
+                    (FreeStyleMultiBranchProject.ProjectImpl) Items.XSTREAM2.fromXML(xml);
+            assertThat(copy.getBranch().getSourceId(), is(master.getBranch().getSourceId()));
+            assertThat(copy.getBranch().getHead(), is(master.getBranch().getHead()));
+            assertThat(copy.getBranch().getScm().getClass(), is((Object) master.getBranch().getScm().getClass()));
+        }
+    }
 
+    @Test
+    public void bulkCreation() throws Exception {
+        GatedCriteria.reset();
+        try (MockSCMController c = MockSCMController.create()) {
+            List<BulkProjectCreator.Spec> specs = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                c.createRepository("bulk" + i);
+                BranchSource source = new BranchSource(new MockSCMSource(null, c, "bulk" + i, true, false, false));
+                source.setStrategy(new DefaultBranchPropertyStrategy(new BranchProperty[0]));
+                specs.add(new BulkProjectCreator.Spec("bulk" + i, Collections.singletonList(source))
+                        .withScmSourceCriteria(new GatedCriteria()));
+            }
+            List<FreeStyleMultiBranchProject> created = BulkProjectCreator.create(r.jenkins, specs, 2);
+            assertThat(created.size(), is(5));
+            try {
+                // each repository has a single head, so the probes in flight are the indexings in flight
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+                while (GatedCriteria.inFlight.get() < 2 && System.nanoTime() < deadline) {
+                    Thread.sleep(100);
+                }
+                assertThat(GatedCriteria.inFlight.get(), is(2));
+                // give the indexer a couple of polls to overstep the limit
+                Thread.sleep(TimeUnit.SECONDS.toMillis(12));
+                assertThat(GatedCriteria.maxInFlight.get(), is(2));
+            } finally {
+                GatedCriteria.open.countDown();
+            }
+            for (int i = 0; i < 5; i++) {
+                FreeStyleMultiBranchProject p = r.jenkins.getItemByFullName("bulk" + i, FreeStyleMultiBranchProject.class);
+                assertThat(p, notNullValue());
+                assertThat(p.getSources().size(), is(1));
+                assertThat(p.getScmSourceCriteria(), is((FreeStyleSCMSourceCriteria) new GatedCriteria()));
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+                while (p.getItem("master") == null && System.nanoTime() < deadline) {
+                    Thread.sleep(100);
+                }
+                assertThat(p.getItem("master"), notNullValue());
+            }
+            assertThat(GatedCriteria.maxInFlight.get(), is(2));
+            r.waitUntilNoActivity();
+        }
+    }
+
+    @Test
+    public void bulkCreationLeavesNothingBehindOnAnInvalidConfig() throws Exception {
+        String valid = Items.XSTREAM2.toXML(new FreeStyleMultiBranchProject(r.jenkins, "valid"));
+        for (String invalid : new String[]{"<freestyle-multibranch><broken", "<project/>"}) {
+            try {
+                BulkProjectCreator.createFromXml(r.jenkins, Arrays.asList("valid", "invalid"),
+                        Arrays.asList(valid, invalid), 0);
+                fail("Expected " + invalid + " to be rejected");
+            } catch (Failure e) {
+                assertThat(e.getMessage(), containsString("invalid"));
+            }
+            assertThat(r.jenkins.getItem("valid"), nullValue());
+            assertThat(r.jenkins.getItem("invalid"), nullValue());
+        }
+    }
+
+    /**
+     * Matches every head once the gate opens, tracking how many probes are waiting at it.
+     */
+    public static class GatedCriteria extends FreeStyleSCMSourceCriteria {
+        private static CountDownLatch open;
+        private static final AtomicInteger inFlight = new AtomicInteger();
+        private static final AtomicInteger maxInFlight = new AtomicInteger();
+
+        private static void reset() {
+            open = new CountDownLatch(1);
+            inFlight.set(0);
+            maxInFlight.set(0);
+        }
+
+        @Override
+        public boolean isHead(@NonNull Probe probe, @NonNull TaskListener listener) throws IOException {
+            int n = inFlight.incrementAndGet();
+            try {
+                int max;
+                while ((max = maxInFlight.get()) < n && !maxInFlight.compareAndSet(max, n)) {
+                    // retry
+                }
+                open.await();
+                return true;
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof GatedCriteria;
+        }
+
+        @Override
+        public int hashCode() {
+            return GatedCriteria.class.hashCode();
+        }
+    }
 }
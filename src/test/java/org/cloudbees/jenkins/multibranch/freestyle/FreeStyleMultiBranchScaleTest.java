@@ -0,0 +1,215 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import hudson.model.TopLevelItem;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.branch.OrganizationFolder;
+import jenkins.scm.api.SCMEvent;
+import jenkins.scm.api.SCMEvents;
+import jenkins.scm.api.SCMHeadEvent;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMHeadEvent;
+import jenkins.scm.impl.mock.MockSCMNavigator;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Indexes a configurable number of synthetic repositories and branches and checks the cost per branch job against
+ * the thresholds in {@code scale-thresholds.properties}. The default size keeps the regular build fast, run with
+ * e.g. {@code -Dscale.repos=100 -Dscale.branches=500} for a full scale run. Add {@code -Dscale.record=true} on the
+ * reference build machine to write the measured costs, with {@link #HEADROOM} on top, as the new thresholds.
+ */
+public class FreeStyleMultiBranchScaleTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    private static final Logger LOGGER = Logger.getLogger(FreeStyleMultiBranchScaleTest.class.getName());
+
+    /**
+     * How much recorded thresholds allow over the measured costs, for the noise between runs.
+     */
+    private static final double HEADROOM = 1.5;
+
+    private static final String THRESHOLDS_SOURCE =
+            "src/test/resources/org/cloudbees/jenkins/multibranch/freestyle/scale-thresholds.properties";
+
+    private static final int REPOS = Integer.getInteger("scale.repos", 2);
+
+    private static final int BRANCHES = Integer.getInteger("scale.branches", 5);
+
+    private static Properties thresholds;
+
+    @BeforeClass
+    public static void loadThresholds() throws Exception {
+        thresholds = new Properties();
+        InputStream in = FreeStyleMultiBranchScaleTest.class.getResourceAsStream("scale-thresholds.properties");
+        try {
+            thresholds.load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+    }
+
+    @Test
+    public void indexAtScale() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            for (int i = 0; i < REPOS; i++) {
+                String repo = "repo-" + i;
+                c.createRepository(repo);
+                c.addFile(repo, "master", "create marker", "marker.txt", new byte[0]);
+                for (int j = 1; j < BRANCHES; j++) {
+                    c.createBranch(repo, "branch-" + j);
+                    c.addFile(repo, "branch-" + j, "create marker", "marker.txt", new byte[0]);
+                }
+            }
+            int branchJobs = REPOS * BRANCHES;
+            long heapBefore = usedHeap();
+
+            OrganizationFolder instance = r.jenkins.createProject(OrganizationFolder.class, "instance");
+            instance.getSCMNavigators().add(new MockSCMNavigator(c, true, false, false));
+            FreeStyleMultiBranchProjectFactory factory =
+                    new FreeStyleMultiBranchProjectFactory(new FreeStyleProjectFactory());
+            factory.setScmSourceCriteria(new MarkerFreeStyleSCMSourceCriteria("marker.txt"));
+            instance.getProjectFactories().replaceBy(Collections.singletonList(factory));
+            long start = System.nanoTime();
+            instance.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            long indexMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            int found = 0;
+            long diskBytes = 0;
+            for (FreeStyleMultiBranchProject p : r.jenkins.getAllItems(FreeStyleMultiBranchProject.class)) {
+                found += p.getItems().size();
+                diskBytes += du(p.getRootDir());
+            }
+            assertThat(found, is(branchJobs));
+            long heapBytes = usedHeap() - heapBefore;
+
+            FreeStyleMultiBranchProject repo = (FreeStyleMultiBranchProject) instance.getItem("repo-0");
+            FreeStyleMultiBranchProject.ProjectImpl master = repo.getItem("master");
+            assertThat(master, notNullValue());
+            int lastBuild = master.getLastBuild().getNumber();
+            c.addFile("repo-0", "master", "touch", "README.md", new byte[0]);
+            long watermark = SCMEvents.getWatermark();
+            start = System.nanoTime();
+            SCMHeadEvent.fireNow(new MockSCMHeadEvent(SCMEvent.Type.UPDATED, c, "repo-0", "master",
+                    c.getRevision("repo-0", "master")));
+            SCMEvents.awaitAll(watermark);
+            r.waitUntilNoActivity();
+            long eventMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertThat(master.getLastBuild().getNumber(), is(lastBuild + 1));
+
+            long indexMillisPerBranch = indexMillis / branchJobs;
+            long heapBytesPerBranch = heapBytes / branchJobs;
+            long diskBytesPerBranch = diskBytes / branchJobs;
+            LOGGER.log(Level.INFO, String.format(Locale.ROOT, "Indexed %d repos x %d branches: %d ms (%d ms/branch), "
+                            + "%d heap bytes/branch, %d disk bytes/branch, %d ms event to build",
+                    REPOS, BRANCHES, indexMillis, indexMillisPerBranch, heapBytesPerBranch, diskBytesPerBranch,
+                    eventMillis));
+            if (Boolean.getBoolean("scale.record")) {
+                Properties measured = new Properties();
+                measured.setProperty("index.millisPerBranch", withHeadroom(indexMillisPerBranch));
+                measured.setProperty("heap.bytesPerBranch", withHeadroom(heapBytesPerBranch));
+                measured.setProperty("disk.bytesPerBranch", withHeadroom(diskBytesPerBranch));
+                measured.setProperty("event.millis", withHeadroom(eventMillis));
+                record(measured);
+                return;
+            }
+            assertThat("index time per branch (ms)", indexMillisPerBranch,
+                    lessThanOrEqualTo(threshold("index.millisPerBranch")));
+            assertThat("retained heap per branch (bytes)", heapBytesPerBranch,
+                    lessThanOrEqualTo(threshold("heap.bytesPerBranch")));
+            assertThat("disk per branch (bytes)", diskBytesPerBranch,
+                    lessThanOrEqualTo(threshold("disk.bytesPerBranch")));
+            assertThat("event to build latency (ms)", eventMillis,
+                    lessThanOrEqualTo(threshold("event.millis")));
+        }
+    }
+
+    private static String withHeadroom(long measured) {
+        return Long.toString((long) Math.ceil(Math.max(measured, 1) * HEADROOM));
+    }
+
+    private static void record(Properties measured) throws Exception {
+        File file = new File(System.getProperty("basedir", "."), THRESHOLDS_SOURCE);
+        try (OutputStream out = new FileOutputStream(file)) {
+            measured.store(out, String.format(Locale.ROOT, "Upper bounds checked by FreeStyleMultiBranchScaleTest, "
+                    + "all normalised per branch job except for event.millis.%nRecorded with -Dscale.repos=%d "
+                    + "-Dscale.branches=%d -Dscale.record=true on the reference build machine, plus %.0f%%.",
+                    REPOS, BRANCHES, (HEADROOM - 1) * 100));
+        }
+        LOGGER.log(Level.INFO, "Recorded the scale thresholds to {0}", file);
+    }
+
+    private static long threshold(String key) {
+        return Long.parseLong(thresholds.getProperty(key));
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long du(File dir) {
+        long total = 0;
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                total += child.isDirectory() ? du(child) : child.length();
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import jenkins.scm.api.SCMFile;
+import jenkins.scm.api.SCMProbe;
+import jenkins.scm.api.SCMProbeStat;
+import jenkins.scm.api.SCMSourceCriteria;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class IndexingLogTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private int maxDetailChars;
+
+    @Before
+    public void rememberLimits() {
+        maxDetailChars = IndexingLog.MAX_DETAIL_CHARS;
+    }
+
+    @After
+    public void restoreLimits() {
+        IndexingLog.MAX_DETAIL_CHARS = maxDetailChars;
+    }
+
+    private static SCMProbe probe(final String name) {
+        return new SCMProbe() {
+            @NonNull
+            @Override
+            public String name() {
+                return name;
+            }
+
+            @Override
+            public long lastModified() {
+                return 0L;
+            }
+
+            @NonNull
+            @Override
+            public SCMProbeStat stat(@NonNull String path) {
+                return SCMProbeStat.fromType(SCMFile.Type.NONEXISTENT);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static SCMSourceCriteria criteria(final boolean result) {
+        return new SCMSourceCriteria() {
+            @Override
+            public boolean isHead(@NonNull Probe probe, @NonNull TaskListener listener) {
+                listener.getLogger().println("Checking " + probe.name());
+                return result;
+            }
+        };
+    }
+
+    private static SCMSourceCriteria failing() {
+        return new SCMSourceCriteria() {
+            @Override
+            public boolean isHead(@NonNull Probe probe, @NonNull TaskListener listener) throws IOException {
+                throw new IOException("Could not reach " + probe.name());
+            }
+        };
+    }
+
+    private String details(File rootDir) throws IOException {
+        try (InputStream in = new GZIPInputStream(new FileInputStream(new File(rootDir, IndexingLog.FILE_NAME)))) {
+            return IOUtils.toString(in, "UTF-8");
+        }
+    }
+
+    @Test
+    public void summaryCountsEachCriteria() throws Exception {
+        File rootDir = tmp.newFolder();
+        Map<String, Boolean> previous = new HashMap<>();
+        previous.put("source:master", true);
+        previous.put("source:feature", false);
+        IndexingLog log = new IndexingLog(previous);
+        log.evaluate(criteria(true), "Marker", "source", probe("master"));
+        log.evaluate(criteria(false), "Marker", "source", probe("feature"));
+        try {
+            log.evaluate(failing(), "Remote", "source", probe("master"));
+            fail("the failure is passed on");
+        } catch (IOException e) {
+            // expected
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        log.finish(rootDir, new StreamTaskListener(out));
+        String summary = out.toString();
+        assertThat(summary, containsString("Marker: 2 heads probed, 1 matched, 0 failed"));
+        assertThat(summary, containsString("Remote: 1 heads probed, 0 matched, 1 failed"));
+        // only the failed probe is kept, the others are neither new outcomes nor slow
+        String details = details(rootDir);
+        assertThat(details, containsString("master (source) failed"));
+        assertThat(details, containsString("Could not reach master"));
+        assertThat(details, not(containsString("Checking")));
+    }
+
+    @Test
+    public void changedOutcomesAreKeptAcrossInstances() throws Exception {
+        File rootDir = tmp.newFolder();
+        IndexingLog first = new IndexingLog(IndexingLog.loadOutcomes(rootDir));
+        first.evaluate(criteria(true), "Marker", "source", probe("master"));
+        first.finish(rootDir, TaskListener.NULL);
+        assertThat(details(rootDir), containsString("master (source) is new and matches"));
+        // as after a restart, the outcomes are read back from disk
+        IndexingLog second = new IndexingLog(IndexingLog.loadOutcomes(rootDir));
+        second.evaluate(criteria(false), "Marker", "source", probe("master"));
+        second.finish(rootDir, TaskListener.NULL);
+        assertThat(details(rootDir), containsString("master (source) no longer matches"));
+        // an unchanged outcome is not worth keeping
+        IndexingLog third = new IndexingLog(IndexingLog.loadOutcomes(rootDir));
+        third.evaluate(criteria(false), "Marker", "source", probe("master"));
+        third.finish(rootDir, TaskListener.NULL);
+        assertThat(new File(rootDir, IndexingLog.FILE_NAME).exists(), is(false));
+        IndexingLog.discardOutcomes(rootDir);
+        assertThat(IndexingLog.loadOutcomes(rootDir).isEmpty(), is(true));
+    }
+
+    @Test
+    public void detailsAreCapped() throws Exception {
+        IndexingLog.MAX_DETAIL_CHARS = 1024;
+        File rootDir = tmp.newFolder();
+        Map<String, Boolean> previous = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            previous.put("source:branch-" + i, true);
+        }
+        IndexingLog log = new IndexingLog(previous);
+        for (int i = 0; i < 100; i++) {
+            log.evaluate(criteria(false), "Marker", "source", probe("branch-" + i));
+        }
+        log.finish(rootDir, TaskListener.NULL);
+        String details = details(rootDir);
+        assertThat(details.length(), lessThan(1024 + 200));
+        assertThat(details, containsString("branch-0 (source) no longer matches"));
+        assertThat(details, not(containsString("branch-99 (source)")));
+        assertThat(details, containsString("further heads omitted as the details reached 1024 characters"));
+    }
+
+    @Test
+    public void onlyTheIndexingThreadIsLogged() throws Exception {
+        final IndexingLog log = new IndexingLog(Collections.<String, Boolean>emptyMap());
+        assertThat(log.isIndexingThread(), is(true));
+        final boolean[] other = new boolean[]{true};
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                other[0] = log.isIndexingThread();
+            }
+        };
+        t.start();
+        t.join();
+        assertThat(other[0], is(false));
+    }
+}
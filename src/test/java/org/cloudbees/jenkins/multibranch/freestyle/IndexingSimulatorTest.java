@@ -0,0 +1,146 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import com.cloudbees.hudson.plugins.folder.computed.DefaultOrphanedItemStrategy;
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.Page;
+import com.gargoylesoftware.htmlunit.WebRequestSettings;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import hudson.tasks.Builder;
+import java.net.URL;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import jenkins.branch.BranchProperty;
+import jenkins.branch.BranchSource;
+import jenkins.branch.DefaultBranchPropertyStrategy;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMSource;
+import net.sf.json.JSONObject;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class IndexingSimulatorTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+    }
+
+    /**
+     * Creates a project with branch jobs for master and feature that have each been built once, as the simulation
+     * tells unchanged heads by the revision they were last built at.
+     */
+    private static FreeStyleMultiBranchProject createBuiltProject(MockSCMController c, String repo)
+            throws Exception {
+        c.createRepository(repo);
+        c.createBranch(repo, "feature");
+        FreeStyleMultiBranchProject instance = r.jenkins.createProject(FreeStyleMultiBranchProject.class, repo);
+        BranchSource source = new BranchSource(new MockSCMSource(null, c, repo, true, false, false));
+        source.setStrategy(new DefaultBranchPropertyStrategy(new BranchProperty[0]));
+        instance.getSourcesList().add(source);
+        instance.setProjectFactory(new FreeStyleProjectFactory(Collections.<Builder>emptyList(), null, null));
+        instance.scheduleBuild2(0).getFuture().get();
+        r.waitUntilNoActivity();
+        assertThat(instance.getItem("master").getLastBuild() != null, is(true));
+        assertThat(instance.getItem("feature").getLastBuild() != null, is(true));
+        return instance;
+    }
+
+    @Test
+    public void orphanedItemStrategyDecidesWhatIsRemoved() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            FreeStyleMultiBranchProject instance = createBuiltProject(c, "orphans");
+            c.deleteBranch("orphans", "feature");
+
+            instance.setOrphanedItemStrategy(new DefaultOrphanedItemStrategy(false, "", ""));
+            IndexingSimulator.Prediction kept = IndexingSimulator.simulate(instance, null, null, TaskListener.NULL);
+            assertThat(kept.getRemoved(), empty());
+            assertThat(kept.getRetained(), contains("feature"));
+            assertThat(kept.getUnchanged(), contains("master"));
+
+            instance.setOrphanedItemStrategy(new DefaultOrphanedItemStrategy(true, "", ""));
+            IndexingSimulator.Prediction pruned = IndexingSimulator.simulate(instance, null, null, TaskListener.NULL);
+            assertThat(pruned.getRemoved(), contains("feature"));
+            assertThat(pruned.getRetained(), empty());
+            // nothing was actually removed
+            assertThat(instance.getItem("feature") != null, is(true));
+        }
+    }
+
+    @Test
+    public void simulationRunsInTheBackground() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            FreeStyleMultiBranchProject instance = createBuiltProject(c, "background");
+            c.createBranch("background", "marked");
+            c.addFile("background", "marked", "create marker", "marker.txt", new byte[0]);
+            JenkinsRule.WebClient wc = r.createWebClient();
+            wc.assertFails(instance.getUrl() + "simulateIndexingResult", 404);
+
+            WebRequestSettings start = new WebRequestSettings(
+                    new URL(r.getURL(), instance.getUrl() + "simulateIndexing"), HttpMethod.POST);
+            start.setAdditionalHeader("Content-Type", "application/json");
+            start.setRequestBody("{\"scmSourceCriteria\": {"
+                    + "\"$class\": \"" + MarkerFreeStyleSCMSourceCriteria.class.getName() + "\", "
+                    + "\"fileName\": \"marker.txt\"}}");
+            Page accepted = wc.getPage(start);
+            assertThat(accepted.getWebResponse().getStatusCode(), is(202));
+
+            JSONObject result;
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            do {
+                Thread.sleep(100);
+                result = JSONObject.fromObject(wc.goTo(instance.getUrl() + "simulateIndexingResult",
+                        "application/json").getWebResponse().getContentAsString());
+            } while ("running".equals(result.getString("status")) && System.nanoTime() < deadline);
+            assertThat(result.getString("status"), is("done"));
+            JSONObject prediction = result.getJSONObject("prediction");
+            assertThat(prediction.getJSONArray("created").toString(), is("[\"marked\"]"));
+            // neither master nor feature has the marker, and the default strategy deletes dead branch jobs
+            assertThat(prediction.getJSONArray("removed").toString(), is("[\"feature\",\"master\"]"));
+            assertThat(prediction.getInt("probed"), is(3));
+            assertThat(wc.goTo(instance.getUrl() + "simulateIndexingLog", "text/plain").getWebResponse()
+                    .getContentAsString(), containsString("Checking for marker.txt"));
+            // the simulation changed nothing
+            assertThat(instance.getItems().size(), is(2));
+            assertThat(instance.getScmSourceCriteria(), is((FreeStyleSCMSourceCriteria)
+                    new AllFreeStyleSCMSourceCriteria()));
+        }
+    }
+}
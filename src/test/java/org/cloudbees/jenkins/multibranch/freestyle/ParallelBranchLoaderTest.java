@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import hudson.model.TopLevelItem;
+import hudson.tasks.Builder;
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import jenkins.branch.BranchProperty;
+import jenkins.branch.BranchSource;
+import jenkins.branch.DefaultBranchPropertyStrategy;
+import jenkins.branch.NoTriggerBranchProperty;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMSource;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class ParallelBranchLoaderTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    private int threads;
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+        threads = ParallelBranchLoader.THREADS;
+        // make sure the pool is used even on single core machines
+        ParallelBranchLoader.THREADS = 4;
+    }
+
+    @After
+    public void restoreThreads() {
+        ParallelBranchLoader.THREADS = threads;
+    }
+
+    /**
+     * Creates a project with branch jobs for master, alpha and beta on disk. The loader only reads the job configs,
+     * so the branch jobs are not built.
+     */
+    private static FreeStyleMultiBranchProject createProjectWithJobs(MockSCMController c, String repo)
+            throws Exception {
+        c.createRepository(repo);
+        c.createBranch(repo, "alpha");
+        c.createBranch(repo, "beta");
+        FreeStyleMultiBranchProject instance = r.jenkins.createProject(FreeStyleMultiBranchProject.class, repo);
+        BranchSource source = new BranchSource(new MockSCMSource(null, c, repo, true, false, false));
+        source.setStrategy(new DefaultBranchPropertyStrategy(new BranchProperty[]{new NoTriggerBranchProperty()}));
+        instance.getSourcesList().add(source);
+        instance.setProjectFactory(new FreeStyleProjectFactory(Collections.<Builder>emptyList(), null, null));
+        instance.scheduleBuild2(0).getFuture().get();
+        r.waitUntilNoActivity();
+        return instance;
+    }
+
+    @Test
+    public void parsesEveryBranchJob() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            FreeStyleMultiBranchProject instance = createProjectWithJobs(c, "parsed");
+            Map<String, FreeStyleMultiBranchProject.ProjectImpl> parsed =
+                    ParallelBranchLoader.load(instance.getFullName(), new File(instance.getRootDir(), "jobs"));
+            assertThat(parsed.keySet(), contains("alpha", "beta", "master"));
+            for (Map.Entry<String, FreeStyleMultiBranchProject.ProjectImpl> entry : parsed.entrySet()) {
+                assertThat(entry.getValue().getBranch().getName(), is(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void unparseableBranchJobIsLeftOut() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            FreeStyleMultiBranchProject instance = createProjectWithJobs(c, "broken");
+            File jobsDir = new File(instance.getRootDir(), "jobs");
+            FileUtils.writeStringToFile(new File(new File(jobsDir, "beta"), "config.xml"), "<not-a-job/>");
+            Map<String, FreeStyleMultiBranchProject.ProjectImpl> parsed =
+                    ParallelBranchLoader.load(instance.getFullName(), jobsDir);
+            assertThat(parsed.keySet(), contains("alpha", "master"));
+        }
+    }
+
+    @Test
+    public void reloadKeepsBranchJobs() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            createProjectWithJobs(c, "reloaded");
+            r.jenkins.reload();
+            FreeStyleMultiBranchProject instance =
+                    r.jenkins.getItemByFullName("reloaded", FreeStyleMultiBranchProject.class);
+            assertThat(instance.getItems().size(), is(3));
+            for (FreeStyleMultiBranchProject.ProjectImpl item : instance.getItems()) {
+                assertThat(item.getParent(), sameInstance(instance));
+            }
+            assertThat(instance.getItem("master").getBranch().getName(), is("master"));
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jenkins.branch.OrganizationFolder;
+import jenkins.scm.api.SCMHead;
+import jenkins.scm.api.SCMHeadObserver;
+import jenkins.scm.api.SCMRevision;
+import jenkins.scm.api.SCMSourceCriteria;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMNavigator;
+import jenkins.scm.impl.mock.MockSCMSource;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ThrottledSCMSourceCriteriaTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+        SlowCriteria.reset();
+    }
+
+    private static Set<String> probe(MockSCMController c, String repo, int maxConcurrentProbes, final boolean first)
+            throws Exception {
+        FreeStyleMultiBranchProjectFactory factory =
+                new FreeStyleMultiBranchProjectFactory(new FreeStyleProjectFactory());
+        factory.setScmSourceCriteria(new SlowCriteria());
+        factory.setMaxConcurrentProbes(maxConcurrentProbes);
+        MockSCMSource source = new MockSCMSource(null, c, repo, true, false, false);
+        SCMSourceCriteria criteria = factory.getSCMSourceCriteria(source);
+        final Set<String> heads = new TreeSet<>();
+        source.fetch(criteria, new SCMHeadObserver() {
+            @Override
+            public void observe(@NonNull SCMHead head, @NonNull SCMRevision revision) {
+                heads.add(head.getName());
+            }
+
+            @Override
+            public boolean isObserving() {
+                // recognition stops at the first match
+                return !first || heads.isEmpty();
+            }
+        }, TaskListener.NULL);
+        return heads;
+    }
+
+    private static void createBranches(MockSCMController c, String repo, boolean marked) throws Exception {
+        c.createRepository(repo);
+        if (marked) {
+            c.addFile(repo, "master", "create marker", "marker.txt", new byte[0]);
+        }
+        for (String branch : new String[]{"alpha", "beta", "gamma", "delta", "epsilon"}) {
+            c.createBranch(repo, branch);
+        }
+    }
+
+    @Test
+    public void everyHeadIsProbedOnceWhenNoneMatches() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            createBranches(c, "unmarked", false);
+            assertThat(probe(c, "unmarked", 0, false), empty());
+            assertThat(SlowCriteria.maxInFlight.get(), is(1));
+            assertThat(SlowCriteria.probes.get(), is(6));
+        }
+    }
+
+    @Test
+    public void nothingIsProbedBeyondTheFirstMatch() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            // every branch is created from master, so every head has the marker
+            createBranches(c, "marked", true);
+            assertThat(probe(c, "marked", 4, true).size(), is(1));
+            assertThat(SlowCriteria.probes.get(), is(1));
+        }
+    }
+
+    @Test
+    public void concurrentProbesAreLimited() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            createBranches(c, "first", false);
+            createBranches(c, "second", false);
+            final FreeStyleMultiBranchProjectFactory factory =
+                    new FreeStyleMultiBranchProjectFactory(new FreeStyleProjectFactory());
+            factory.setScmSourceCriteria(new SlowCriteria());
+            factory.setMaxConcurrentProbes(1);
+            List<Thread> scans = new ArrayList<>();
+            for (final String repo : new String[]{"first", "second", "first", "second"}) {
+                scans.add(new Thread() {
+                    @Override
+                    public void run() {
+                        MockSCMSource source = new MockSCMSource(null, c, repo, true, false, false);
+                        try {
+                            source.fetch(factory.getSCMSourceCriteria(source), new SCMHeadObserver() {
+                                @Override
+                                public void observe(@NonNull SCMHead head, @NonNull SCMRevision revision) {
+                                }
+                            }, TaskListener.NULL);
+                        } catch (Exception e) {
+                            throw new AssertionError(e);
+                        }
+                    }
+                });
+            }
+            for (Thread t : scans) {
+                t.start();
+            }
+            for (Thread t : scans) {
+                t.join();
+            }
+            // the throttle is shared by the repositories of the factory
+            assertThat(SlowCriteria.maxInFlight.get(), is(1));
+            assertThat(SlowCriteria.probes.get(), is(24));
+        }
+    }
+
+    @Test
+    public void progressIsKeptPerOrganizationAndPruned() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("kept");
+            c.addFile("kept", "master", "create marker", "marker.txt", new byte[0]);
+            c.createRepository("removed");
+            c.addFile("removed", "master", "create marker", "marker.txt", new byte[0]);
+            OrganizationFolder instance = r.jenkins.createProject(OrganizationFolder.class, "instance");
+            instance.getSCMNavigators().add(new MockSCMNavigator(c, true, false, false));
+            FreeStyleMultiBranchProjectFactory factory =
+                    new FreeStyleMultiBranchProjectFactory(new FreeStyleProjectFactory());
+            factory.setScmSourceCriteria(new MarkerFreeStyleSCMSourceCriteria("marker.txt"));
+            instance.getProjectFactories().replaceBy(Collections.singletonList(factory));
+            scan(instance);
+            ProbeProgress progress = ProbeProgress.of(instance);
+            assertThat(progress.size(), is(2));
+            c.deleteRepository("removed");
+            // the first scan without the repository has to complete before its outcomes can be dropped
+            scan(instance);
+            scan(instance);
+            assertThat(progress.size(), is(1));
+            progress.save();
+            assertThat(new File(instance.getRootDir(), ProbeProgress.FILE_NAME).isFile(), is(true));
+        }
+    }
+
+    private static void scan(OrganizationFolder instance) throws Exception {
+        instance.scheduleBuild2(0).getFuture().get(60, TimeUnit.SECONDS);
+        r.waitUntilNoActivity();
+    }
+
+    /**
+     * Matches heads with a marker file, taking its time about it and tracking how many probes are in flight.
+     */
+    public static class SlowCriteria extends FreeStyleSCMSourceCriteria {
+        private static final AtomicInteger inFlight = new AtomicInteger();
+        private static final AtomicInteger maxInFlight = new AtomicInteger();
+        private static final AtomicInteger probes = new AtomicInteger();
+
+        private static void reset() {
+            inFlight.set(0);
+            maxInFlight.set(0);
+            probes.set(0);
+        }
+
+        @Override
+        public boolean isHead(@NonNull Probe probe, @NonNull TaskListener listener) throws IOException {
+            probes.incrementAndGet();
+            int n = inFlight.incrementAndGet();
+            try {
+                int max;
+                while ((max = maxInFlight.get()) < n && !maxInFlight.compareAndSet(max, n)) {
+                    // retry
+                }
+                Thread.sleep(250);
+                return probe.stat("marker.txt").exists();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof SlowCriteria;
+        }
+
+        @Override
+        public int hashCode() {
+            return SlowCriteria.class.hashCode();
+        }
+    }
+}
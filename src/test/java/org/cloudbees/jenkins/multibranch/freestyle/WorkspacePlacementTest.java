@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import hudson.FilePath;
+import hudson.model.TopLevelItem;
+import hudson.tasks.Builder;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jenkins.branch.BranchProperty;
+import jenkins.branch.BranchSource;
+import jenkins.branch.DefaultBranchPropertyStrategy;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class WorkspacePlacementTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+    }
+
+    @After
+    public void removeRoots() throws Exception {
+        r.jenkins.getNodeProperties().removeAll(WorkspaceRootsProperty.class);
+    }
+
+    @Test
+    public void fewestBusyRootWins() {
+        List<String> candidates = Arrays.asList("/a", "/b", "/c");
+        Map<String, Integer> busy = new HashMap<>();
+        busy.put("/a", 2);
+        busy.put("/b", 1);
+        busy.put("/c", 1);
+        Map<String, Long> space = new HashMap<>();
+        space.put("/a", 1000L);
+        space.put("/b", 10L);
+        space.put("/c", 20L);
+        assertThat(WorkspacePlacement.pick(candidates, busy, space), is("/c"));
+        busy.remove("/a");
+        assertThat(WorkspacePlacement.pick(candidates, busy, space), is("/a"));
+    }
+
+    @Test
+    public void tieIsBrokenByUsableSpace() {
+        List<String> candidates = Arrays.asList("/a", "/b", "/c");
+        Map<String, Long> space = new HashMap<>();
+        space.put("/a", 10L);
+        space.put("/b", 30L);
+        space.put("/c", 20L);
+        assertThat(WorkspacePlacement.pick(candidates, Collections.<String, Integer>emptyMap(), space), is("/b"));
+        // equal space keeps the configured order
+        space.put("/a", 30L);
+        assertThat(WorkspacePlacement.pick(candidates, Collections.<String, Integer>emptyMap(), space), is("/a"));
+    }
+
+    @Test
+    public void uninspectableRootsAreSkipped() {
+        List<String> candidates = Arrays.asList("/a", "/b");
+        Map<String, Long> space = Collections.singletonMap("/b", 10L);
+        assertThat(WorkspacePlacement.pick(candidates, Collections.<String, Integer>emptyMap(), space), is("/b"));
+        assertThat(WorkspacePlacement.pick(candidates, Collections.<String, Integer>emptyMap(),
+                Collections.<String, Long>emptyMap()), nullValue());
+    }
+
+    @Test
+    public void removedRootIsNotReused() throws Exception {
+        String first = tmp.newFolder("first").getAbsolutePath();
+        String second = tmp.newFolder("second").getAbsolutePath();
+        r.jenkins.getNodeProperties().add(new WorkspaceRootsProperty(first + "\n" + second));
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("placed");
+            FreeStyleMultiBranchProject instance = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "placed");
+            BranchSource source = new BranchSource(new MockSCMSource(null, c, "placed", true, false, false));
+            source.setStrategy(new DefaultBranchPropertyStrategy(new BranchProperty[0]));
+            instance.getSourcesList().add(source);
+            instance.setProjectFactory(new FreeStyleProjectFactory(Collections.<Builder>emptyList(), null, null));
+            instance.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            FreeStyleMultiBranchProject.ProjectImpl master = instance.getItem("master");
+            assertThat(master.getLastBuild(), notNullValue());
+            FilePath workspace = master.getLastBuild().getWorkspace();
+            // the placement is remembered, whichever root was chosen
+            assertThat(instance.getWorkspacePlacement().get(r.jenkins, master), is(workspace));
+            String chosen = workspace.getRemote().startsWith(first + File.separator) ? first : second;
+            String other = chosen.equals(first) ? second : first;
+
+            r.jenkins.getNodeProperties().replace(new WorkspaceRootsProperty(other));
+            assertThat(instance.getWorkspacePlacement().get(r.jenkins, master), nullValue());
+            FreeStyleMultiBranchProject.BuildImpl build = r.assertBuildStatusSuccess(master.scheduleBuild2(0));
+            assertThat(build.getWorkspace().getRemote().startsWith(other + File.separator), is(true));
+            // and the new choice survives a reload of the placement, once the coalesced save has been written
+            instance.getWorkspacePlacement().save();
+            assertThat(WorkspacePlacement.load(instance).get(r.jenkins, master), is(build.getWorkspace()));
+        }
+    }
+}
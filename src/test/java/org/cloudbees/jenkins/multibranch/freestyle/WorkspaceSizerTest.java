@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectOutputStream;
+import java.util.Collections;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class WorkspaceSizerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void unchangedDirectoriesAreReadFromTheCache() throws Exception {
+        File workspace = tmp.newFolder("ws");
+        File file = new File(workspace, "a");
+        FileUtils.writeByteArrayToFile(file, new byte[100]);
+        FileUtils.writeByteArrayToFile(new File(new File(workspace, "sub"), "b"), new byte[50]);
+        assertThat(new WorkspaceSizer().invoke(workspace, null), is(150L));
+        assertThat(new File(tmp.getRoot(), "ws@tmp/" + WorkspaceSizer.CACHE_NAME).isFile(), is(true));
+        // rewriting a file in place does not touch its directory, so the cached size is used
+        FileUtils.writeByteArrayToFile(file, new byte[400]);
+        assertThat(new WorkspaceSizer().invoke(workspace, null), is(150L));
+    }
+
+    @Test
+    public void foreignCacheIsIgnored() throws Exception {
+        File workspace = tmp.newFolder("ws");
+        FileUtils.writeByteArrayToFile(new File(workspace, "a"), new byte[100]);
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+            out.writeObject(Collections.singletonMap("", 1L));
+        }
+        File cache = new File(tmp.getRoot(), "ws@tmp/" + WorkspaceSizer.CACHE_NAME);
+        FileUtils.writeByteArrayToFile(cache, serialized.toByteArray());
+        assertThat(new WorkspaceSizer().invoke(workspace, null), is(100L));
+        // as is a truncated one
+        FileUtils.writeByteArrayToFile(cache, new byte[]{0x46, 0x4d, 0x42, 0x55, 0, 0, 0, 1, 0}, false);
+        assertThat(new WorkspaceSizer().invoke(workspace, null), is(100L));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.cloudbees.jenkins.multibranch.freestyle;
+
+import hudson.FilePath;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.TopLevelItem;
+import hudson.model.listeners.SaveableListener;
+import hudson.slaves.WorkspaceList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class WorkspaceUsageIndexTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    private static final AtomicInteger saves = new AtomicInteger();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+        saves.set(0);
+    }
+
+    @Test
+    public void burstIsSavedOnce() throws Exception {
+        FreeStyleMultiBranchProject instance = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "burst");
+        WorkspaceUsageIndex index = instance.getWorkspaceUsage();
+        for (int i = 1; i <= 100; i++) {
+            assertThat(index.record("branch-" + (i % 10), "master", 1000), is(i <= 10 ? 1000L : 0L));
+        }
+        assertThat(index.record("branch-1", "master", 1500), is(500L));
+        assertThat(index.getBranchTotal("branch-1"), is(1500L));
+        assertThat(index.getTotal(), is(10500L));
+        for (int i = 0; i < 50 && saves.get() == 0; i++) {
+            Thread.sleep(100);
+        }
+        Thread.sleep(1500);
+        assertThat(saves.get(), is(1));
+
+        WorkspaceUsageIndex loaded = WorkspaceUsageIndex.load(instance);
+        assertThat(loaded.getBranchTotal("branch-1"), is(1500L));
+        assertThat(loaded.getNodeTotals().get("master"), is(10500L));
+    }
+
+    @Test
+    public void measureHoldsTheLease() throws Exception {
+        FilePath workspace = r.jenkins.getRootPath().child("measured");
+        workspace.child("a.txt").write("0123456789", "UTF-8");
+        workspace.child("sub/b.txt").write("01234", "UTF-8");
+        assertThat(WorkspaceUsageIndex.measure(r.jenkins, workspace), is(15L));
+
+        WorkspaceList.Lease lease = r.jenkins.toComputer().getWorkspaceList().acquire(workspace);
+        try {
+            // a build is using the workspace
+            assertThat(WorkspaceUsageIndex.measure(r.jenkins, workspace), nullValue());
+        } finally {
+            lease.release();
+        }
+        assertThat(WorkspaceUsageIndex.measure(r.jenkins, workspace), is(15L));
+    }
+
+    @TestExtension
+    public static class SaveCounter extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof WorkspaceUsageIndex) {
+                saves.incrementAndGet();
+            }
+        }
+    }
+}